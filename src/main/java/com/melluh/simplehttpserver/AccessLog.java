@@ -0,0 +1,485 @@
+package com.melluh.simplehttpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import com.melluh.simplehttpserver.protocol.Status;
+
+/**
+ * Writes a line for every response to a log file, in the common or combined log
+ * format, or as JSON. Request threads only copy a few references into a preallocated
+ * slot of a lock-free ring buffer. A background thread formats the records and writes
+ * them in batches, so requests never wait on the disk. When the buffer is full, records
+ * are dropped and counted instead.
+ *
+ * <br><br>
+ * The file is rolled over when it exceeds a maximum size: <code>access.log</code>
+ * is renamed to <code>access.log.1</code>, the previous <code>access.log.1</code>
+ * to <code>access.log.2</code>, and so on.
+ * <pre>
+ * server.accessLog(new AccessLog(new File("access.log")).format(AccessLog.Format.JSON).start());
+ * </pre>
+ *
+ * @see HttpServer#accessLog(AccessLog)
+ */
+public class AccessLog implements Closeable {
+
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final int BATCH_SIZE = 1024;
+
+	private static final DateTimeFormatter COMMON_TIME = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ROOT);
+	private static final DateTimeFormatter ISO_TIME = DateTimeFormatter.ISO_INSTANT;
+
+	private final File file;
+
+	private Format format = Format.COMBINED;
+	private double sampleRate = 1;
+	private int bufferSize = 8192;
+	private long maxFileSize = 64 * 1024 * 1024;
+	private int maxFiles = 5;
+	private ZoneId zone = ZoneId.systemDefault();
+
+	// Ring buffer, a slot is free for position p when its sequence is p, and readable when it is p + 1
+	private Entry[] entries;
+	private AtomicLongArray sequences;
+	private int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private long head; // only accessed by the writer thread
+
+	private final LongAdder logged = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private Thread writer;
+	private OutputStream out;
+	private long fileSize;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new access log. Call {@link #start()} to open the file.
+	 *
+	 * @param file the log file
+	 */
+	public AccessLog(File file) {
+		Objects.requireNonNull(file, "file is missing");
+		this.file = file;
+	}
+
+	/**
+	 * Sets the format of the log lines. Defaults to {@link Format#COMBINED}.
+	 *
+	 * @param format the format
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AccessLog format(Format format) {
+		Objects.requireNonNull(format, "format is missing");
+		this.format = format;
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of responses that are logged, to reduce the volume on busy servers.
+	 * Server errors (<code>5xx</code>) are always logged. Defaults to 1, logging everything.
+	 *
+	 * @param sampleRate the fraction of responses to log, between 0 and 1
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AccessLog sampleRate(double sampleRate) {
+		if(sampleRate < 0 || sampleRate > 1)
+			throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+		this.sampleRate = sampleRate;
+		return this;
+	}
+
+	/**
+	 * Sets the number of records the buffer holds before records are dropped.
+	 * It is rounded up to a power of two. Defaults to 8192.
+	 *
+	 * @param bufferSize the buffer size
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AccessLog bufferSize(int bufferSize) {
+		if(bufferSize <= 0)
+			throw new IllegalArgumentException("bufferSize must be positive");
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	/**
+	 * Sets the size at which the log file is rolled over, and how many rolled over
+	 * files are kept. Defaults to 64 MB and 5 files.
+	 *
+	 * @param maxFileSize maximum file size in bytes, or -1 to never roll over
+	 * @param maxFiles number of rolled over files to keep
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AccessLog rollOver(long maxFileSize, int maxFiles) {
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+		return this;
+	}
+
+	/**
+	 * Sets the time zone of the timestamps in the common and combined formats.
+	 * Defaults to the system time zone. JSON timestamps are always in UTC.
+	 *
+	 * @param zone the time zone
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AccessLog zone(ZoneId zone) {
+		Objects.requireNonNull(zone, "zone is missing");
+		this.zone = zone;
+		return this;
+	}
+
+	/**
+	 * Opens the log file and starts the writer thread.
+	 *
+	 * @return a reference to this, so the API can be used fluently
+	 * @throws IOException if the file can't be opened
+	 */
+	public AccessLog start() throws IOException {
+		int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+		if(capacity <= 0)
+			capacity = 1;
+		this.entries = new Entry[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		this.mask = capacity - 1;
+		for(int i = 0; i < capacity; i++) {
+			entries[i] = new Entry();
+			sequences.set(i, i);
+		}
+
+		this.open();
+
+		this.writer = new Thread(this::writeLoop);
+		writer.setName("Access Log Writer Thread");
+		writer.setDaemon(true);
+		writer.start();
+		return this;
+	}
+
+	/**
+	 * Method for internal use.
+	 * Records a response. Never blocks, if the buffer is full the record is dropped.
+	 *
+	 * @param remoteAddress the address of the client
+	 * @param request the request, or null if the request couldn't be parsed
+	 * @param status the status of the response
+	 * @param bytes the number of body bytes sent
+	 * @param durationNanos the time from the first byte of the request until the response was sent
+	 */
+	void log(InetAddress remoteAddress, Request request, Status status, long bytes, long durationNanos) {
+		if(closed || entries == null)
+			return;
+		if(sampleRate < 1 && status.getCode() < 500 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+			return;
+
+		long position = tail.get();
+		while(true) {
+			long sequence = sequences.get((int) position & mask);
+			long diff = sequence - position;
+			if(diff == 0) {
+				if(tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			} else if(diff < 0) {
+				dropped.increment();
+				return;
+			} else {
+				position = tail.get();
+			}
+		}
+
+		// Only references are copied, the request itself isn't kept alive
+		Entry entry = entries[(int) position & mask];
+		entry.time = System.currentTimeMillis();
+		entry.remoteAddress = remoteAddress;
+		if(request != null) {
+			entry.method = request.getMethod().name();
+			entry.location = request.getLocation();
+			entry.queryString = request.getQueryString();
+			entry.protocol = request.getProtocolVersion();
+			entry.referer = request.getHeader("referer");
+			entry.userAgent = request.getHeader("user-agent");
+		}
+		entry.status = status;
+		entry.bytes = bytes;
+		entry.durationNanos = durationNanos;
+		sequences.set((int) position & mask, position + 1);
+	}
+
+	/**
+	 * Returns the number of records written to the log.
+	 *
+	 * @return the number of logged records
+	 */
+	public long getLogged() {
+		return logged.sum();
+	}
+
+	/**
+	 * Returns the number of records dropped because the buffer was full.
+	 *
+	 * @return the number of dropped records
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Writes the remaining records and closes the log file.
+	 */
+	@Override
+	public void close() {
+		if(closed)
+			return;
+		this.closed = true;
+
+		if(writer == null)
+			return;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		StringBuilder builder = new StringBuilder(BATCH_SIZE * 128);
+		while(true) {
+			int count = 0;
+			while(count < BATCH_SIZE && sequences.get((int) head & mask) == head + 1) {
+				Entry entry = entries[(int) head & mask];
+				this.format(builder, entry);
+				entry.clear();
+				sequences.set((int) head & mask, head + mask + 1);
+				head++;
+				count++;
+			}
+
+			try {
+				if(builder.length() > 0) {
+					byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+					builder.setLength(0);
+					try {
+						out.write(bytes);
+					} catch (IOException ex) {
+						// The batch isn't retried, as part of it may have been written
+						dropped.add(count);
+						throw ex;
+					}
+					fileSize += bytes.length;
+					logged.add(count);
+					if(maxFileSize >= 0 && fileSize >= maxFileSize)
+						this.rollOver();
+				}
+
+				if(count < BATCH_SIZE) {
+					// Caught up, flush and wait for more
+					out.flush();
+					if(closed)
+						break;
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			} catch (IOException ex) {
+				HttpServer.LOGGER.log(Level.WARNING, "Failed to write access log " + file, ex);
+				LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+			}
+		}
+
+		HttpUtils.close(out);
+	}
+
+	private void open() throws IOException {
+		this.out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+		this.fileSize = file.length();
+	}
+
+	private void rollOver() throws IOException {
+		out.close();
+		new File(file.getPath() + "." + maxFiles).delete();
+		for(int i = maxFiles - 1; i >= 1; i--) {
+			File from = new File(file.getPath() + "." + i);
+			if(from.exists() && !from.renameTo(new File(file.getPath() + "." + (i + 1))))
+				HttpServer.LOGGER.warning("Failed to roll over " + from);
+		}
+
+		if(maxFiles <= 0) {
+			// No rolled over files are kept, start over in the same file
+			new FileOutputStream(file, false).close();
+		} else if(!file.renameTo(new File(file.getPath() + ".1"))) {
+			// Keep the records, and try again once another maxFileSize has been written
+			HttpServer.LOGGER.warning("Failed to roll over " + file + ", appending to it instead");
+			this.open();
+			this.fileSize = 0;
+			return;
+		}
+		this.open();
+	}
+
+	private void format(StringBuilder builder, Entry entry) {
+		String remoteAddress = entry.remoteAddress != null ? entry.remoteAddress.getHostAddress() : null;
+
+		if(format == Format.JSON) {
+			builder.append("{\"time\":\"").append(ISO_TIME.format(Instant.ofEpochMilli(entry.time))).append('"');
+			builder.append(",\"remoteAddress\":");
+			appendJsonString(builder, remoteAddress);
+			builder.append(",\"method\":");
+			appendJsonString(builder, entry.method);
+			builder.append(",\"location\":");
+			appendJsonString(builder, entry.location);
+			builder.append(",\"query\":");
+			appendJsonString(builder, entry.queryString);
+			builder.append(",\"protocol\":");
+			appendJsonString(builder, entry.protocol);
+			builder.append(",\"status\":").append(entry.status.getCode());
+			builder.append(",\"bytes\":").append(entry.bytes);
+			builder.append(",\"durationMicros\":").append(TimeUnit.NANOSECONDS.toMicros(entry.durationNanos));
+			builder.append(",\"referer\":");
+			appendJsonString(builder, entry.referer);
+			builder.append(",\"userAgent\":");
+			appendJsonString(builder, entry.userAgent);
+			builder.append("}\n");
+			return;
+		}
+
+		builder.append(remoteAddress != null ? remoteAddress : "-").append(" - - [");
+		builder.append(COMMON_TIME.format(Instant.ofEpochMilli(entry.time).atZone(zone))).append("] \"");
+		if(entry.method != null) {
+			builder.append(entry.method).append(' ');
+			appendEscaped(builder, entry.location);
+			if(entry.queryString != null) {
+				builder.append('?');
+				appendEscaped(builder, entry.queryString);
+			}
+			builder.append(' ').append(entry.protocol);
+		} else {
+			builder.append('-');
+		}
+		builder.append("\" ").append(entry.status.getCode()).append(' ');
+		if(entry.bytes > 0)
+			builder.append(entry.bytes);
+		else
+			builder.append('-');
+
+		if(format == Format.COMBINED) {
+			builder.append(" \"");
+			appendEscaped(builder, entry.referer);
+			builder.append("\" \"");
+			appendEscaped(builder, entry.userAgent);
+			builder.append('"');
+		}
+		builder.append('\n');
+	}
+
+	// Escapes quotes, backslashes and control characters, so a value can't break out of its field
+	private static void appendEscaped(StringBuilder builder, String str) {
+		if(str == null) {
+			builder.append('-');
+			return;
+		}
+
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if(c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if(c < 0x20 || c == 0x7F) {
+				builder.append(String.format("\\x%02x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+	}
+
+	private static void appendJsonString(StringBuilder builder, String str) {
+		if(str == null) {
+			builder.append("null");
+			return;
+		}
+
+		builder.append('"');
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if(c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if(c < 0x20) {
+				builder.append(String.format("\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+	/**
+	 * A preallocated slot of the ring buffer.
+	 */
+	private static final class Entry {
+
+		private long time;
+		private InetAddress remoteAddress;
+		private String method;
+		private String location;
+		private String queryString;
+		private String protocol;
+		private String referer;
+		private String userAgent;
+		private Status status;
+		private long bytes;
+		private long durationNanos;
+
+		// Drops the references, so the strings can be garbage collected
+		private void clear() {
+			this.remoteAddress = null;
+			this.method = null;
+			this.location = null;
+			this.queryString = null;
+			this.protocol = null;
+			this.referer = null;
+			this.userAgent = null;
+			this.status = null;
+		}
+
+	}
+
+	public enum Format {
+
+		/**
+		 * The common log format, as used by many web servers:
+		 * <code>127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /index.html HTTP/1.1" 200 2326</code>
+		 */
+		COMMON,
+
+		/**
+		 * The common log format, followed by the quoted <code>Referer</code>
+		 * and <code>User-Agent</code> headers.
+		 */
+		COMBINED,
+
+		/**
+		 * A JSON object per line, which also includes the duration of the request.
+		 */
+		JSON
+
+	}
+
+}
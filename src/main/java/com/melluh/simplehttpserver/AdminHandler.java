@@ -0,0 +1,324 @@
+package com.melluh.simplehttpserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.melluh.simplehttpserver.protocol.Method;
+import com.melluh.simplehttpserver.protocol.MimeType;
+import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.response.Response;
+import com.melluh.simplehttpserver.router.RouteFilter;
+import com.melluh.simplehttpserver.router.Router;
+
+/**
+ * Serves a JSON snapshot of the live state of a server, for diagnosing it without
+ * thread dumps: the open connections with their state and age, the slowest requests
+ * in flight, worker pool usage, buffer pool and TLS session cache hit rates, the
+ * server metrics, per-route hit counts and latency histograms, and optionally the
+ * phase breakdowns of recent slow requests.
+ *
+ * <br><br>
+ * The snapshot exposes client addresses and request locations, so it should not be
+ * reachable by the public. It can be served on a separate port bound to a private
+ * network, or on a path of the server itself behind an authenticating interceptor:
+ * <pre>
+ * new HttpServer(9090).use(new AdminHandler(server).router(router)).start();
+ * </pre>
+ */
+public class AdminHandler implements RequestHandler {
+
+	private final HttpServer server;
+
+	private String path = "/admin";
+	private final List<Router> routers = new ArrayList<>();
+	private int maxConnections = 1000;
+	private int slowestRequests = 10;
+	private SlowRequestSampler sampler;
+
+	/**
+	 * Creates a new admin handler.
+	 *
+	 * @param server the server to report on, which may be a different server than the one serving this handler
+	 */
+	public AdminHandler(HttpServer server) {
+		Objects.requireNonNull(server, "server is missing");
+		this.server = server;
+	}
+
+	/**
+	 * Sets the location the snapshot is served on. Defaults to <code>/admin</code>.
+	 *
+	 * @param path the location
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AdminHandler path(String path) {
+		Objects.requireNonNull(path, "path is missing");
+		this.path = path;
+		return this;
+	}
+
+	/**
+	 * Adds a router, whose routes are included with their hit counts and latency histograms.
+	 *
+	 * @param router the router
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AdminHandler router(Router router) {
+		Objects.requireNonNull(router, "router is missing");
+		routers.add(router);
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of connections listed individually. All connections
+	 * are still counted. Defaults to 1000.
+	 *
+	 * @param maxConnections maximum number of listed connections
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AdminHandler maxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Sets the number of slowest requests in flight that are listed. Defaults to 10.
+	 *
+	 * @param slowestRequests number of listed requests
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public AdminHandler slowestRequests(int slowestRequests) {
+		this.slowestRequests = slowestRequests;
+		return this;
+	}
+
+	/**
+	 * Sets a sampler, whose slow requests are included with the time spent in every phase.
+	 * The sampler has to be set as the tracer of the server.
+	 *
+	 * @param sampler the sampler
+	 * @return a reference to this, so the API can be used fluently
+	 * @see HttpServer#tracer(RequestTracer)
+	 */
+	public AdminHandler sampler(SlowRequestSampler sampler) {
+		Objects.requireNonNull(sampler, "sampler is missing");
+		this.sampler = sampler;
+		return this;
+	}
+
+	@Override
+	public Response serve(Request request) {
+		if(request.getMethod() != Method.GET || !request.getLocation().equals(path))
+			return null;
+
+		StringBuilder json = new StringBuilder(4096);
+		json.append("{\"time\":").append(System.currentTimeMillis());
+		this.appendConnections(json);
+		this.appendWorkers(json);
+		this.appendCaches(json);
+		this.appendMetrics(json);
+		this.appendRoutes(json);
+		if(sampler != null)
+			this.appendSlowRequestTraces(json);
+		json.append('}');
+
+		return new Response(Status.OK)
+				.header("cache-control", "no-store")
+				.contentType(MimeType.JSON)
+				.body(json.toString());
+	}
+
+	private void appendConnections(StringBuilder json) {
+		ClientHandler clientHandler = server.getClientHandler();
+		List<ServerClient> inFlight = new ArrayList<>();
+
+		json.append(",\"connections\":{\"open\":").append(clientHandler.getConnectionCount()).append(",\"list\":[");
+		int listed = 0;
+		for(ServerClient client : clientHandler.getClients()) {
+			if(client.getRequestNanos() > 0)
+				inFlight.add(client);
+			if(listed == maxConnections)
+				continue;
+
+			if(listed++ > 0)
+				json.append(',');
+			this.appendConnection(json, client, false);
+		}
+		json.append("]}");
+
+		// Durations are read once, they keep growing while sorting
+		long[][] durations = new long[inFlight.size()][2];
+		for(int i = 0; i < durations.length; i++) {
+			durations[i][0] = inFlight.get(i).getRequestNanos();
+			durations[i][1] = i;
+		}
+		Arrays.sort(durations, (a, b) -> Long.compare(b[0], a[0]));
+
+		json.append(",\"slowestRequests\":[");
+		for(int i = 0; i < Math.min(slowestRequests, durations.length); i++) {
+			if(i > 0)
+				json.append(',');
+			this.appendConnection(json, inFlight.get((int) durations[i][1]), true);
+		}
+		json.append(']');
+	}
+
+	private void appendConnection(StringBuilder json, ServerClient client, boolean withRequest) {
+		json.append("{\"id\":").append(client.getId());
+		json.append(",\"remoteAddress\":");
+		appendString(json, client.getRemoteAddress() != null ? client.getRemoteAddress().getHostAddress() : null);
+		json.append(",\"state\":");
+		appendString(json, client.getState().name());
+		json.append(",\"ageMillis\":").append(client.getAge());
+		json.append(",\"bytesRead\":").append(client.getBytesRead());
+		json.append(",\"bytesWritten\":").append(client.getBytesWritten());
+		json.append(",\"requests\":").append(client.getRequestCount());
+
+		long requestNanos = client.getRequestNanos();
+		if(requestNanos > 0 || withRequest) {
+			Request request = client.getRequest();
+			json.append(",\"request\":{\"durationMillis\":").append(TimeUnit.NANOSECONDS.toMillis(requestNanos));
+			json.append(",\"method\":");
+			appendString(json, request != null ? request.getMethod().name() : null);
+			json.append(",\"location\":");
+			appendString(json, request != null ? request.getLocation() : null);
+			json.append('}');
+		}
+		json.append('}');
+	}
+
+	private void appendWorkers(StringBuilder json) {
+		ClientHandler clientHandler = server.getClientHandler();
+		json.append(",\"workers\":{\"active\":").append(clientHandler.getActiveWorkers());
+		json.append(",\"total\":").append(clientHandler.getWorkerCount());
+		json.append(",\"peak\":").append(clientHandler.getPeakWorkerCount());
+		json.append('}');
+	}
+
+	private void appendCaches(StringBuilder json) {
+		BufferPool pool = BufferPool.getDefault();
+		json.append(",\"caches\":{\"bufferPool\":{\"hits\":").append(pool.getHits());
+		json.append(",\"misses\":").append(pool.getMisses());
+		json.append(",\"hitRate\":").append(rate(pool.getHits(), pool.getHits() + pool.getMisses()));
+		json.append(",\"pooled\":").append(pool.getPooledCount());
+		json.append(",\"discarded\":").append(pool.getDiscarded());
+		json.append(",\"leaks\":").append(pool.getLeaks());
+
+		ServerMetrics metrics = server.getMetrics();
+		json.append("},\"tlsSessions\":{\"handshakes\":").append(metrics.getHandshakes());
+		json.append(",\"resumed\":").append(metrics.getResumedHandshakes());
+		json.append(",\"hitRate\":").append(rate(metrics.getResumedHandshakes(), metrics.getHandshakes()));
+		json.append("}}");
+	}
+
+	private void appendMetrics(StringBuilder json) {
+		ServerMetrics metrics = server.getMetrics();
+		json.append(",\"metrics\":{\"idleTimeouts\":").append(metrics.getIdleTimeouts());
+		json.append(",\"readTimeouts\":").append(metrics.getReadTimeouts());
+		json.append(",\"headerTimeouts\":").append(metrics.getHeaderTimeouts());
+		json.append(",\"bodyRateTimeouts\":").append(metrics.getBodyRateTimeouts());
+		json.append(",\"writeRateTimeouts\":").append(metrics.getWriteRateTimeouts());
+		json.append(",\"failedHandshakes\":").append(metrics.getFailedHandshakes());
+		json.append(",\"handshakeMillis\":").append(TimeUnit.NANOSECONDS.toMillis(metrics.getHandshakeTimeNanos()));
+		json.append(",\"rateLimitedRequests\":").append(metrics.getRateLimitedRequests());
+		json.append(",\"rateLimitedConnections\":").append(metrics.getRateLimitedConnections());
+		json.append(",\"rejectedConnections\":").append(metrics.getRejectedConnections());
+		json.append('}');
+	}
+
+	private void appendRoutes(StringBuilder json) {
+		json.append(",\"routes\":[");
+		boolean first = true;
+		for(Router router : routers) {
+			for(RouteFilter route : router.getRoutes()) {
+				if(!first)
+					json.append(',');
+				first = false;
+
+				json.append("{\"method\":");
+				appendString(json, route.getMethod());
+				json.append(",\"uri\":");
+				appendString(json, route.getUri());
+				json.append(",\"hits\":").append(route.getHits());
+				json.append(",\"totalMillis\":").append(TimeUnit.NANOSECONDS.toMillis(route.getTotalNanos()));
+
+				// Keyed by the upper bound of every bucket in milliseconds, the last one is unbounded
+				json.append(",\"latencyMillis\":{");
+				long[] histogram = route.getLatencyHistogram();
+				for(int i = 0; i < histogram.length; i++) {
+					if(i > 0)
+						json.append(',');
+					json.append('"').append(i < histogram.length - 1 ? Long.toString(1L << i) : "+Inf").append("\":").append(histogram[i]);
+				}
+				json.append("}}");
+			}
+		}
+		json.append(']');
+	}
+
+	private void appendSlowRequestTraces(StringBuilder json) {
+		json.append(",\"slowRequestTraces\":{\"thresholdMillis\":").append(TimeUnit.NANOSECONDS.toMillis(sampler.getThresholdNanos()));
+		json.append(",\"captured\":").append(sampler.getCaptured()).append(",\"list\":[");
+		boolean first = true;
+		for(RequestTrace trace : sampler.getSlowRequests()) {
+			if(!first)
+				json.append(',');
+			first = false;
+
+			json.append("{\"connectionId\":").append(trace.getConnectionId());
+			json.append(",\"remoteAddress\":");
+			appendString(json, trace.getRemoteAddress() != null ? trace.getRemoteAddress().getHostAddress() : null);
+			json.append(",\"method\":");
+			appendString(json, trace.getMethod());
+			json.append(",\"location\":");
+			appendString(json, trace.getLocation());
+			json.append(",\"protocol\":");
+			appendString(json, trace.getProtocol());
+			json.append(",\"status\":").append(trace.getStatus() != null ? Integer.toString(trace.getStatus().getCode()) : "null");
+			json.append(",\"durationMicros\":").append(TimeUnit.NANOSECONDS.toMicros(trace.getDurationNanos()));
+
+			// Time spent in every phase that was reached, since the previous one
+			json.append(",\"phaseMicros\":{");
+			boolean firstPhase = true;
+			for(TracePhase phase : TracePhase.values()) {
+				if(phase == TracePhase.ACCEPTED || !trace.hasReached(phase))
+					continue;
+				if(!firstPhase)
+					json.append(',');
+				firstPhase = false;
+				json.append('"').append(phase.name().toLowerCase(Locale.ROOT)).append("\":").append(TimeUnit.NANOSECONDS.toMicros(trace.getPhaseNanos(phase)));
+			}
+			json.append("}}");
+		}
+		json.append("]}");
+	}
+
+	private static String rate(long hits, long total) {
+		return total > 0 ? String.format(Locale.ROOT, "%.4f", (double) hits / total) : "null";
+	}
+
+	private static void appendString(StringBuilder json, String str) {
+		if(str == null) {
+			json.append("null");
+			return;
+		}
+
+		json.append('"');
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if(c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if(c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+}
@@ -0,0 +1,33 @@
+package com.melluh.simplehttpserver;
+
+import java.util.concurrent.CompletionStage;
+
+import com.melluh.simplehttpserver.response.Response;
+
+/**
+ * Called to get responses for client requests, without blocking the
+ * connection's thread while the response is being produced. This is
+ * useful for handlers waiting on I/O, such as a call to another service.
+ * 
+ * <br><br>
+ * If the returned stage completes with null, the request is passed on
+ * to the next handler, like a {@link RequestHandler} returning null.
+ * If it doesn't complete within the handler timeout, or the connection is
+ * closed before it completes, the stage is cancelled if it supports it.
+ * 
+ * @see HttpServer#useAsync(AsyncRequestHandler)
+ * @see ServerOptions#handlerTimeout(int)
+ */
+public interface AsyncRequestHandler {
+
+	/**
+	 * Called to handle a request to the web server.
+	 * 
+	 * @param request the request to handle
+	 * @return a stage that completes with the response
+	 * @see Request
+	 * @see Response
+	 */
+	CompletionStage<Response> serveAsync(Request request);
+	
+}
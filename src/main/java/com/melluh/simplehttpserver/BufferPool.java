@@ -0,0 +1,242 @@
+package com.melluh.simplehttpserver;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * A pool of reusable byte buffers, used for reading request headers, copying
+ * response bodies and buffering output. Buffers come in two size classes,
+ * {@link #SMALL} and {@link #LARGE}. Each thread keeps one buffer of each class
+ * cached, backed by a set of shared, striped queues.
+ *
+ * <br><br>
+ * Every buffer acquired must be released exactly once, and must not be used
+ * after it was released. In debug mode (the <code>simplehttpserver.debugBuffers</code>
+ * system property), buffers that are garbage collected without being released are
+ * logged together with the stack trace of where they were acquired.
+ */
+public class BufferPool {
+
+	public static final int SMALL = 8 * 1024; // 8kb
+	public static final int LARGE = 32 * 1024; // 32kb
+
+	private static final int STRIPES = 8; // must be a power of two
+	private static final int STRIPE_CAPACITY = 64;
+
+	private static final BufferPool DEFAULT = new BufferPool(Boolean.getBoolean("simplehttpserver.debugBuffers"));
+
+	private final SizeClass small = new SizeClass(SMALL);
+	private final SizeClass large = new SizeClass(LARGE);
+
+	private final boolean debug;
+	private final Map<byte[], LeakTracker> trackers;
+	private final ReferenceQueue<byte[]> leakQueue;
+
+	private final LongAdder leaks = new LongAdder();
+
+	/**
+	 * Creates a new buffer pool.
+	 *
+	 * @param debug whether to track buffers that are never released
+	 */
+	public BufferPool(boolean debug) {
+		this.debug = debug;
+		// byte arrays use identity equality, so this is effectively a weak identity map
+		this.trackers = debug ? Collections.synchronizedMap(new WeakHashMap<>()) : null;
+		this.leakQueue = debug ? new ReferenceQueue<>() : null;
+	}
+
+	/**
+	 * Returns the buffer pool shared by all servers.
+	 *
+	 * @return the default pool
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Acquires a buffer of at least the specified size. Sizes larger than
+	 * {@link #LARGE} are allocated and not pooled.
+	 *
+	 * @param minSize minimum size of the buffer
+	 * @return the buffer, its contents are undefined
+	 */
+	public byte[] acquire(int minSize) {
+		SizeClass sizeClass = this.getSizeClass(minSize);
+		byte[] buffer = sizeClass != null ? sizeClass.acquire() : new byte[minSize];
+
+		if(debug) {
+			this.reportLeaks();
+			trackers.put(buffer, new LeakTracker(buffer, leakQueue));
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that don't match a size class
+	 * are left to the garbage collector.
+	 *
+	 * @param buffer the buffer, may be null
+	 */
+	public void release(byte[] buffer) {
+		if(buffer == null)
+			return;
+
+		if(debug) {
+			LeakTracker tracker = trackers.remove(buffer);
+			if(tracker == null) {
+				HttpServer.LOGGER.log(Level.WARNING, "Buffer released twice or not acquired from this pool", new Throwable());
+				return;
+			}
+			tracker.clear();
+		}
+
+		SizeClass sizeClass = buffer.length == SMALL ? small : buffer.length == LARGE ? large : null;
+		if(sizeClass != null)
+			sizeClass.release(buffer);
+	}
+
+	private SizeClass getSizeClass(int size) {
+		if(size <= SMALL)
+			return small;
+		if(size <= LARGE)
+			return large;
+		return null;
+	}
+
+	private void reportLeaks() {
+		Reference<? extends byte[]> reference;
+		while((reference = leakQueue.poll()) != null) {
+			leaks.increment();
+			HttpServer.LOGGER.log(Level.SEVERE, "Buffer was garbage collected without being released, acquired at:", ((LeakTracker) reference).acquiredAt);
+		}
+	}
+
+	/**
+	 * Returns the number of acquires that were served by a pooled buffer.
+	 *
+	 * @return the number of pool hits
+	 */
+	public long getHits() {
+		return small.hits.sum() + large.hits.sum();
+	}
+
+	/**
+	 * Returns the number of acquires that required a new allocation.
+	 *
+	 * @return the number of pool misses
+	 */
+	public long getMisses() {
+		return small.misses.sum() + large.misses.sum();
+	}
+
+	/**
+	 * Returns the number of released buffers that were discarded
+	 * because the pool was full.
+	 *
+	 * @return the number of discarded buffers
+	 */
+	public long getDiscarded() {
+		return small.discarded.sum() + large.discarded.sum();
+	}
+
+	/**
+	 * Returns the number of buffers that were found to be garbage collected
+	 * without being released. This is only tracked in debug mode.
+	 *
+	 * @return the number of leaked buffers
+	 */
+	public long getLeaks() {
+		return leaks.sum();
+	}
+
+	/**
+	 * Returns the number of buffers currently held in the shared queues.
+	 *
+	 * @return the number of idle pooled buffers
+	 */
+	public int getPooledCount() {
+		return small.getPooledCount() + large.getPooledCount();
+	}
+
+	private static class SizeClass {
+
+		private final int size;
+		private final ThreadLocal<byte[]> cache = new ThreadLocal<>();
+		private final ArrayBlockingQueue<byte[]>[] stripes;
+
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder discarded = new LongAdder();
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private SizeClass(int size) {
+			this.size = size;
+			this.stripes = new ArrayBlockingQueue[STRIPES];
+			for(int i = 0; i < STRIPES; i++) {
+				stripes[i] = new ArrayBlockingQueue<>(STRIPE_CAPACITY);
+			}
+		}
+
+		private byte[] acquire() {
+			byte[] buffer = cache.get();
+			if(buffer != null) {
+				cache.set(null);
+				hits.increment();
+				return buffer;
+			}
+
+			buffer = this.getStripe().poll();
+			if(buffer != null) {
+				hits.increment();
+				return buffer;
+			}
+
+			misses.increment();
+			return new byte[size];
+		}
+
+		private void release(byte[] buffer) {
+			if(cache.get() == null) {
+				cache.set(buffer);
+				return;
+			}
+
+			if(!this.getStripe().offer(buffer))
+				discarded.increment();
+		}
+
+		private ArrayBlockingQueue<byte[]> getStripe() {
+			return stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+		}
+
+		private int getPooledCount() {
+			int count = 0;
+			for(ArrayBlockingQueue<byte[]> stripe : stripes) {
+				count += stripe.size();
+			}
+			return count;
+		}
+
+	}
+
+	private static class LeakTracker extends WeakReference<byte[]> {
+
+		private final Throwable acquiredAt = new Throwable();
+
+		private LeakTracker(byte[] buffer, ReferenceQueue<byte[]> queue) {
+			super(buffer, queue);
+		}
+
+	}
+
+}
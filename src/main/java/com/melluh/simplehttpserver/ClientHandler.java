@@ -1,33 +1,159 @@
 package com.melluh.simplehttpserver;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientHandler {
 	
-	private final List<ServerClient> clients = Collections.synchronizedList(new ArrayList<>());
-	private final ExecutorService executor = Executors.newCachedThreadPool();
+	// Keyed by connection ID, so registering and removing a connection doesn't contend with others
+	private final Map<Long, ServerClient> clients = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+	
+	private final ServerOptions options;
+	private final AtomicInteger connections = new AtomicInteger();
+	// A counter that dropped to zero is marked with -1 before it is removed, so it is never revived
+	private final Map<InetAddress, AtomicInteger> connectionsPerAddress = new ConcurrentHashMap<>();
+	
+	protected ClientHandler(ServerOptions options) {
+		this.options = options;
+	}
 	
 	/**
-	 * Returns a list of all server clients with an active connection.
+	 * Returns a list of all server clients with an active connection. The list is
+	 * a snapshot, taken without blocking connections from being opened and closed.
 	 * 
 	 * @return an immutable list of active clients
 	 * @see ServerClient
 	 */
 	public List<ServerClient> getClients() {
-		return Collections.unmodifiableList(clients);
+		return Collections.unmodifiableList(new ArrayList<>(clients.values()));
+	}
+	
+	/**
+	 * Looks up an active connection by its ID.
+	 * 
+	 * @param id the connection ID
+	 * @return the client, or null if there is no active connection with the ID
+	 * @see ServerClient#getId()
+	 */
+	public ServerClient getClient(long id) {
+		return clients.get(id);
+	}
+	
+	/**
+	 * Returns the number of open connections.
+	 * 
+	 * @return the number of connections
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+	
+	/**
+	 * Returns the number of open connections from a remote address.
+	 * 
+	 * @param address the remote address
+	 * @return the number of connections
+	 */
+	public int getConnectionCount(InetAddress address) {
+		AtomicInteger count = connectionsPerAddress.get(address);
+		return count != null ? Math.max(0, count.get()) : 0;
+	}
+	
+	/**
+	 * Returns the number of worker threads that are busy, serving a connection
+	 * or running an asynchronous completion.
+	 * 
+	 * @return the approximate number of busy workers
+	 */
+	public int getActiveWorkers() {
+		return executor.getActiveCount();
+	}
+	
+	/**
+	 * Returns the number of worker threads, including idle ones.
+	 * 
+	 * @return the number of workers
+	 */
+	public int getWorkerCount() {
+		return executor.getPoolSize();
+	}
+	
+	/**
+	 * Returns the largest number of worker threads there have been at once.
+	 * 
+	 * @return the peak number of workers
+	 */
+	public int getPeakWorkerCount() {
+		return executor.getLargestPoolSize();
+	}
+	
+	protected Executor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Method for internal use.
+	 * Counts a newly accepted connection, unless it would exceed the connection limits.
+	 * 
+	 * @param address the remote address of the connection
+	 * @return whether the connection is within the limits, if not, it must be closed
+	 * @see ServerOptions#maxConnections(int)
+	 * @see ServerOptions#maxConnectionsPerAddress(int)
+	 */
+	protected boolean reserve(InetAddress address) {
+		int maxConnections = options.getMaxConnections();
+		if(connections.incrementAndGet() > maxConnections && maxConnections >= 0) {
+			connections.decrementAndGet();
+			return false;
+		}
+		
+		int maxPerAddress = options.getMaxConnectionsPerAddress();
+		while(true) {
+			AtomicInteger count = connectionsPerAddress.computeIfAbsent(address, key -> new AtomicInteger());
+			int current = count.get();
+			if(current < 0) {
+				connectionsPerAddress.remove(address, count);
+				continue;
+			}
+			if(current >= maxPerAddress && maxPerAddress >= 0) {
+				connections.decrementAndGet();
+				return false;
+			}
+			if(count.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+	
+	/**
+	 * Method for internal use.
+	 * Stops counting a connection that was reserved.
+	 * 
+	 * @param address the remote address of the connection
+	 */
+	protected void release(InetAddress address) {
+		connections.decrementAndGet();
+		AtomicInteger count = connectionsPerAddress.get(address);
+		if(count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1))
+			connectionsPerAddress.remove(address, count);
 	}
 	
 	protected void acceptClient(ServerClient client) {
-		clients.add(client);
+		clients.put(client.getId(), client);
 		executor.submit(client);
 	}
 	
 	protected void closed(ServerClient client) {
-		clients.remove(client);
+		clients.remove(client.getId());
+		this.release(client.getRemoteAddress());
 	}
 	
 }
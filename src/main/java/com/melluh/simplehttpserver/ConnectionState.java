@@ -0,0 +1,46 @@
+package com.melluh.simplehttpserver;
+
+/**
+ * The state of a connection to a {@link ServerClient}.
+ *
+ * @see ServerClient#getState()
+ */
+public enum ConnectionState {
+
+	/**
+	 * Performing the TLS handshake.
+	 */
+	HANDSHAKING,
+
+	/**
+	 * Waiting for or reading a request.
+	 */
+	READING,
+
+	/**
+	 * Waiting for a request handler to produce a response.
+	 */
+	PROCESSING,
+
+	/**
+	 * Writing a response.
+	 */
+	WRITING,
+
+	/**
+	 * Speaking HTTP/2, which multiplexes many requests on the connection.
+	 */
+	HTTP2,
+
+	/**
+	 * Handed over to an upgraded protocol, such as WebSocket, or to a
+	 * detached response body, such as an event stream.
+	 */
+	UPGRADED,
+
+	/**
+	 * Closed.
+	 */
+	CLOSED
+
+}
@@ -0,0 +1,45 @@
+package com.melluh.simplehttpserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that counts the number of bytes read through it.
+ */
+class CountingInputStream extends FilterInputStream {
+
+	private volatile long count;
+
+	CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = in.read();
+		if(read >= 0)
+			count++;
+		return read;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if(read > 0)
+			count += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(n);
+		count += skipped;
+		return skipped;
+	}
+
+	long getCount() {
+		return count;
+	}
+
+}
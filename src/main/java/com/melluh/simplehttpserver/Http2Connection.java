@@ -0,0 +1,1167 @@
+package com.melluh.simplehttpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.melluh.simplehttpserver.ServerClient.ParseException;
+import com.melluh.simplehttpserver.http2.HpackDecoder;
+import com.melluh.simplehttpserver.http2.HpackEncoder;
+import com.melluh.simplehttpserver.http2.Http2Exception;
+import com.melluh.simplehttpserver.http2.Http2Frame;
+import com.melluh.simplehttpserver.multipart.MultipartException;
+import com.melluh.simplehttpserver.multipart.MultipartParser;
+import com.melluh.simplehttpserver.protocol.Headers;
+import com.melluh.simplehttpserver.protocol.HttpHeader;
+import com.melluh.simplehttpserver.protocol.Method;
+import com.melluh.simplehttpserver.protocol.MimeType;
+import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.response.Cookie;
+import com.melluh.simplehttpserver.response.DetachedResponseBody;
+import com.melluh.simplehttpserver.response.Response;
+
+/**
+ * A cleartext HTTP/2 connection (h2c). Frames are read on the connection's own
+ * thread, while each stream is handled on the client executor, so many requests
+ * can be in progress on a single connection. Writes from different streams are
+ * serialized, and respect the peer's flow control windows.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7540">RFC 7540</a>.
+ */
+class Http2Connection {
+
+	static final String PREFACE_LINE = "PRI * HTTP/2.0";
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PREFACE_REMAINDER = "SM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int MAX_CONCURRENT_STREAMS = 100;
+	private static final int HEADER_TABLE_SIZE = 4096;
+	private static final int MAX_HEADER_LIST_SIZE = 16384;
+	private static final int WINDOW_UPDATE_THRESHOLD = Http2Frame.DEFAULT_WINDOW_SIZE / 2;
+	private static final long MAX_BODY_SIZE = Integer.MAX_VALUE - 8;
+
+	private static final String SERVER_HEADER = "simple-http-server";
+
+	private final HttpServer server;
+	private final ServerClient client;
+	private final Socket socket;
+	private final InputStream in;
+	private final PooledOutputStream out;
+
+	private final Object writeLock = new Object();
+	private final HpackEncoder encoder = new HpackEncoder(HEADER_TABLE_SIZE);
+	private final HpackDecoder decoder = new HpackDecoder(HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+	private boolean goAwayReceived;
+	private int lastStreamId;
+
+	// Flow control, guarded by flowLock
+	private final Object flowLock = new Object();
+	private long sendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+	private int peerInitialWindowSize = Http2Frame.DEFAULT_WINDOW_SIZE;
+	private volatile int peerMaxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+
+	// Only accessed by the reading thread
+	private long receiveWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+	private int receiveUnacked;
+	private int continuationStreamId;
+	private boolean continuationEndStream;
+	private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+	Http2Connection(ServerClient client, HttpServer server, Socket socket, InputStream in, OutputStream out) {
+		this.client = client;
+		this.server = server;
+		this.socket = socket;
+		this.in = in;
+		this.out = new PooledOutputStream(out, BufferPool.getDefault());
+	}
+
+	/**
+	 * Checks if a request asks to upgrade to h2c, see RFC 7540 section 3.2.
+	 *
+	 * @param request the request
+	 * @return whether the connection should be upgraded
+	 */
+	static boolean isUpgradeRequest(Request request) {
+		return HttpUtils.containsToken(request.getHeader(HttpHeader.UPGRADE), "h2c")
+				&& HttpUtils.containsToken(request.getHeader(HttpHeader.CONNECTION), "upgrade")
+				&& HttpUtils.containsToken(request.getHeader(HttpHeader.CONNECTION), "http2-settings")
+				&& request.hasHeader(HttpHeader.HTTP2_SETTINGS);
+	}
+
+	/**
+	 * Runs a connection started with prior knowledge. The first line of the
+	 * connection preface has already been read as a request line.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	void runPriorKnowledge() throws IOException {
+		if(!this.readPreface(PREFACE_REMAINDER))
+			return;
+		this.run(null);
+	}
+
+	/**
+	 * Runs a connection that negotiated <code>h2</code> over TLS using ALPN.
+	 * The client starts with the full connection preface.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	void runNegotiated() throws IOException {
+		if(!this.readPreface(PREFACE))
+			return;
+		this.run(null);
+	}
+
+	/**
+	 * Runs a connection upgraded from HTTP/1.1. The upgrade request is
+	 * answered as stream 1, after which the client sends its preface.
+	 *
+	 * @param upgradeRequest the request that asked for the upgrade
+	 * @param settings the decoded <code>HTTP2-Settings</code> header
+	 * @throws IOException if an I/O error occurs
+	 */
+	void runUpgrade(Request upgradeRequest, byte[] settings) throws IOException {
+		try {
+			this.applySettings(settings, settings.length);
+		} catch (Http2Exception ex) {
+			this.goAway(ex.getErrorCode(), ex.getMessage());
+			return;
+		}
+
+		this.run(upgradeRequest);
+
+	}
+
+	private void run(Request upgradeRequest) throws IOException {
+		socket.setSoTimeout(server.getOptions().getIdleTimeout());
+
+		try {
+			this.sendSettings();
+
+			if(upgradeRequest != null) {
+				if(!this.readPreface(PREFACE))
+					return;
+
+				Stream stream = new Stream(1);
+				stream.request = upgradeRequest;
+				stream.trace = upgradeRequest.getTrace();
+				stream.remoteClosed = true;
+				streams.put(1, stream);
+				this.lastStreamId = 1;
+				this.dispatch(stream);
+			}
+
+			this.readFrames();
+
+			// Let streams that are still in progress finish after a GOAWAY
+			if(goAwayReceived)
+				this.awaitStreams();
+		} catch (Http2Exception ex) {
+			this.goAway(ex.getErrorCode(), ex.getMessage());
+		} finally {
+			this.close();
+		}
+	}
+
+	private boolean readPreface(byte[] expected) throws IOException {
+		byte[] preface = new byte[expected.length];
+		try {
+			if(!this.readFully(preface, expected.length) || !Arrays.equals(preface, expected))
+				return false;
+		} catch (SocketTimeoutException ex) {
+			return false;
+		}
+		return true;
+	}
+
+	private void readFrames() throws IOException, Http2Exception {
+		byte[] header = new byte[Http2Frame.HEADER_LENGTH];
+		byte[] payload = new byte[Http2Frame.DEFAULT_MAX_FRAME_SIZE];
+
+		while(!goAwayReceived) {
+			// Only wait for the start of a frame, a timeout in the middle of one loses track of the framing
+			int first;
+			try {
+				first = in.read();
+			} catch (SocketTimeoutException ex) {
+				if(!streams.isEmpty())
+					continue;
+
+				// Idle connection, close it gracefully
+				this.goAway(Http2Exception.NO_ERROR, "Idle timeout");
+				return;
+			}
+			if(first == -1)
+				return;
+			header[0] = (byte) first;
+
+			try {
+				this.readFrameFully(header, 1, header.length - 1);
+			} catch (SocketTimeoutException ex) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Timed out in the middle of a frame");
+			}
+
+			int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+			int type = header[3] & 0xFF;
+			int flags = header[4] & 0xFF;
+			int streamId = Http2Frame.readInt(header, 5) & 0x7FFFFFFF;
+
+			if(length > payload.length)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame too large (" + length + " > " + payload.length + ")");
+			try {
+				this.readFrameFully(payload, 0, length);
+			} catch (SocketTimeoutException ex) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Timed out in the middle of a frame");
+			}
+
+			if(continuationStreamId != 0 && (type != Http2Frame.TYPE_CONTINUATION || streamId != continuationStreamId))
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION frame");
+
+			try {
+				this.handleFrame(type, flags, streamId, payload, length);
+			} catch (Http2Exception ex) {
+				if(!ex.isStreamError())
+					throw ex;
+				this.resetStream(ex.getStreamId(), ex.getErrorCode());
+			}
+		}
+	}
+
+	private void handleFrame(int type, int flags, int streamId, byte[] payload, int length) throws IOException, Http2Exception {
+		switch(type) {
+			case Http2Frame.TYPE_DATA:
+				this.handleData(flags, streamId, payload, length);
+				break;
+			case Http2Frame.TYPE_HEADERS:
+				this.handleHeaders(flags, streamId, payload, length);
+				break;
+			case Http2Frame.TYPE_CONTINUATION:
+				this.handleContinuation(flags, streamId, payload, length);
+				break;
+			case Http2Frame.TYPE_PRIORITY:
+				if(streamId == 0)
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+				if(length != 5)
+					throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "Invalid PRIORITY frame");
+				break; // prioritization is not implemented
+			case Http2Frame.TYPE_RST_STREAM:
+				this.handleRstStream(streamId, payload, length);
+				break;
+			case Http2Frame.TYPE_SETTINGS:
+				this.handleSettings(flags, streamId, payload, length);
+				break;
+			case Http2Frame.TYPE_PUSH_PROMISE:
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Clients can't push");
+			case Http2Frame.TYPE_PING:
+				if(streamId != 0)
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+				if(length != 8)
+					throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING frame");
+				if((flags & Http2Frame.FLAG_ACK) == 0)
+					this.writeFrame(Http2Frame.TYPE_PING, Http2Frame.FLAG_ACK, 0, payload, 0, 8);
+				break;
+			case Http2Frame.TYPE_GOAWAY:
+				if(streamId != 0)
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+				this.goAwayReceived = true;
+				break;
+			case Http2Frame.TYPE_WINDOW_UPDATE:
+				this.handleWindowUpdate(streamId, payload, length);
+				break;
+			default:
+				break; // unknown frame types must be ignored
+		}
+	}
+
+	private void handleData(int flags, int streamId, byte[] payload, int length) throws IOException, Http2Exception {
+		if(streamId == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+
+		int offset = 0;
+		int dataLength = length;
+		if((flags & Http2Frame.FLAG_PADDED) != 0) {
+			int padLength = length > 0 ? payload[0] & 0xFF : 0;
+			if(length == 0 || padLength >= length)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+			offset = 1;
+			dataLength = length - 1 - padLength;
+		}
+
+		// The whole frame counts towards flow control, even if the stream is gone
+		receiveWindow -= length;
+		if(receiveWindow < 0)
+			throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window exceeded");
+		receiveUnacked += length;
+		if(receiveUnacked >= WINDOW_UPDATE_THRESHOLD) {
+			this.sendWindowUpdate(0, receiveUnacked);
+			receiveWindow += receiveUnacked;
+			receiveUnacked = 0;
+		}
+
+		Stream stream = streams.get(streamId);
+		if(stream == null) {
+			if(streamId > lastStreamId)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream");
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on closed stream");
+		}
+		if(stream.remoteClosed)
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA after end of stream");
+
+		stream.receiveWindow -= length;
+		if(stream.receiveWindow < 0)
+			throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+
+		stream.bodySize += dataLength;
+		if(stream.contentLength >= 0 && stream.bodySize > stream.contentLength)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "DATA exceeds content-length");
+
+		boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+		if(!stream.discardBody && stream.bodySize > this.getMaxBodySize(stream.request)) {
+			// Answered right away, the rest of the body is ignored
+			stream.discardBody = true;
+			stream.body = null;
+			stream.bodyRejected = !endStream;
+			this.dispatchResponse(stream, new Response(Status.PAYLOAD_TOO_LARGE).contentType(MimeType.PLAIN_TEXT).body("Request body too large"));
+		}
+
+		if(!stream.discardBody) {
+			if(stream.body == null)
+				stream.body = new ByteArrayOutputStream();
+			stream.body.write(payload, offset, dataLength);
+		}
+
+		if(endStream) {
+			stream.remoteClosed = true;
+			if(!stream.discardBody) {
+				this.dispatch(stream);
+			} else if(stream.bodyRejected) {
+				stream.remoteEnded = true;
+				if(stream.responded)
+					this.closeStream(stream);
+			}
+			return;
+		}
+
+		// A discarded body doesn't get more window, so the client stalls instead of sending it all
+		if(stream.discardBody)
+			return;
+
+		stream.receiveUnacked += length;
+		if(stream.receiveUnacked >= WINDOW_UPDATE_THRESHOLD) {
+			this.sendWindowUpdate(streamId, stream.receiveUnacked);
+			stream.receiveWindow += stream.receiveUnacked;
+			stream.receiveUnacked = 0;
+		}
+	}
+
+	private void handleHeaders(int flags, int streamId, byte[] payload, int length) throws IOException, Http2Exception {
+		if(streamId == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+
+		int offset = 0;
+		int padLength = 0;
+		if((flags & Http2Frame.FLAG_PADDED) != 0) {
+			if(length < 1)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid HEADERS frame");
+			padLength = payload[0] & 0xFF;
+			offset = 1;
+		}
+		if((flags & Http2Frame.FLAG_PRIORITY) != 0)
+			offset += 5; // prioritization is not implemented
+
+		int fragmentLength = length - offset - padLength;
+		if(fragmentLength < 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+
+		boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+		if((flags & Http2Frame.FLAG_END_HEADERS) != 0) {
+			this.handleHeaderBlock(streamId, payload, offset, fragmentLength, endStream);
+			return;
+		}
+
+		headerBlock.reset();
+		headerBlock.write(payload, offset, fragmentLength);
+		this.continuationStreamId = streamId;
+		this.continuationEndStream = endStream;
+	}
+
+	private void handleContinuation(int flags, int streamId, byte[] payload, int length) throws IOException, Http2Exception {
+		if(continuationStreamId == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+		if(headerBlock.size() + length > MAX_HEADER_LIST_SIZE * 2)
+			throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large");
+
+		headerBlock.write(payload, 0, length);
+		if((flags & Http2Frame.FLAG_END_HEADERS) == 0)
+			return;
+
+		this.continuationStreamId = 0;
+		byte[] block = headerBlock.toByteArray();
+		headerBlock.reset();
+		this.handleHeaderBlock(streamId, block, 0, block.length, continuationEndStream);
+	}
+
+	private void handleHeaderBlock(int streamId, byte[] block, int offset, int length, boolean endStream) throws IOException, Http2Exception {
+		// The block must always be decoded, to keep the HPACK state in sync
+		List<String> names = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		decoder.decode(block, offset, length, (name, value) -> {
+			names.add(name);
+			values.add(value);
+		});
+
+		Stream stream = streams.get(streamId);
+		if(stream != null) {
+			// Trailers, which must end the stream
+			if(stream.remoteClosed || !endStream)
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Unexpected HEADERS frame");
+			stream.remoteClosed = true;
+			this.dispatch(stream);
+			return;
+		}
+
+		if(streamId <= lastStreamId)
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on closed stream");
+		if(streamId % 2 == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Client streams must be odd");
+		this.lastStreamId = streamId;
+
+		if(streams.size() >= MAX_CONCURRENT_STREAMS)
+			throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Too many concurrent streams");
+
+		stream = new Stream(streamId);
+		stream.remoteClosed = endStream;
+		streams.put(streamId, stream);
+
+		Response error = this.createRequest(stream, names, values);
+		RequestTracer tracer = server.getTracer();
+		if(tracer != null) {
+			stream.trace = new RequestTrace(tracer, client.getId(), socket.getInetAddress());
+			if(stream.request != null) {
+				stream.trace.setRequest(stream.request);
+				stream.request.setTrace(stream.trace);
+			}
+			stream.trace.mark(TracePhase.HEADERS_READ);
+		}
+		if(error == null) {
+			stream.contentLength = HttpUtils.safeParseLong(stream.request.getHeader(HttpHeader.CONTENT_LENGTH));
+			if(stream.contentLength > this.getMaxBodySize(stream.request))
+				error = new Response(Status.PAYLOAD_TOO_LARGE).contentType(MimeType.PLAIN_TEXT).body("Request body too large");
+		}
+		if(error != null) {
+			stream.discardBody = true;
+			stream.bodyRejected = !endStream;
+			this.dispatchResponse(stream, error);
+			return;
+		}
+
+		if(endStream)
+			this.dispatch(stream);
+	}
+
+	// Multipart bodies are held to their limit, other bodies have to fit in an array like on HTTP/1.1
+	private long getMaxBodySize(Request request) {
+		long multipartMaxSize = server.getOptions().getMultipartMaxSize();
+		if(request != null && multipartMaxSize >= 0 && MultipartParser.getBoundary(request.getHeader(HttpHeader.CONTENT_TYPE)) != null)
+			return multipartMaxSize;
+		return MAX_BODY_SIZE;
+	}
+
+	private Response createRequest(Stream stream, List<String> names, List<String> values) throws Http2Exception {
+		String method = null, path = null, authority = null;
+		StringBuilder cookies = null;
+		boolean regularSeen = false;
+
+		for(int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			String value = values.get(i);
+
+			if(name.startsWith(":")) {
+				if(regularSeen)
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Pseudo-header after regular header");
+
+				switch(name) {
+					case ":method":
+						method = value;
+						break;
+					case ":path":
+						path = value;
+						break;
+					case ":authority":
+						authority = value;
+						break;
+					case ":scheme":
+						break;
+					default:
+						throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Unknown pseudo-header " + name);
+				}
+				continue;
+			}
+
+			regularSeen = true;
+			if(!name.equals(name.toLowerCase(Locale.ROOT)))
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Uppercase header name");
+			if(HttpUtils.isConnectionSpecificHeader(name) || (name.equals("te") && !value.equals("trailers")))
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Connection-specific header " + name);
+
+			// Cookies may be split into multiple fields, see RFC 7540 section 8.1.2.5
+			if(name.equals(HttpHeader.COOKIE)) {
+				if(cookies == null) {
+					cookies = new StringBuilder(value);
+				} else {
+					cookies.append("; ").append(value);
+				}
+			}
+		}
+
+		if(method == null || path == null)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Missing pseudo-headers");
+
+		Method parsedMethod = Method.getMethod(method);
+		if(parsedMethod == null)
+			return new Response(Status.METHOD_NOT_ALLOWED).contentType(MimeType.PLAIN_TEXT).body("Method not supported by server implementation");
+
+		try {
+			stream.request = new Request(server, parsedMethod, path, "HTTP/2.0");
+			stream.request.setRemoteAddress(socket.getInetAddress());
+		} catch (ParseException ex) {
+			return ex.createResponse();
+		}
+
+		for(int i = 0; i < names.size(); i++) {
+			if(!names.get(i).startsWith(":") && !names.get(i).equals(HttpHeader.COOKIE))
+				stream.request.addHeader(names.get(i), values.get(i));
+		}
+		if(cookies != null)
+			stream.request.addHeader(HttpHeader.COOKIE, cookies.toString());
+		if(authority != null && !stream.request.hasHeader(HttpHeader.HOST))
+			stream.request.addHeader(HttpHeader.HOST, authority);
+
+		String conflict = HttpUtils.findConflictingHeaders(stream.request);
+		if(conflict != null)
+			return new Response(Status.BAD_REQUEST).contentType(MimeType.PLAIN_TEXT).body(conflict);
+		return null;
+	}
+
+	private void handleRstStream(int streamId, byte[] payload, int length) throws Http2Exception {
+		if(streamId == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+		if(length != 4)
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+		if(streamId > lastStreamId)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+
+		Stream stream = streams.remove(streamId);
+		if(stream != null)
+			this.cancel(stream);
+	}
+
+	private void handleSettings(int flags, int streamId, byte[] payload, int length) throws IOException, Http2Exception {
+		if(streamId != 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+
+		if((flags & Http2Frame.FLAG_ACK) != 0) {
+			if(length != 0)
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+			return;
+		}
+
+		this.applySettings(payload, length);
+		this.writeFrame(Http2Frame.TYPE_SETTINGS, Http2Frame.FLAG_ACK, 0, payload, 0, 0);
+	}
+
+	private void applySettings(byte[] payload, int length) throws Http2Exception {
+		if(length % 6 != 0)
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+
+		for(int i = 0; i < length; i += 6) {
+			int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+			int value = Http2Frame.readInt(payload, i + 2);
+
+			switch(id) {
+				case Http2Frame.SETTINGS_HEADER_TABLE_SIZE:
+					synchronized(writeLock) {
+						encoder.setPeerMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+					}
+					break;
+				case Http2Frame.SETTINGS_ENABLE_PUSH:
+					if(value != 0 && value != 1)
+						throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+					break;
+				case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+					if(value < 0)
+						throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+					this.updateInitialWindowSize(value);
+					break;
+				case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+					if(value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > Http2Frame.MAX_ALLOWED_FRAME_SIZE)
+						throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+					this.peerMaxFrameSize = value;
+					break;
+				default:
+					break; // other and unknown settings don't affect the server
+			}
+		}
+	}
+
+	private void updateInitialWindowSize(int value) throws Http2Exception {
+		synchronized(flowLock) {
+			int delta = value - peerInitialWindowSize;
+			this.peerInitialWindowSize = value;
+			for(Stream stream : streams.values()) {
+				stream.sendWindow += delta;
+				if(stream.sendWindow > Http2Frame.MAX_WINDOW_SIZE)
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+			}
+			flowLock.notifyAll();
+		}
+	}
+
+	private void handleWindowUpdate(int streamId, byte[] payload, int length) throws Http2Exception {
+		if(length != 4)
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+
+		int increment = Http2Frame.readInt(payload, 0) & 0x7FFFFFFF;
+		if(increment == 0)
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Zero window increment");
+
+		synchronized(flowLock) {
+			if(streamId == 0) {
+				sendWindow += increment;
+				if(sendWindow > Http2Frame.MAX_WINDOW_SIZE)
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+			} else {
+				Stream stream = streams.get(streamId);
+				if(stream == null)
+					return; // may race with the stream being closed
+				stream.sendWindow += increment;
+				if(stream.sendWindow > Http2Frame.MAX_WINDOW_SIZE)
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+			}
+			flowLock.notifyAll();
+		}
+	}
+
+	private void dispatch(Stream stream) {
+		if(stream.request == null)
+			return; // already answered with an error
+		byte[] body = stream.body != null ? stream.body.toByteArray() : null;
+		stream.body = null;
+		if(stream.trace != null && !stream.trace.hasReached(TracePhase.BODY_READ))
+			stream.trace.mark(TracePhase.BODY_READ);
+
+		server.getClientHandler().getExecutor().execute(() -> {
+			try {
+				this.handle(stream, body);
+			} catch (Throwable ex) {
+				this.fail(stream, ex);
+			}
+		});
+	}
+
+	private void handle(Stream stream, byte[] body) {
+		if(body != null && !this.setBody(stream, body))
+			return;
+
+		CompletableFuture<Response> response = server.handleRequest(stream.request);
+		if(response.isDone()) {
+			if(stream.trace != null)
+				stream.trace.mark(TracePhase.HANDLER_DONE);
+			this.sendResponse(stream, response.join());
+			return;
+		}
+
+		stream.pendingResponse = response;
+		int handlerTimeout = server.getOptions().getHandlerTimeout();
+		TimeoutWheel.Timeout timeout = handlerTimeout > 0 ? server.getTimeoutWheel().schedule(() -> response.cancel(false), handlerTimeout, TimeUnit.MILLISECONDS) : null;
+
+		response.whenCompleteAsync((resp, ex) -> {
+			try {
+				if(timeout != null)
+					timeout.cancel();
+				if(stream.trace != null)
+					stream.trace.mark(TracePhase.HANDLER_DONE);
+				this.sendResponse(stream, resp != null ? resp : new Response(ex instanceof CancellationException ? Status.SERVICE_UNAVAILABLE : Status.INTERNAL_SERVER_ERROR));
+			} catch (Throwable failure) {
+				this.fail(stream, failure);
+			}
+		}, server.getClientHandler().getExecutor());
+	}
+
+	// Makes sure a stream whose handling failed is ended, instead of staying open until the connection closes
+	private void fail(Stream stream, Throwable ex) {
+		HttpServer.LOGGER.log(Level.SEVERE, "Error handling HTTP/2 stream", ex);
+		try {
+			if(!stream.headersSent) {
+				this.sendResponse(stream, new Response(Status.INTERNAL_SERVER_ERROR));
+			} else {
+				this.resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+			}
+		} catch (IOException | RuntimeException ignored) {
+			// the connection is closing
+		}
+	}
+
+	// The body is already in memory, but multipart parts are still parsed so handlers see them like on HTTP/1.1
+	private boolean setBody(Stream stream, byte[] body) {
+		String boundary = MultipartParser.getBoundary(stream.request.getHeader(HttpHeader.CONTENT_TYPE));
+		if(boundary == null) {
+			stream.request.setBody(body);
+			return true;
+		}
+
+		ServerOptions options = server.getOptions();
+		try {
+			if(options.getMultipartMaxSize() >= 0 && body.length > options.getMultipartMaxSize())
+				throw new MultipartException(Status.PAYLOAD_TOO_LARGE, "Request body too large");
+			stream.request.setParts(new MultipartParser(new ByteArrayInputStream(body), body.length, boundary, options).parse());
+			return true;
+		} catch (MultipartException ex) {
+			this.sendResponse(stream, new Response(ex.getStatus()).contentType(MimeType.PLAIN_TEXT).body(ex.getMessage()));
+		} catch (IOException ex) {
+			HttpServer.LOGGER.log(Level.SEVERE, "Failed to store multipart body", ex);
+			this.sendResponse(stream, new Response(Status.INTERNAL_SERVER_ERROR));
+		}
+		return false;
+	}
+
+	private void dispatchResponse(Stream stream, Response response) {
+		server.getClientHandler().getExecutor().execute(() -> {
+			try {
+				this.sendResponse(stream, response);
+			} catch (Throwable ex) {
+				this.fail(stream, ex);
+			}
+		});
+	}
+
+	private void sendResponse(Stream stream, Response response) {
+		// HTTP/2 has no 101 response, connections can't be upgraded
+		if(response.getStatus() == Status.SWITCHING_PROTOCOLS)
+			response = new Response(Status.HTTP_VERSION_NOT_SUPPORTED);
+
+		Method method = stream.request != null ? stream.request.getMethod() : null;
+		Status status = response.getStatus();
+		boolean sendBody = method != Method.HEAD && status != Status.NO_CONTENT && status != Status.NOT_MODIFIED && response.hasBody();
+		boolean detached = false;
+
+		try {
+			if(response.hasBody() && !sendBody)
+				response.getBody().close();
+			if(sendBody && response.getBody().getLength() >= 0)
+				response.optHeader(HttpHeader.CONTENT_LENGTH, String.valueOf(response.getBody().getLength()));
+			response.optHeader(HttpHeader.SERVER, SERVER_HEADER);
+
+			this.writeHeaders(stream, response, !sendBody);
+			stream.headersSent = true;
+			client.http2ResponseSent();
+
+			// Detached bodies end the stream themselves, by closing it
+			if(sendBody && response.getBody() instanceof DetachedResponseBody) {
+				((DetachedResponseBody) response.getBody()).detach(new DataOutputStream(stream, true));
+				detached = true;
+			} else if(sendBody) {
+				DataOutputStream dataOut = new DataOutputStream(stream, false);
+				try {
+					response.getBody().write(dataOut);
+					dataOut.close();
+				} finally {
+					dataOut.release();
+					response.getBody().close();
+				}
+			}
+
+			AccessLog accessLog = server.getAccessLog();
+			if(accessLog != null)
+				accessLog.log(socket.getInetAddress(), stream.request, status, stream.bytesSent, System.nanoTime() - stream.startNanos);
+			if(stream.trace != null) {
+				stream.trace.setStatus(status);
+				stream.trace.mark(TracePhase.RESPONSE_FLUSHED);
+			}
+		} catch (IOException ex) {
+			if(!closed && !stream.reset)
+				HttpServer.LOGGER.log(Level.SEVERE, "Error sending HTTP/2 response", ex);
+		} finally {
+			if(!detached)
+				this.closeStream(stream);
+		}
+	}
+
+	private void writeHeaders(Stream stream, Response response, boolean endStream) throws IOException {
+		synchronized(writeLock) {
+			if(stream.reset)
+				throw new IOException("Stream was reset");
+
+			// Encoding and writing must happen atomically, the HPACK table depends on the order of header blocks
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			encoder.startBlock(block);
+			encoder.encode(block, ":status", String.valueOf(response.getStatus().getCode()), true);
+			Headers headers = response.getHeaders();
+			for(int i = 0; i < headers.size(); i++) {
+				String name = headers.getName(i);
+				if(!HttpUtils.isConnectionSpecificHeader(name))
+					encoder.encode(block, name, headers.getValue(i), !isVolatileHeader(name));
+			}
+			for(Cookie cookie : response.getCookies()) {
+				encoder.encode(block, HttpHeader.SET_COOKIE, cookie.getHeaderValue(), false);
+			}
+
+			byte[] data = block.toByteArray();
+			int maxFrameSize = peerMaxFrameSize;
+			int offset = 0;
+			boolean first = true;
+			do {
+				int length = Math.min(maxFrameSize, data.length - offset);
+				boolean last = offset + length == data.length;
+				int type = first ? Http2Frame.TYPE_HEADERS : Http2Frame.TYPE_CONTINUATION;
+				int flags = (last ? Http2Frame.FLAG_END_HEADERS : 0) | (first && endStream ? Http2Frame.FLAG_END_STREAM : 0);
+				this.writeFrameUnflushed(type, flags, stream.id, data, offset, length);
+				offset += length;
+				first = false;
+			} while(offset < data.length);
+			out.flush();
+		}
+	}
+
+	// Values of these headers are rarely repeated, so they aren't worth a place in the HPACK table
+	private static boolean isVolatileHeader(String name) {
+		switch(name) {
+			case HttpHeader.CONTENT_LENGTH:
+			case HttpHeader.DATE:
+			case HttpHeader.SET_COOKIE:
+			case "etag":
+			case "last-modified":
+			case "content-range":
+			case "expires":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private void sendData(Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+		if(stream.reset)
+			throw new IOException("Stream was reset");
+
+		if(length == 0) {
+			if(endStream)
+				this.writeFrame(Http2Frame.TYPE_DATA, Http2Frame.FLAG_END_STREAM, stream.id, data, offset, 0);
+			return;
+		}
+
+		while(length > 0) {
+			int allowed = this.acquireWindow(stream, length);
+			boolean last = allowed == length;
+			this.writeFrame(Http2Frame.TYPE_DATA, last && endStream ? Http2Frame.FLAG_END_STREAM : 0, stream.id, data, offset, allowed);
+			offset += allowed;
+			length -= allowed;
+			stream.bytesSent += allowed;
+		}
+	}
+
+	// Blocks until the peer's flow control windows allow sending data
+	private int acquireWindow(Stream stream, int length) throws IOException {
+		int timeout = server.getOptions().getReadTimeout();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		synchronized(flowLock) {
+			while(sendWindow <= 0 || stream.sendWindow <= 0) {
+				if(closed || stream.reset)
+					throw new IOException("Stream closed");
+
+				long remaining = deadline - System.nanoTime();
+				if(timeout > 0 && remaining <= 0)
+					throw new SocketTimeoutException("Timed out waiting for flow control window");
+
+				try {
+					flowLock.wait(timeout > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)) : 0);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for flow control window");
+				}
+			}
+
+			int allowed = (int) Math.min(Math.min(length, peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+			sendWindow -= allowed;
+			stream.sendWindow -= allowed;
+			return allowed;
+		}
+	}
+
+	private void resetStream(int streamId, int errorCode) throws IOException {
+		Stream stream = streams.remove(streamId);
+		if(stream != null)
+			this.cancel(stream);
+
+		byte[] payload = new byte[4];
+		Http2Frame.writeInt(payload, 0, errorCode);
+		this.writeFrame(Http2Frame.TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+	}
+
+	private void cancel(Stream stream) {
+		stream.reset = true;
+		CompletableFuture<Response> pendingResponse = stream.pendingResponse;
+		if(pendingResponse != null)
+			pendingResponse.cancel(false);
+
+		synchronized(flowLock) {
+			flowLock.notifyAll();
+		}
+	}
+
+	private void closeStream(Stream stream) {
+		// A stream whose body was rejected stays open until the client ends it, so the rest of the body is ignored
+		if(stream.bodyRejected) {
+			stream.responded = true;
+			if(!stream.remoteEnded)
+				return;
+		}
+
+		streams.remove(stream.id);
+		if(stream.request != null)
+			stream.request.releaseParts();
+		synchronized(streams) {
+			streams.notifyAll();
+		}
+	}
+
+	private void awaitStreams() {
+		long deadline = System.currentTimeMillis() + Math.max(server.getOptions().getHandlerTimeout(), 1000);
+		synchronized(streams) {
+			long remaining;
+			while(!streams.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					streams.wait(remaining);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void sendSettings() throws IOException {
+		byte[] payload = new byte[12];
+		this.writeSetting(payload, 0, Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		this.writeSetting(payload, 6, Http2Frame.SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+		this.writeFrame(Http2Frame.TYPE_SETTINGS, 0, 0, payload, 0, payload.length);
+	}
+
+	private void writeSetting(byte[] payload, int offset, int id, int value) {
+		payload[offset] = (byte) (id >>> 8);
+		payload[offset + 1] = (byte) id;
+		Http2Frame.writeInt(payload, offset + 2, value);
+	}
+
+	private void sendWindowUpdate(int streamId, int increment) throws IOException {
+		byte[] payload = new byte[4];
+		Http2Frame.writeInt(payload, 0, increment);
+		this.writeFrame(Http2Frame.TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+	}
+
+	private void goAway(int errorCode, String message) {
+		byte[] debugData = message != null ? message.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		byte[] payload = new byte[8 + debugData.length];
+		Http2Frame.writeInt(payload, 0, lastStreamId);
+		Http2Frame.writeInt(payload, 4, errorCode);
+		System.arraycopy(debugData, 0, payload, 8, debugData.length);
+
+		try {
+			this.writeFrame(Http2Frame.TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+		} catch (IOException ignored) {
+			// the connection is closed right after anyway
+		}
+	}
+
+	private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+		synchronized(writeLock) {
+			this.writeFrameUnflushed(type, flags, streamId, payload, offset, length);
+			out.flush();
+		}
+	}
+
+	private void writeFrameUnflushed(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+		if(closed)
+			throw new IOException("Connection closed");
+
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(type);
+		out.write(flags);
+		out.write(streamId >>> 24);
+		out.write(streamId >>> 16);
+		out.write(streamId >>> 8);
+		out.write(streamId);
+		out.write(payload, offset, length);
+	}
+
+	private void readFrameFully(byte[] buffer, int offset, int length) throws IOException {
+		while(length > 0) {
+			int read = in.read(buffer, offset, length);
+			if(read == -1)
+				throw new EOFException("Connection closed in the middle of a frame");
+			offset += read;
+			length -= read;
+		}
+	}
+
+	private boolean readFully(byte[] buffer, int length) throws IOException {
+		int total = 0;
+		while(total < length) {
+			int read = in.read(buffer, total, length - total);
+			if(read == -1) {
+				if(total == 0)
+					return false;
+				throw new EOFException("Connection closed in the middle of a frame");
+			}
+			total += read;
+		}
+		return true;
+	}
+
+	private void close() {
+		synchronized(writeLock) {
+			HttpUtils.close(out);
+			this.closed = true;
+		}
+
+		for(Stream stream : streams.values()) {
+			this.cancel(stream);
+		}
+		streams.clear();
+	}
+
+	private class Stream {
+
+		private final int id;
+		private final long startNanos = System.nanoTime();
+		private Request request;
+		private RequestTrace trace;
+		private ByteArrayOutputStream body;
+		private volatile CompletableFuture<Response> pendingResponse;
+		private volatile boolean reset;
+		private volatile boolean bodyRejected;
+		private volatile boolean headersSent;
+		private volatile boolean responded;
+		private volatile boolean remoteEnded;
+
+		// only accessed by the reading thread
+		private boolean remoteClosed;
+		private long contentLength = -1;
+		private long bodySize;
+		private boolean discardBody;
+		private int receiveWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+		private int receiveUnacked;
+
+		// guarded by flowLock
+		private long sendWindow;
+
+		// only accessed by the thread sending the response
+		private long bytesSent;
+
+		private Stream(int id) {
+			this.id = id;
+			synchronized(flowLock) {
+				this.sendWindow = peerInitialWindowSize;
+			}
+		}
+
+	}
+
+	/**
+	 * Splits a response body into DATA frames, buffering small writes
+	 * into frames of up to 16KB.
+	 */
+	private class DataOutputStream extends OutputStream {
+
+		private final Stream stream;
+		private final boolean detached;
+		private byte[] buffer = BufferPool.getDefault().acquire(BufferPool.LARGE);
+		private final int frameSize = Math.min(BufferPool.LARGE, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+		private int count;
+
+		private DataOutputStream(Stream stream, boolean detached) {
+			this.stream = stream;
+			this.detached = detached;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(count == frameSize)
+				this.flushBuffer(false);
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				if(count == frameSize)
+					this.flushBuffer(false);
+
+				int chunk = Math.min(len, frameSize - count);
+				System.arraycopy(b, off, buffer, count, chunk);
+				count += chunk;
+				off += chunk;
+				len -= chunk;
+			}
+		}
+
+		private void flushBuffer(boolean endStream) throws IOException {
+			sendData(stream, buffer, 0, count, endStream);
+			count = 0;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(count > 0)
+				this.flushBuffer(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!detached) {
+				this.flushBuffer(true);
+				return;
+			}
+
+			// A detached body owns the stream, so closing ends it
+			synchronized(this) {
+				if(buffer == null)
+					return;
+				try {
+					if(!stream.reset && !closed)
+						this.flushBuffer(true);
+				} finally {
+					this.release();
+					closeStream(stream);
+				}
+			}
+		}
+
+		private void release() {
+			BufferPool.getDefault().release(buffer);
+			this.buffer = null;
+		}
+
+	}
+
+}
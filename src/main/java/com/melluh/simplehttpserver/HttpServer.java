@@ -5,9 +5,16 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLServerSocket;
+
 import com.melluh.simplehttpserver.protocol.Status;
 import com.melluh.simplehttpserver.response.Response;
 
@@ -15,11 +22,23 @@ public class HttpServer {
 	
 	public static final Logger LOGGER = Logger.getLogger("HTTPServer");
 	
+	private static final long TIMEOUT_TICK_MILLIS = 100;
+	
 	private final int port;
 	private boolean parseCookies = true;
+	private ServerOptions options = new ServerOptions();
+	private TlsOptions tls;
+	private RateLimiter connectionRateLimit;
+	private AccessLog accessLog;
+	private RequestTracer tracer;
 
 	private final List<RequestHandler> requestHandlers = new ArrayList<>();
+	private final List<Interceptor> interceptors = new ArrayList<>();
+	private volatile RequestHandler[] handlerChain = new RequestHandler[0];
+	private volatile Interceptor[] interceptorChain = new Interceptor[0];
+	private final ServerMetrics metrics = new ServerMetrics();
 	private ClientHandler clientHandler;
+	private TimeoutWheel timeoutWheel;
 	
 	/**
 	 * Creates a new HTTP server, running on the
@@ -42,6 +61,73 @@ public class HttpServer {
 		return this;
 	}
 	
+	/**
+	 * Sets the socket and connection options used for accepted connections.
+	 * This must be called before the server is started.
+	 * 
+	 * @param options the options
+	 * @return a reference to this, so the API can be used fluently
+	 * @see ServerOptions
+	 */
+	public HttpServer options(ServerOptions options) {
+		Objects.requireNonNull(options, "options is missing");
+		this.options = options;
+		return this;
+	}
+	
+	/**
+	 * Enables TLS, so the server accepts HTTPS connections only.
+	 * This must be called before the server is started.
+	 * 
+	 * @param tls the TLS options
+	 * @return a reference to this, so the API can be used fluently
+	 * @see TlsOptions
+	 */
+	public HttpServer tls(TlsOptions tls) {
+		Objects.requireNonNull(tls, "tls is missing");
+		this.tls = tls;
+		return this;
+	}
+	
+	/**
+	 * Limits the rate of new connections per remote address. Connections over the limit
+	 * are closed right after they are accepted, before anything is read from them.
+	 * Only the rate and the maximum number of keys of the limiter are used.
+	 * 
+	 * @param connectionRateLimit the rate limiter, or null to not limit connections
+	 * @return a reference to this, so the API can be used fluently
+	 * @see RateLimiter
+	 */
+	public HttpServer connectionRateLimit(RateLimiter connectionRateLimit) {
+		this.connectionRateLimit = connectionRateLimit;
+		return this;
+	}
+	
+	/**
+	 * Sets the access log, which records a line for every response sent.
+	 * The log has to be started before it records anything.
+	 * 
+	 * @param accessLog the access log, or null to not log responses
+	 * @return a reference to this, so the API can be used fluently
+	 * @see AccessLog
+	 */
+	public HttpServer accessLog(AccessLog accessLog) {
+		this.accessLog = accessLog;
+		return this;
+	}
+	
+	/**
+	 * Sets the tracer, which is called as every request passes through its phases.
+	 * 
+	 * @param tracer the tracer, or null to not trace requests
+	 * @return a reference to this, so the API can be used fluently
+	 * @see SlowRequestSampler
+	 */
+	public HttpServer tracer(RequestTracer tracer) {
+		this.tracer = tracer;
+		return this;
+	}
+	
 	/**
 	 * Starts the server.
 	 * 
@@ -49,11 +135,22 @@ public class HttpServer {
 	 * @throws IOException if an error occurs opening the socket server
 	 */
 	public HttpServer start() throws IOException {
-		this.clientHandler = new ClientHandler();
+		this.clientHandler = new ClientHandler(options);
+		this.timeoutWheel = new TimeoutWheel(TIMEOUT_TICK_MILLIS).start();
+		
+		ServerSocket socket;
+		if(tls != null) {
+			SSLServerSocket sslSocket = (SSLServerSocket) tls.createContext().getServerSocketFactory().createServerSocket();
+			tls.apply(sslSocket, options.isHttp2());
+			socket = sslSocket;
+		} else {
+			socket = new ServerSocket();
+		}
 		
-		ServerSocket socket = new ServerSocket();
 		socket.setReuseAddress(true);
-		socket.bind(new InetSocketAddress(port));
+		if(options.getReceiveBufferSize() > 0)
+			socket.setReceiveBufferSize(options.getReceiveBufferSize()); // must be set before bind to allow windows > 64KB
+		socket.bind(new InetSocketAddress(port), options.getBacklog());
 		SocketListener socketListener = new SocketListener(this, socket);
 		
 		Thread thread = new Thread(socketListener);
@@ -63,24 +160,101 @@ public class HttpServer {
 		return this;
 	}
 	
-	protected Response handleRequest(Request request) {
+	protected CompletableFuture<Response> handleRequest(Request request) {
+		Interceptor[] interceptors = this.interceptorChain;
+		int entered = 0;
+		Response resp = null;
+		try {
+			while(resp == null && entered < interceptors.length) {
+				resp = interceptors[entered++].before(request);
+			}
+		} catch (Exception ex) {
+			LOGGER.log(Level.SEVERE, "Error in interceptor", ex);
+			resp = new Response(Status.INTERNAL_SERVER_ERROR);
+		}
+		
+		if(resp != null)
+			return CompletableFuture.completedFuture(this.applyAfter(interceptors, entered, request, resp));
+		
+		CompletableFuture<Response> future = this.callHandlers(request, 0);
+		if(future.isDone())
+			return CompletableFuture.completedFuture(this.applyAfter(interceptors, entered, request, future.join()));
+		
+		int finalEntered = entered;
+		CompletableFuture<Response> result = future.thenApply(asyncResp -> this.applyAfter(interceptors, finalEntered, request, asyncResp));
+		result.whenComplete((asyncResp, ex) -> future.cancel(false));
+		return result;
+	}
+	
+	private Response applyAfter(Interceptor[] interceptors, int entered, Request request, Response resp) {
+		for(int i = entered - 1; i >= 0; i--) {
+			try {
+				Response result = interceptors[i].after(request, resp);
+				if(result != null)
+					resp = result;
+			} catch (Exception ex) {
+				LOGGER.log(Level.SEVERE, "Error in interceptor", ex);
+				resp = new Response(Status.INTERNAL_SERVER_ERROR);
+			}
+		}
+		return resp;
+	}
+	
+	private CompletableFuture<Response> callHandlers(Request request, int index) {
+		RequestHandler[] handlers = this.handlerChain;
 		Response resp = null;
 		try {
-			for(RequestHandler handler : requestHandlers) {
-				resp = handler.serve(request);
-				if(resp != null)
-					break;
+			for(int i = index; i < handlers.length; i++) {
+				RequestHandler handler = handlers[i];
+				if(!(handler instanceof AsyncRequestHandler)) {
+					resp = handler.serve(request);
+					if(resp != null)
+						break;
+					continue;
+				}
+				
+				CompletionStage<Response> stage = ((AsyncRequestHandler) handler).serveAsync(request);
+				if(stage == null)
+					continue;
+				
+				CompletableFuture<Response> future = stage.toCompletableFuture();
+				if(future.isDone() && !future.isCompletedExceptionally()) {
+					resp = future.getNow(null);
+					if(resp != null)
+						break;
+					continue;
+				}
+				
+				int next = i + 1;
+				CompletableFuture<Response> result = future
+						.thenCompose(asyncResp -> asyncResp != null ? CompletableFuture.completedFuture(asyncResp) : this.callHandlers(request, next))
+						.exceptionally(this::handleAsyncError);
+				
+				// Cancels the handler if the result was completed from the outside, e.g. by a timeout
+				result.whenComplete((asyncResp, ex) -> future.cancel(false));
+				return result;
 			}
 		} catch (Exception ex) {
 			LOGGER.log(Level.SEVERE, "Error in request handler", ex);
-			return new Response(Status.INTERNAL_SERVER_ERROR);
+			return CompletableFuture.completedFuture(new Response(Status.INTERNAL_SERVER_ERROR));
 		}
 		
 		if(resp == null) {
 			resp = new Response(Status.NOT_FOUND);
 		}
 		
-		return resp;
+		return CompletableFuture.completedFuture(resp);
+	}
+	
+	private Response handleAsyncError(Throwable ex) {
+		if(ex instanceof CompletionException && ex.getCause() != null)
+			ex = ex.getCause();
+		
+		if(ex instanceof CancellationException)
+			return new Response(Status.SERVICE_UNAVAILABLE);
+		
+		LOGGER.log(Level.SEVERE, "Error in request handler", ex);
+		return new Response(Status.INTERNAL_SERVER_ERROR);
 	}
 	
 	/**
@@ -92,6 +266,24 @@ public class HttpServer {
 		return clientHandler;
 	}
 	
+	/**
+	 * Returns the timeout wheel used to track connection deadlines.
+	 * 
+	 * @return the timeout wheel
+	 */
+	public TimeoutWheel getTimeoutWheel() {
+		return timeoutWheel;
+	}
+	
+	/**
+	 * Returns the metrics of this server.
+	 * 
+	 * @return the metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/**
 	 * Returns the the port the server is listening on.
 	 * 
@@ -101,6 +293,51 @@ public class HttpServer {
 		return port;
 	}
 	
+	/**
+	 * Returns the TLS options of this server.
+	 * 
+	 * @return the TLS options, or null if TLS is not enabled
+	 */
+	public TlsOptions getTls() {
+		return tls;
+	}
+	
+	/**
+	 * Returns the socket and connection options of this server.
+	 * 
+	 * @return the options
+	 */
+	public ServerOptions getOptions() {
+		return options;
+	}
+	
+	/**
+	 * Returns the rate limiter for new connections.
+	 * 
+	 * @return the rate limiter, or null if connections are not limited
+	 */
+	public RateLimiter getConnectionRateLimit() {
+		return connectionRateLimit;
+	}
+	
+	/**
+	 * Returns the access log.
+	 * 
+	 * @return the access log, or null if responses are not logged
+	 */
+	public AccessLog getAccessLog() {
+		return accessLog;
+	}
+	
+	/**
+	 * Returns the tracer.
+	 * 
+	 * @return the tracer, or null if requests are not traced
+	 */
+	public RequestTracer getTracer() {
+		return tracer;
+	}
+	
 	/**
 	 * Returns whether cookie parsing is enabled.
 	 * 
@@ -112,8 +349,66 @@ public class HttpServer {
 
 	public HttpServer use(RequestHandler handler) {
 		requestHandlers.add(handler);
+		this.buildChains();
+		return this;
+	}
+	
+	/**
+	 * Adds an interceptor, which is called around the request handlers
+	 * for every request.
+	 * 
+	 * @param interceptor the interceptor
+	 * @return a reference to this, so the API can be used fluently
+	 * @see Interceptor
+	 */
+	public HttpServer intercept(Interceptor interceptor) {
+		Objects.requireNonNull(interceptor, "interceptor is missing");
+		interceptors.add(interceptor);
+		this.buildChains();
+		return this;
+	}
+	
+	// Handlers are kept in arrays, so dispatching a request is a flat walk without any iterators
+	private synchronized void buildChains() {
+		this.handlerChain = requestHandlers.toArray(new RequestHandler[0]);
+		this.interceptorChain = interceptors.toArray(new Interceptor[0]);
+	}
+	
+	/**
+	 * Adds an asynchronous request handler. Handlers are called in the order
+	 * they were added, regardless of whether they are synchronous or not.
+	 * 
+	 * @param handler the handler
+	 * @return a reference to this, so the API can be used fluently
+	 * @see AsyncRequestHandler
+	 */
+	public HttpServer useAsync(AsyncRequestHandler handler) {
+		Objects.requireNonNull(handler, "handler is missing");
+		requestHandlers.add(new AsyncHandlerAdapter(handler));
+		this.buildChains();
 		return this;
 	}
+	
+	private static class AsyncHandlerAdapter implements RequestHandler, AsyncRequestHandler {
+		
+		private final AsyncRequestHandler handler;
+		
+		private AsyncHandlerAdapter(AsyncRequestHandler handler) {
+			this.handler = handler;
+		}
+		
+		@Override
+		public CompletionStage<Response> serveAsync(Request request) {
+			return handler.serveAsync(request);
+		}
+		
+		@Override
+		public Response serve(Request request) {
+			CompletionStage<Response> stage = handler.serveAsync(request);
+			return stage != null ? stage.toCompletableFuture().join() : null;
+		}
+		
+	}
 
 	
 }
@@ -2,32 +2,46 @@ package com.melluh.simplehttpserver;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 import java.util.Locale;
 import java.util.logging.Level;
 
+import com.melluh.simplehttpserver.files.FileMetadata;
+import com.melluh.simplehttpserver.files.StaticRoot;
+import com.melluh.simplehttpserver.protocol.ByteRange;
+import com.melluh.simplehttpserver.protocol.HttpHeader;
+import com.melluh.simplehttpserver.protocol.Method;
 import com.melluh.simplehttpserver.protocol.MimeType;
 import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.protocol.UrlDecoder;
 import com.melluh.simplehttpserver.response.Response;
-import com.melluh.simplehttpserver.response.StreamResponseBody;
+import com.melluh.simplehttpserver.response.FileResponseBody;
+import com.melluh.simplehttpserver.response.MultipartRangeResponseBody;
 
 public class HttpUtils {
 
 	private HttpUtils() {}
 	
+	/**
+	 * Decodes a percent-encoded path as UTF-8. A <code>+</code> is kept as it is.
+	 * 
+	 * @param str the encoded path
+	 * @return the decoded path
+	 * @see UrlDecoder
+	 */
 	public static String decodePercent(String str) {
-		try {
-			return URLDecoder.decode(str, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException("UTF-8 not supported on system");
-		}
+		return UrlDecoder.decodePath(str);
 	}
 	
 	private static final DateTimeFormatter HTTP_TIME_FORMATTER = DateTimeFormatter
@@ -51,67 +65,234 @@ public class HttpUtils {
 		}
 	}
 	
+	/**
+	 * Serves a file, with support for conditional and range requests.
+	 *
+	 * @param request the request
+	 * @param file the file
+	 * @return the response
+	 * @throws IOException if the file does not exist or can't be read
+	 */
 	public static Response serveFile(Request request, File file) throws IOException {
-		String mimeType = MimeType.getMimeType(file.getName());
-		String lastModified = getFormattedTime(file.lastModified());
-		String etag = getETag(file);
-		
-		long from = -1;
-		long to = -1;
-		
-		String ifRange = request.getHeader("if-range");
-		boolean ifRangeMatches = ifRange == null || ifRange.equals(etag);
+		return serveFile(request, FileMetadata.read(file));
+	}
+	
+	/**
+	 * Serves a file using metadata that is already known, such as from a {@link StaticRoot}.
+	 * Conditional requests are answered from the metadata alone, without touching the disk.
+	 * If the opened file no longer matches the metadata, because it was written since,
+	 * it is served using its current metadata instead.
+	 *
+	 * @param request the request
+	 * @param metadata the file metadata
+	 * @return the response
+	 * @throws IOException if the file can't be read
+	 */
+	public static Response serveFile(Request request, FileMetadata metadata) throws IOException {
+		if(isNotModified(request, metadata.getETag(), metadata.getLastModified()))
+			return notModified(metadata);
 		
-		String range = request.getHeader("range");
-		if(range != null && range.startsWith("bytes=") && ifRangeMatches) {
-			range = range.substring("bytes=".length());
-			int minusIndex = range.indexOf('-');
-			if(minusIndex >= 0) {
-				try {
-					from = Long.parseLong(range.substring(0, minusIndex));
-					to = Long.parseLong(range.substring(minusIndex + 1));
-				} catch (NumberFormatException ignored) {}
+		Path path = metadata.getFile().toPath();
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			// A content hash belongs to the version that was indexed, which may not be the one that was opened
+			if(channel.size() != metadata.getLength() || Files.getLastModifiedTime(path).toMillis() != metadata.getLastModified()) {
+				metadata = FileMetadata.read(metadata.getFile());
+				if(isNotModified(request, metadata.getETag(), metadata.getLastModified())) {
+					channel.close();
+					return notModified(metadata);
+				}
 			}
+			
+			String mimeType = metadata.getMimeType();
+			long lastModifiedTime = metadata.getLastModified();
+			String lastModified = getFormattedTime(lastModifiedTime);
+			String etag = metadata.getETag();
+			long fileLength = metadata.getLength();
+			
+			// Ranges only apply to GET, and are ignored if the file changed since the client's copy
+			String range = request.getHeader("range");
+			List<ByteRange> ranges = null;
+			if(range != null && (request.getMethod() == Method.GET || request.getMethod() == Method.HEAD)
+					&& ifRangeMatches(request.getHeader("if-range"), etag, lastModifiedTime)) {
+				ranges = ByteRange.parse(range, fileLength);
+			}
+			
+			if(ranges != null && ranges.isEmpty()) {
+				channel.close();
+				return new Response(Status.RANGE_NOT_SATISFIABLE)
+						.header("content-range", "bytes */" + fileLength)
+						.header("accept-ranges", "bytes");
+			}
+			
+			Response response = new Response(ranges != null ? Status.PARTIAL_CONTENT : Status.OK)
+					.header("last-modified", lastModified)
+					.header("accept-ranges", "bytes")
+					.header("cache-control", "private, max-age=3600")
+					.header("etag", etag);
+			
+			if(ranges == null)
+				return response.header("content-type", mimeType).body(new FileResponseBody(channel, 0, fileLength));
+			
+			if(ranges.size() == 1) {
+				ByteRange single = ranges.get(0);
+				return response.header("content-type", mimeType)
+						.header("content-range", single.toContentRange(fileLength))
+						.body(new FileResponseBody(channel, single.getStart(), single.getLength()));
+			}
+			
+			MultipartRangeResponseBody body = new MultipartRangeResponseBody(channel, ranges, mimeType, fileLength);
+			return response.header("content-type", body.getContentType()).body(body);
+		} catch (IOException | RuntimeException ex) {
+			close(channel);
+			throw ex;
 		}
+	}
+	
+	private static Response notModified(FileMetadata metadata) {
+		return new Response(Status.NOT_MODIFIED)
+				.header("etag", metadata.getETag())
+				.header("last-modified", getFormattedTime(metadata.getLastModified()))
+				.header("cache-control", "private, max-age=3600");
+	}
+	
+	// If-None-Match takes precedence, If-Modified-Since is only a fallback for clients without the entity tag
+	private static boolean isNotModified(Request request, String etag, long lastModified) {
+		if(request.getMethod() != Method.GET && request.getMethod() != Method.HEAD)
+			return false;
 		
 		String ifNoneMatch = request.getHeader("if-none-match");
-		if(ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.equals(etag))) {
-			return new Response(Status.NOT_MODIFIED)
-					.header("etag", etag);
-		}
+		if(ifNoneMatch != null)
+			return ifNoneMatch.trim().equals("*") || matchesETag(ifNoneMatch, etag);
 		
-		long fileLength = file.length();
-		if(from >= 0 && from < fileLength) {
-			if(to < 0) {
-				to = fileLength - 1;
+		String ifModifiedSince = request.getHeader("if-modified-since");
+		if(ifModifiedSince == null)
+			return false;
+		long date = parseTime(ifModifiedSince);
+		return date >= 0 && lastModified / 1000 <= date / 1000;
+	}
+	
+	// An If-Range header holds either an entity tag, which must match strongly, or an exact date
+	private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+		if(ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if(ifRange.startsWith("W/"))
+			return false;
+		if(ifRange.startsWith("\""))
+			return ifRange.equals(etag);
+		
+		long date = parseTime(ifRange);
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+	
+	/**
+	 * Checks if a list of entity tags, such as in <code>If-None-Match</code>, contains a tag.
+	 * Tags are compared weakly, so <code>W/"abc"</code> matches <code>"abc"</code>.
+	 *
+	 * @param header the header value
+	 * @param etag the entity tag, including the quotes
+	 * @return whether the tag is in the list
+	 */
+	public static boolean matchesETag(String header, String etag) {
+		int etagLength = etag.length();
+		int i = 0;
+		int length = header.length();
+		while(i < length) {
+			char c = header.charAt(i);
+			if(c == ' ' || c == '\t' || c == ',') {
+				i++;
+				continue;
 			}
+			if(c == 'W' && header.startsWith("W/", i))
+				i += 2;
 			
-			long newLength = to - from + 1;
-			FileInputStream in = new FileInputStream(file);
-			in.skip(from);
+			if(header.regionMatches(i, etag, 0, etagLength) && (i + etagLength == length || header.charAt(i + etagLength) == ',' || header.charAt(i + etagLength) == ' '))
+				return true;
 			
-			return new Response(Status.PARTIAL_CONTENT)
-					.header("content-type", mimeType)
-					.header("last-modified", lastModified)
-					.header("accept-ranges", "bytes")
-					.header("content-range", "bytes " + from + "-" + to + "/" + fileLength)
-					.header("cache-control", "private, max-age=3600")
-					.header("etag", etag)
-					.body(new StreamResponseBody(in, newLength));
+			// Skip to the next tag
+			int comma = header.indexOf(',', i);
+			if(comma < 0)
+				return false;
+			i = comma + 1;
 		}
+		return false;
+	}
+	
+	/**
+	 * Parses an HTTP date, as sent in headers such as <code>If-Modified-Since</code>.
+	 *
+	 * @param str the date string
+	 * @return the timestamp in milliseconds, or -1 if the string is not a valid date
+	 */
+	public static long parseTime(String str) {
+		try {
+			return ZonedDateTime.parse(str.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Checks if a comma separated header value, such as <code>Connection</code>
+	 * or <code>Upgrade</code>, contains a token. Tokens are compared case-insensitively.
+	 *
+	 * @param value the header value, may be null
+	 * @param token the token to look for
+	 * @return whether the token is present
+	 */
+	public static boolean containsToken(String value, String token) {
+		if(value == null)
+			return false;
 		
-		FileInputStream in = new FileInputStream(file);
-		return new Response(Status.OK)
-				.header("content-type", mimeType)
-				.header("last-modified", lastModified)
-				.header("accept-ranges", "bytes")
-				.header("cache-control", "private, max-age=3600")
-				.header("etag", etag)
-				.body(new StreamResponseBody(in, fileLength));
+		for(String part : value.split(",")) {
+			if(part.trim().equalsIgnoreCase(token))
+				return true;
+		}
+		return false;
 	}
 	
-	private static String getETag(File file) {
-		return Integer.toHexString((file.getAbsolutePath() + file.lastModified() + file.length()).hashCode());
+	/**
+	 * Checks if a header only applies to a single HTTP/1.1 connection,
+	 * and must not be forwarded or sent over HTTP/2.
+	 *
+	 * @param name the lowercase header name
+	 * @return whether the header is connection-specific
+	 */
+	public static boolean isConnectionSpecificHeader(String name) {
+		switch(name) {
+			case HttpHeader.CONNECTION:
+			case HttpHeader.UPGRADE:
+			case HttpHeader.HTTP2_SETTINGS:
+			case "keep-alive":
+			case "proxy-connection":
+			case "transfer-encoding":
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * Checks a request for headers that are repeated with values that disagree.
+	 * Servers and proxies on the way could each pick a different one, which can be
+	 * used to smuggle requests, so such requests must be rejected.
+	 * 
+	 * @param request the request
+	 * @return the reason to reject the request, or null if its headers are consistent
+	 */
+	public static String findConflictingHeaders(Request request) {
+		List<String> lengths = request.getHeaderValues(HttpHeader.CONTENT_LENGTH);
+		for(String length : lengths) {
+			if(length.isEmpty() || !length.chars().allMatch(c -> c >= '0' && c <= '9'))
+				return "Invalid content-length";
+			if(!length.equals(lengths.get(0)))
+				return "Conflicting content-length headers";
+		}
+		
+		if(request.getHeaderValues(HttpHeader.HOST).size() > 1)
+			return "Multiple host headers";
+		return null;
 	}
 	
 	public static int safeParseInt(String str) {
@@ -122,4 +303,12 @@ public class HttpUtils {
 		}
 	}
 	
+	public static long safeParseLong(String str) {
+		try {
+			return Long.parseLong(str);
+		} catch (NumberFormatException ignored) {
+			return -1;
+		}
+	}
+	
 }
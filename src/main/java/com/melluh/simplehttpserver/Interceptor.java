@@ -0,0 +1,44 @@
+package com.melluh.simplehttpserver;
+
+import com.melluh.simplehttpserver.response.FilterResponseBody;
+import com.melluh.simplehttpserver.response.Response;
+
+/**
+ * Intercepts every request to a server, around its request handlers. This is
+ * meant for concerns that apply to all handlers, such as authentication,
+ * compression or metrics.
+ * 
+ * <br><br>
+ * Interceptors run in two phases. Before the handlers, {@link #before(Request)}
+ * is called on every interceptor in the order they were added, until one of them
+ * returns a response. After a response was produced, {@link #after(Request, Response)}
+ * is called on the same interceptors in reverse order.
+ * 
+ * @see HttpServer#intercept(Interceptor)
+ */
+public interface Interceptor {
+
+	/**
+	 * Called before the request is passed to the request handlers.
+	 * Returning a response skips the handlers and the remaining interceptors.
+	 * 
+	 * @param request the request
+	 * @return a response to short-circuit the request, or null to continue
+	 */
+	default Response before(Request request) {
+		return null;
+	}
+	
+	/**
+	 * Called after a response was produced, before it is sent. The response can
+	 * be modified, replaced, or have its body wrapped using a {@link FilterResponseBody}.
+	 * 
+	 * @param request the request
+	 * @param response the response
+	 * @return the response to send, or null to keep the current response
+	 */
+	default Response after(Request request, Response response) {
+		return response;
+	}
+	
+}
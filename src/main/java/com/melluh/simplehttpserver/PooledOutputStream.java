@@ -0,0 +1,102 @@
+package com.melluh.simplehttpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered output stream backed by a pooled buffer. Small writes, such as the
+ * response head and small bodies, are coalesced into a single write to the
+ * underlying stream. Writes larger than the buffer bypass it.
+ *
+ * <br><br>
+ * Closing this stream flushes it and returns the buffer to the pool,
+ * without closing the underlying stream.
+ */
+class PooledOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final BufferPool pool;
+	private byte[] buffer;
+	private int count;
+
+	PooledOutputStream(OutputStream out, BufferPool pool) {
+		this.out = out;
+		this.pool = pool;
+		this.buffer = pool.acquire(BufferPool.SMALL);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(count == buffer.length)
+			this.flushBuffer();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(len >= buffer.length) {
+			this.flushBuffer();
+			out.write(b, off, len);
+			return;
+		}
+
+		if(len > buffer.length - count)
+			this.flushBuffer();
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Writes a string, encoding each character as a single byte (ISO-8859-1),
+	 * without creating an intermediate byte array.
+	 *
+	 * @param str the string to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	void writeLatin1(String str) throws IOException {
+		int length = str.length();
+		for(int i = 0; i < length; i++) {
+			if(count == buffer.length)
+				this.flushBuffer();
+
+			char c = str.charAt(i);
+			buffer[count++] = c < 256 ? (byte) c : (byte) '?';
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written to the buffer, but not yet to the underlying stream.
+	 *
+	 * @return the number of buffered bytes
+	 */
+	int getBufferedCount() {
+		return count;
+	}
+
+	private void flushBuffer() throws IOException {
+		if(count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this.flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(buffer == null)
+			return;
+
+		try {
+			this.flush();
+		} finally {
+			pool.release(buffer);
+			this.buffer = null;
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.melluh.simplehttpserver;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.melluh.simplehttpserver.protocol.HttpHeader;
+import com.melluh.simplehttpserver.protocol.MimeType;
+import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.response.Response;
+
+/**
+ * Limits the rate of requests per client, answering requests over the limit with
+ * <code>429 Too Many Requests</code> and a <code>Retry-After</code> header. Every
+ * client has a token bucket, which holds up to <code>burst</code> tokens and is
+ * refilled at a steady rate. Requests are keyed on the remote address by default:
+ * <pre>
+ * server.intercept(new RateLimiter(10, 20));
+ * server.intercept(new RateLimiter(1, 5).path("/login"));
+ * server.intercept(new RateLimiter(100, 100).keyedByHeader("x-api-key"));
+ * </pre>
+ *
+ * <br><br>
+ * Each bucket is a single atomic timestamp, the time at which it will be full again,
+ * so taking a token is a lock-free compare-and-set without allocating. A bucket that
+ * is full carries no state, so when the number of keys exceeds the limit, full buckets
+ * are dropped first, followed by the least recently used ones.
+ *
+ * @see HttpServer#connectionRateLimit(RateLimiter)
+ */
+public class RateLimiter implements Interceptor {
+
+	private final long intervalNanos;
+	private final long burstNanos;
+	private final Map<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	private Function<Request, Object> keyFunction = Request::getRemoteAddress;
+	private String pathPrefix;
+	private int maxKeys = 100_000;
+
+	/**
+	 * Creates a new rate limiter.
+	 *
+	 * @param permitsPerSecond the steady rate of requests allowed per key
+	 * @param burst the number of requests allowed at once, after a key has been idle
+	 */
+	public RateLimiter(double permitsPerSecond, int burst) {
+		if(permitsPerSecond <= 0)
+			throw new IllegalArgumentException("permitsPerSecond must be positive");
+		if(burst <= 0)
+			throw new IllegalArgumentException("burst must be positive");
+
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.burstNanos = intervalNanos * burst;
+	}
+
+	/**
+	 * Sets how requests are keyed. Requests with the same key share a bucket.
+	 * Keys should not be allocated per request, to keep the limiter allocation-free.
+	 * Requests for which the function returns null are not limited.
+	 *
+	 * @param keyFunction the function returning the key of a request
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public RateLimiter keyedBy(Function<Request, Object> keyFunction) {
+		Objects.requireNonNull(keyFunction, "keyFunction is missing");
+		this.keyFunction = keyFunction;
+		return this;
+	}
+
+	/**
+	 * Keys requests on the value of a header, such as an API key.
+	 * Requests without the header are keyed on their remote address.
+	 *
+	 * @param name the name of the header
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public RateLimiter keyedByHeader(String name) {
+		Objects.requireNonNull(name, "name is missing");
+		return this.keyedBy(request -> {
+			String value = request.getHeader(name);
+			return value != null ? value : request.getRemoteAddress();
+		});
+	}
+
+	/**
+	 * Only limits requests whose location starts with a prefix, to give routes
+	 * their own limits. All requests are limited by default.
+	 *
+	 * @param pathPrefix the location prefix, such as <code>/api</code>
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public RateLimiter path(String pathPrefix) {
+		Objects.requireNonNull(pathPrefix, "pathPrefix is missing");
+		this.pathPrefix = pathPrefix;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of keys that are tracked. Defaults to 100,000.
+	 *
+	 * @param maxKeys the maximum number of keys
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public RateLimiter maxKeys(int maxKeys) {
+		if(maxKeys <= 0)
+			throw new IllegalArgumentException("maxKeys must be positive");
+		this.maxKeys = maxKeys;
+		return this;
+	}
+
+	@Override
+	public Response before(Request request) {
+		if(pathPrefix != null && !request.getLocation().startsWith(pathPrefix))
+			return null;
+
+		Object key = keyFunction.apply(request);
+		if(key == null)
+			return null;
+
+		long waitNanos = this.tryAcquire(key);
+		if(waitNanos == 0)
+			return null;
+
+		request.getServer().getMetrics().requestRateLimited();
+		long retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+		return new Response(Status.TOO_MANY_REQUESTS)
+				.header(HttpHeader.RETRY_AFTER, Long.toString(retryAfter))
+				.contentType(MimeType.PLAIN_TEXT)
+				.body("Too many requests");
+	}
+
+	/**
+	 * Takes a token from the bucket of a key.
+	 *
+	 * @param key the key
+	 * @return 0 if a token was taken, otherwise the number of nanoseconds until one is available
+	 */
+	public long tryAcquire(Object key) {
+		long now = System.nanoTime();
+		AtomicLong bucket = buckets.get(key);
+		if(bucket == null)
+			bucket = this.addBucket(key, now);
+
+		while(true) {
+			long full = bucket.get();
+			long next = (full - now > 0 ? full : now) + intervalNanos;
+			long waitNanos = next - now - burstNanos;
+			if(waitNanos > 0)
+				return waitNanos;
+			if(bucket.compareAndSet(full, next))
+				return 0;
+		}
+	}
+
+	/**
+	 * Returns the number of keys that are tracked.
+	 *
+	 * @return the number of keys
+	 */
+	public int size() {
+		return buckets.size();
+	}
+
+	private AtomicLong addBucket(Object key, long now) {
+		AtomicLong bucket = new AtomicLong(now);
+		AtomicLong existing = buckets.putIfAbsent(key, bucket);
+		if(existing != null)
+			return existing;
+
+		if(buckets.size() > maxKeys && evicting.compareAndSet(false, true)) {
+			try {
+				this.evict(now);
+			} finally {
+				evicting.set(false);
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * Evicts down to three quarters of the maximum, so the cost is spread over many new keys.
+	 * Full buckets are dropped first, as dropping them doesn't change any limits.
+	 */
+	private void evict(long now) {
+		int target = maxKeys - maxKeys / 4;
+		buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+		if(buckets.size() <= target)
+			return;
+
+		// Buckets that will be full soonest were used least recently
+		long[] times = new long[buckets.size()];
+		int count = 0;
+		for(AtomicLong bucket : buckets.values()) {
+			if(count == times.length)
+				break;
+			times[count++] = bucket.get() - now;
+		}
+		Arrays.sort(times, 0, count);
+		long threshold = times[Math.max(0, count - target - 1)];
+
+		for(Iterator<AtomicLong> it = buckets.values().iterator(); it.hasNext() && buckets.size() > target; ) {
+			if(it.next().get() - now <= threshold)
+				it.remove();
+		}
+	}
+
+}
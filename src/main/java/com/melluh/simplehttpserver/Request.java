@@ -1,14 +1,22 @@
 package com.melluh.simplehttpserver;
 
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.melluh.simplehttpserver.ServerClient.ParseException;
+import com.melluh.simplehttpserver.multipart.Part;
+import com.melluh.simplehttpserver.protocol.Headers;
 import com.melluh.simplehttpserver.protocol.HttpHeader;
 import com.melluh.simplehttpserver.protocol.Method;
+import com.melluh.simplehttpserver.protocol.MimeType;
+import com.melluh.simplehttpserver.protocol.Parameters;
 import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.protocol.UrlDecoder;
 
 /**
  * A request from a HTTP client.
@@ -18,18 +26,22 @@ public class Request {
 	private static final int MAX_URI_LENGTH = 2048;
 	
 	private final HttpServer server;
+	private InetAddress remoteAddress;
+	private RequestTrace trace;
 
 	private final Method method;
 	private final String protocolVersion;
 	private String location;
 	private String queryString;
 	
-	private final Map<String, String> headers = new HashMap<>();
-	private Map<String, String> queryParams;
+	private final Headers headers = new Headers();
+	private Parameters queryParams;
+	private Parameters formParams;
 	private Map<String, String> cookies;
 	private Map<String, String> uriParams;
 
 	private byte[] body;
+	private List<Part> parts;
 	
 	protected Request(HttpServer server, Method method, String uri, String protocolVersion) throws ParseException {
 		this.server = server;
@@ -47,53 +59,126 @@ public class Request {
 		
 		int paramsIndex = uri.indexOf('?');
 		if(paramsIndex < 0) {
-			this.location = HttpUtils.decodePercent(uri);
+			this.location = UrlDecoder.decodePath(uri);
 			return;
 		}
 		
-		this.location = HttpUtils.decodePercent(uri.substring(0, paramsIndex));
+		this.location = UrlDecoder.decodePath(uri.substring(0, paramsIndex));
 		this.queryString = uri.substring(paramsIndex + 1);
 	}
 	
 	protected void addHeader(String key, String value) {
-		headers.put(key.toLowerCase(), value);
+		headers.add(key, value);
+	}
+	
+	// Cookies are only parsed once a handler asks for them
+	private Map<String, String> getCookieMap() {
+		if(cookies == null)
+			this.cookies = server.isParseCookies() ? parseCookies(headers.getAll(HttpHeader.COOKIE)) : Collections.emptyMap();
+		return cookies;
+	}
+	
+	/**
+	 * Parses Cookie headers in a single pass, tolerating the variations real clients send:
+	 * any whitespace around names and values, quoted values, and pairs without a value,
+	 * which are skipped. Multiple headers are merged, the first cookie with a name wins.
+	 */
+	private static Map<String, String> parseCookies(List<String> headerValues) {
+		if(headerValues.isEmpty())
+			return Collections.emptyMap();
 		
-		if(key.equalsIgnoreCase(HttpHeader.COOKIE) && server.isParseCookies()) {
-			this.parseCookieHeader(value);
+		Map<String, String> cookies = new HashMap<>();
+		for(String header : headerValues) {
+			int length = header.length();
+			int i = 0;
+			while(i < length) {
+				// Skip separators and whitespace before the name
+				char c = header.charAt(i);
+				if(c == ';' || c == ' ' || c == '\t') {
+					i++;
+					continue;
+				}
+				
+				int pairEnd = header.indexOf(';', i);
+				if(pairEnd < 0)
+					pairEnd = length;
+				
+				// Only search the current pair, pairs without a value would make this quadratic
+				int equalsIndex = i;
+				while(equalsIndex < pairEnd && header.charAt(equalsIndex) != '=')
+					equalsIndex++;
+				if(equalsIndex > i && equalsIndex < pairEnd) {
+					int nameEnd = equalsIndex;
+					while(nameEnd > i && isWhitespace(header.charAt(nameEnd - 1)))
+						nameEnd--;
+					
+					int valueStart = equalsIndex + 1;
+					int valueEnd = pairEnd;
+					while(valueStart < valueEnd && isWhitespace(header.charAt(valueStart)))
+						valueStart++;
+					while(valueEnd > valueStart && isWhitespace(header.charAt(valueEnd - 1)))
+						valueEnd--;
+					if(valueEnd - valueStart >= 2 && header.charAt(valueStart) == '"' && header.charAt(valueEnd - 1) == '"') {
+						valueStart++;
+						valueEnd--;
+					}
+					
+					cookies.putIfAbsent(header.substring(i, nameEnd), header.substring(valueStart, valueEnd));
+				}
+				i = pairEnd + 1;
+			}
 		}
+		return cookies;
 	}
 	
-	private void parseCookieHeader(String header) {
-		this.cookies = new HashMap<>();
-		for(String part : header.split("; ")) {
-			int equalsIndex = part.indexOf('=');
-			if(equalsIndex == -1)
-				break;
-			
-			cookies.put(part.substring(0, equalsIndex), part.substring(equalsIndex + 1));
-		}
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t';
 	}
 
-	private void parseQueryString() {
-		if(queryParams != null)
-			throw new IllegalStateException("Query string already parsed");
-
-		String[] params = queryString.split("&");
-		this.queryParams = new HashMap<>();
-		for(String param : params) {
-			int equalsIndex = param.indexOf('=');
-			if(equalsIndex < 0)
-				continue;
-
-			String key = param.substring(0, equalsIndex);
-			String value = param.substring(equalsIndex + 1);
-			queryParams.put(HttpUtils.decodePercent(key.toLowerCase()), HttpUtils.decodePercent(value));
+	private Parameters getQuery() {
+		if(queryParams == null)
+			this.queryParams = UrlDecoder.parse(queryString, server.getOptions().getMaxParameters());
+		return queryParams;
+	}
+	
+	private Parameters getForm() {
+		if(formParams == null) {
+			String contentType = this.getHeader("content-type");
+			boolean isForm = body != null && contentType != null
+					&& contentType.regionMatches(true, 0, MimeType.FORM_URLENCODED, 0, MimeType.FORM_URLENCODED.length());
+			this.formParams = isForm ? UrlDecoder.parse(new String(body, StandardCharsets.UTF_8), server.getOptions().getMaxParameters()) : Parameters.empty();
 		}
+		return formParams;
+	}
+	
+	protected void setRemoteAddress(InetAddress remoteAddress) {
+		this.remoteAddress = remoteAddress;
+	}
+	
+	protected void setTrace(RequestTrace trace) {
+		this.trace = trace;
 	}
 	
 	protected void setBody(byte[] body) {
 		this.body = body;
 	}
+	
+	protected void setParts(List<Part> parts) {
+		this.parts = parts;
+	}
+	
+	/**
+	 * Method for internal use.
+	 * Deletes the temporary files of the parts, once the response has been sent.
+	 */
+	protected void releaseParts() {
+		List<Part> parts = this.parts;
+		if(parts == null)
+			return;
+		for(Part part : parts) {
+			part.delete();
+		}
+	}
 
 	public void addUriParam(String key, String value) {
 		if(uriParams == null)
@@ -105,6 +190,35 @@ public class Request {
 		return uriParams != null ? uriParams.get(key) : null;
 	}
 	
+	/**
+	 * Returns the server that received this request.
+	 * 
+	 * @return the server
+	 */
+	public HttpServer getServer() {
+		return server;
+	}
+	
+	/**
+	 * Returns the address of the client that sent this request.
+	 * Behind a proxy, this is the address of the proxy.
+	 * 
+	 * @return the remote address
+	 */
+	public InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	/**
+	 * Returns the trace of this request, which records the time spent in every phase.
+	 * 
+	 * @return the trace, or null if the server has no tracer
+	 * @see HttpServer#tracer(RequestTracer)
+	 */
+	public RequestTrace getTrace() {
+		return trace;
+	}
+	
 	/**
 	 * Returns this request's method.
 	 * 
@@ -141,7 +255,19 @@ public class Request {
 	 * @return value of the header, or null if it isn't present
 	 */
 	public String getHeader(String name) {
-		return headers.get(name.toLowerCase());
+		return headers.get(name);
+	}
+	
+	/**
+	 * Returns all values for the specified header, such as for repeated
+	 * <code>Accept</code> or <code>Via</code> headers, in the order they were sent.
+	 * The name is case-insensitive.
+	 * 
+	 * @param name name of the header
+	 * @return an immutable list of the values, empty if it isn't present
+	 */
+	public List<String> getHeaderValues(String name) {
+		return headers.getAll(name);
 	}
 	
 	/**
@@ -153,9 +279,73 @@ public class Request {
 	 * @return value of the query param, or null if it isn't present
 	 */
 	public String getQueryParam(String name) {
-		if(queryParams == null)
-			this.parseQueryString();
-		return queryParams.get(name.toLowerCase());
+		return this.getQuery().get(name);
+	}
+	
+	/**
+	 * Returns all values for the specified query parameter, such as for <code>?tag=a&amp;tag=b</code>.
+	 * The name is case-insensitive.
+	 * 
+	 * @param name name of the query param
+	 * @return an immutable list of the values, empty if it isn't present
+	 */
+	public List<String> getQueryParamValues(String name) {
+		return this.getQuery().getAll(name);
+	}
+	
+	/**
+	 * Returns all query parameters on this request, in the order they were sent.
+	 * 
+	 * @return the query params
+	 * @see ServerOptions#maxParameters(int)
+	 */
+	public Parameters getQueryParameters() {
+		return this.getQuery();
+	}
+	
+	/**
+	 * Returns this request's raw query string, without the leading <code>?</code>.
+	 * 
+	 * @return the query string, or null if there is none
+	 */
+	public String getQueryString() {
+		return queryString;
+	}
+	
+	/**
+	 * Returns the first value for the specified parameter in an
+	 * <code>application/x-www-form-urlencoded</code> body.
+	 * If the body is not a form or the parameter is not present, this returns null.
+	 * The name is case-insensitive.
+	 * 
+	 * @param name name of the form param
+	 * @return value of the form param, or null if it isn't present
+	 */
+	public String getFormParam(String name) {
+		return this.getForm().get(name);
+	}
+	
+	/**
+	 * Returns all values for the specified parameter in an
+	 * <code>application/x-www-form-urlencoded</code> body.
+	 * The name is case-insensitive.
+	 * 
+	 * @param name name of the form param
+	 * @return an immutable list of the values, empty if it isn't present
+	 */
+	public List<String> getFormParamValues(String name) {
+		return this.getForm().getAll(name);
+	}
+	
+	/**
+	 * Returns all parameters in an <code>application/x-www-form-urlencoded</code> body,
+	 * in the order they were sent. If the body is not a form, there are none.
+	 * 
+	 * @return the form params
+	 * @see ServerOptions#maxParameters(int)
+	 */
+	public Parameters getFormParameters() {
+		return this.getForm();
 	}
 	
 	/**
@@ -171,7 +361,7 @@ public class Request {
 	 * @see HttpServer#isParseCookies()
 	 */
 	public String getCookie(String name) {
-		return cookies != null ? cookies.get(name) : null;
+		return this.getCookieMap().get(name);
 	}
 	
 	/**
@@ -182,7 +372,7 @@ public class Request {
 	 * @return whether this request contains it
 	 */
 	public boolean hasHeader(String name) {
-		return headers.containsKey(name.toLowerCase());
+		return headers.contains(name);
 	}
 	
 	/**
@@ -193,9 +383,7 @@ public class Request {
 	 * @return whether this request contains it
 	 */
 	public boolean hasQueryParam(String name) {
-		if(queryParams == null)
-			this.parseQueryString();
-		return queryParams.containsKey(name.toLowerCase());
+		return this.getQuery().has(name);
 	}
 	
 	/**
@@ -210,7 +398,7 @@ public class Request {
 	 * @see HttpServer#isParseCookies()
 	 */
 	public boolean hasCookie(String name) {
-		return cookies != null && cookies.containsKey(name);
+		return this.getCookieMap().containsKey(name);
 	}
 	
 	/**
@@ -220,7 +408,16 @@ public class Request {
 	 * @return an immutable set of the headers
 	 */
 	public Set<String> getHeaders() {
-		return Collections.unmodifiableSet(headers.keySet());	
+		return headers.names();
+	}
+	
+	/**
+	 * Returns all headers on this request, including repeated ones, in the order they were sent.
+	 * 
+	 * @return the headers
+	 */
+	public Headers getHeaderFields() {
+		return headers;
 	}
 	
 	/**
@@ -230,9 +427,7 @@ public class Request {
 	 * @return an immutable set of the query params
 	 */
 	public Set<String> getQueryParams() {
-		if(queryParams == null)
-			this.parseQueryString();
-		return Collections.unmodifiableSet(queryParams.keySet());
+		return this.getQuery().names();
 	}
 	
 	/**
@@ -246,7 +441,37 @@ public class Request {
 	 * @see HttpServer#isParseCookies()
 	 */
 	public Set<String> getCookies() {
-		return cookies != null ? Collections.unmodifiableSet(cookies.keySet()) : Collections.emptySet();
+		return Collections.unmodifiableSet(this.getCookieMap().keySet());
+	}
+	
+	/**
+	 * Returns the parts of a <code>multipart/form-data</code> body, in order.
+	 * Multipart bodies are parsed while they are received, and are not available
+	 * through {@link #getBody()}. Large parts are kept in temporary files, which
+	 * are deleted once the response has been sent.
+	 * 
+	 * @return an immutable list of the parts, empty if the body is not multipart
+	 * @see ServerOptions#multipartMaxSize(long)
+	 */
+	public List<Part> getParts() {
+		return parts != null ? Collections.unmodifiableList(parts) : Collections.emptyList();
+	}
+	
+	/**
+	 * Returns the first part of a <code>multipart/form-data</code> body with the specified name.
+	 * The name is <i>case-sensitive</i>.
+	 * 
+	 * @param name name of the part
+	 * @return the part, or null if it isn't present
+	 */
+	public Part getPart(String name) {
+		if(parts == null)
+			return null;
+		for(Part part : parts) {
+			if(name.equals(part.getName()))
+				return part;
+		}
+		return null;
 	}
 	
 	/**
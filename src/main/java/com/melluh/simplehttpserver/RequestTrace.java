@@ -0,0 +1,203 @@
+package com.melluh.simplehttpserver;
+
+import java.net.InetAddress;
+import java.util.Locale;
+
+import com.melluh.simplehttpserver.protocol.Status;
+
+/**
+ * The timing of a single request, with the time at which it reached each of its
+ * phases. The time spent in a phase is the time since the previous phase that was
+ * reached, so a slow request can be broken down into, for example, a slow client
+ * sending its headers, a slow handler, or a slow client reading the response.
+ *
+ * <br><br>
+ * Only the method, location and protocol of the request are kept, not the request
+ * itself, so traces can be kept around without holding on to request bodies.
+ *
+ * @see RequestTracer
+ */
+public class RequestTrace {
+
+	private static final TracePhase[] PHASES = TracePhase.values();
+
+	private final RequestTracer tracer;
+	private final long connectionId;
+	private final InetAddress remoteAddress;
+
+	// Phases are marked by different threads, writing the mask last publishes the times along with it
+	private final long[] times = new long[PHASES.length];
+	private volatile int reached; // bit mask of the reached phases
+
+	private String method;
+	private String location;
+	private String protocol;
+	private Status status;
+
+	RequestTrace(RequestTracer tracer, long connectionId, InetAddress remoteAddress) {
+		this.tracer = tracer;
+		this.connectionId = connectionId;
+		this.remoteAddress = remoteAddress;
+	}
+
+	/**
+	 * Method for internal use.
+	 * Records that the request reached a phase now.
+	 *
+	 * @param phase the phase
+	 */
+	public void mark(TracePhase phase) {
+		this.mark(phase, System.nanoTime());
+	}
+
+	/**
+	 * Method for internal use.
+	 * Records that the request reached a phase at a given time.
+	 *
+	 * @param phase the phase
+	 * @param nanoTime the time, as returned by {@link System#nanoTime()}
+	 */
+	public void mark(TracePhase phase, long nanoTime) {
+		times[phase.ordinal()] = nanoTime;
+		reached |= 1 << phase.ordinal();
+		tracer.phase(this, phase, nanoTime);
+		if(phase == TracePhase.RESPONSE_FLUSHED)
+			tracer.completed(this);
+	}
+
+	void setRequest(Request request) {
+		this.method = request.getMethod().name();
+		this.location = request.getLocation();
+		this.protocol = request.getProtocolVersion();
+	}
+
+	void setStatus(Status status) {
+		this.status = status;
+	}
+
+	/**
+	 * Checks whether the request reached a phase.
+	 *
+	 * @param phase the phase
+	 * @return whether the phase was reached
+	 */
+	public boolean hasReached(TracePhase phase) {
+		return (reached & 1 << phase.ordinal()) != 0;
+	}
+
+	/**
+	 * Returns the time at which the request reached a phase.
+	 *
+	 * @param phase the phase
+	 * @return the time, as returned by {@link System#nanoTime()}, or 0 if the phase wasn't reached
+	 */
+	public long getTime(TracePhase phase) {
+		return this.hasReached(phase) ? times[phase.ordinal()] : 0;
+	}
+
+	/**
+	 * Returns the time spent in a phase, that is, the time from the previous phase
+	 * that was reached until this phase.
+	 *
+	 * @param phase the phase
+	 * @return the time in nanoseconds, or 0 if the phase wasn't reached
+	 */
+	public long getPhaseNanos(TracePhase phase) {
+		if(!this.hasReached(phase))
+			return 0;
+
+		for(int i = phase.ordinal() - 1; i >= 0; i--) {
+			if(this.hasReached(PHASES[i]))
+				return times[phase.ordinal()] - times[i];
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the time from the first byte of the request, or the first phase that
+	 * was reached if there is none, until the last phase that was reached. This leaves
+	 * out the time an accepted connection was idle before the request was sent.
+	 *
+	 * @return the duration in nanoseconds
+	 */
+	public long getDurationNanos() {
+		int first = -1, last = -1;
+		for(int i = 0; i < PHASES.length; i++) {
+			if(!this.hasReached(PHASES[i]))
+				continue;
+			if(first < 0 || PHASES[i] == TracePhase.FIRST_BYTE)
+				first = i;
+			last = i;
+		}
+		return first >= 0 ? times[last] - times[first] : 0;
+	}
+
+	public long getConnectionId() {
+		return connectionId;
+	}
+
+	public InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Returns the method of the request.
+	 *
+	 * @return the method, or null if the request couldn't be parsed
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Returns the location of the request.
+	 *
+	 * @return the location, or null if the request couldn't be parsed
+	 */
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * Returns the protocol version of the request.
+	 *
+	 * @return the protocol version, or null if the request couldn't be parsed
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Returns the status of the response.
+	 *
+	 * @return the status, or null if no response was sent yet
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(method != null ? method : "-").append(' ').append(location != null ? location : "-");
+		if(status != null)
+			builder.append(' ').append(status.getCode());
+		builder.append(" in ").append(formatMillis(this.getDurationNanos())).append(" (");
+
+		boolean first = true;
+		for(TracePhase phase : PHASES) {
+			if(phase == TracePhase.ACCEPTED || !this.hasReached(phase))
+				continue;
+			if(!first)
+				builder.append(", ");
+			first = false;
+			builder.append(phase.name().toLowerCase(Locale.ROOT)).append(' ').append(formatMillis(this.getPhaseNanos(phase)));
+		}
+		return builder.append(')').toString();
+	}
+
+	private static String formatMillis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f ms", nanos / 1_000_000.0);
+	}
+
+}
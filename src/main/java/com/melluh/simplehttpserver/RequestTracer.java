@@ -0,0 +1,30 @@
+package com.melluh.simplehttpserver;
+
+/**
+ * Receives the timing of every request as it passes through its phases, to find
+ * out where slow requests spend their time. Tracers are called on the threads
+ * handling the requests, so they should be fast and must not block.
+ *
+ * @see HttpServer#tracer(RequestTracer)
+ * @see SlowRequestSampler
+ */
+public interface RequestTracer {
+
+	/**
+	 * Called when a request reaches a phase.
+	 *
+	 * @param trace the trace of the request
+	 * @param phase the phase
+	 * @param nanoTime the time the phase was reached, as returned by {@link System#nanoTime()}
+	 */
+	default void phase(RequestTrace trace, TracePhase phase, long nanoTime) {}
+
+	/**
+	 * Called after the response was flushed. The trace isn't modified anymore,
+	 * so it can be kept.
+	 *
+	 * @param trace the trace of the request
+	 */
+	default void completed(RequestTrace trace) {}
+
+}
@@ -2,46 +2,161 @@ package com.melluh.simplehttpserver;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
+import javax.net.ssl.SSLSocket;
+
+import com.melluh.simplehttpserver.multipart.MultipartException;
+import com.melluh.simplehttpserver.multipart.MultipartParser;
+import com.melluh.simplehttpserver.protocol.Headers;
 import com.melluh.simplehttpserver.protocol.HttpHeader;
 import com.melluh.simplehttpserver.protocol.Method;
 import com.melluh.simplehttpserver.protocol.MimeType;
 import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.response.Cookie;
+import com.melluh.simplehttpserver.response.DetachedResponseBody;
 import com.melluh.simplehttpserver.response.Response;
+import com.melluh.simplehttpserver.response.UpgradeHandler;
 
 public class ServerClient implements Runnable {
 
 	private static final String SERVER_HEADER = "simple-http-server";
 	private static final int HEADER_BUFFER_SIZE = 8192;
+	private static final long DATA_RATE_CHECK_INTERVAL = 1000;
+	
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] HEADER_SEPARATOR = { ':', ' ' };
+	private static final byte[] SET_COOKIE_PREFIX = (HttpHeader.SET_COOKIE + ": ").getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] UPGRADE_RESPONSE = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[][] STATUS_LINES = new byte[Status.values().length][];
+	
+	static {
+		for(Status status : Status.values()) {
+			STATUS_LINES[status.ordinal()] = ("HTTP/1.1 " + status + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+	
+	private static final AtomicLong NEXT_ID = new AtomicLong();
 	
 	private final HttpServer server;
 	private final Socket socket;
-	private final InputStream in;
+	private final CountingInputStream in;
 	
-	private Request request;
+	private final long id = NEXT_ID.incrementAndGet();
+	private final long connectedTime = System.currentTimeMillis();
+	private final LongAdder requestCount = new LongAdder();
+	private volatile ConnectionState state = ConnectionState.READING;
+	private volatile long requestStartNanos;
+	private final long acceptedNanos;
+	private final RequestTrace trace;
+	
+	private volatile Request request;
+	private byte[] header;
+	private volatile CountingOutputStream out;
+	
+	private volatile TimeoutWheel.Timeout timeout;
+	private volatile CompletableFuture<Response> pendingResponse;
+	private volatile boolean closed;
+	private final AtomicBoolean released = new AtomicBoolean();
+	private volatile DataRateCheck dataRateCheck;
+	private volatile boolean timedOut;
+	private volatile boolean aborted;
+	private volatile boolean detached;
+	private volatile long bodyRead;
 	
 	public ServerClient(HttpServer server, Socket socket, InputStream in) {
+		this(server, socket, in, System.nanoTime());
+	}
+	
+	public ServerClient(HttpServer server, Socket socket, InputStream in, long acceptedNanos) {
 		this.server = server;
 		this.socket = socket;
-		this.in = in;
+		this.in = new CountingInputStream(in);
+		this.acceptedNanos = acceptedNanos;
+		
+		RequestTracer tracer = server.getTracer();
+		this.trace = tracer != null ? new RequestTrace(tracer, id, socket.getInetAddress()) : null;
 	}
 	
 	@Override
 	public void run() {
+		if(trace != null)
+			trace.mark(TracePhase.ACCEPTED, acceptedNanos);
+		
 		try {
-			byte[] header = new byte[HEADER_BUFFER_SIZE];
+			ServerOptions options = server.getOptions();
+			boolean secure = socket instanceof SSLSocket;
+			if(secure) {
+				this.state = ConnectionState.HANDSHAKING;
+				if(!this.handshake((SSLSocket) socket))
+					return;
+				
+				if("h2".equals(((SSLSocket) socket).getApplicationProtocol())) {
+					this.state = ConnectionState.HTTP2;
+					new Http2Connection(this, server, socket, in, this.getOutputStream()).runNegotiated();
+					return;
+				}
+				this.state = ConnectionState.READING;
+			}
+			
+			this.header = BufferPool.getDefault().acquire(HEADER_BUFFER_SIZE);
 			int position = 0;
 			
 			while(true) {
-				int read = in.read();
-				if(read == -1)
+				int read;
+				try {
+					read = in.read();
+				} catch (SocketTimeoutException ex) {
+					if(position == 0) {
+						// Nothing was sent at all, there is no request to respond to
+						server.getMetrics().idleTimeout();
+						return;
+					}
+					
+					server.getMetrics().readTimeout();
+					this.sendTimeout();
+					return;
+				}
+				
+				if(read == -1) {
+					// Closed without sending anything, such as a probe, there is no request to respond to
+					if(position == 0)
+						return;
 					break;
+				}
+				
+				// The idle timeout applies until the first byte arrives, after that the header deadline takes over
+				if(position == 0) {
+					this.requestStartNanos = System.nanoTime();
+					if(trace != null)
+						trace.mark(TracePhase.FIRST_BYTE, requestStartNanos);
+					socket.setSoTimeout(options.getReadTimeout());
+					if(options.getHeaderTimeout() > 0)
+						this.timeout = server.getTimeoutWheel().schedule(this::headerTimedOut, options.getHeaderTimeout(), TimeUnit.MILLISECONDS);
+				}
+				
+				if(position == header.length) {
+					this.sendResponse(new Response(Status.REQUEST_HEADER_FIELDS_TOO_LARGE));
+					return;
+				}
 				
 				header[position] = (byte) read;
 				
@@ -52,6 +167,12 @@ public class ServerClient implements Runnable {
 				position++;
 			}
 			
+			this.cancelTimeout();
+			if(timedOut) {
+				this.sendTimeout();
+				return;
+			}
+			
 			BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(header, 0, position)));
 			
 			// Read status line
@@ -61,6 +182,15 @@ public class ServerClient implements Runnable {
 				return;
 			}
 			
+			// Connection preface of a client with prior knowledge of HTTP/2
+			if(statusLine.equals(Http2Connection.PREFACE_LINE) && options.isHttp2() && !secure) {
+				reader.close();
+				this.releaseHeader();
+				this.state = ConnectionState.HTTP2;
+				new Http2Connection(this, server, socket, in, this.getOutputStream()).runPriorKnowledge();
+				return;
+			}
+			
 			String[] statusParams = statusLine.split(" ");
 			if(statusParams.length != 3) {
 				this.sendResponse(new Response(Status.BAD_REQUEST).contentType(MimeType.PLAIN_TEXT).body("Malformed status line"));
@@ -75,6 +205,7 @@ public class ServerClient implements Runnable {
 			
 			try {
 				this.request = new Request(server, method, statusParams[1], statusParams[2]);
+				request.setRemoteAddress(socket.getInetAddress());
 			} catch (ParseException ex) {
 				this.sendResponse(ex.createResponse());
 				return;
@@ -99,66 +230,570 @@ public class ServerClient implements Runnable {
 				
 				String name = headerLine.substring(0, colonIndex).trim();
 				String value = headerLine.substring(colonIndex + 1).trim();
-				request.addHeader(name.toLowerCase(), value);
+				request.addHeader(name, value);
+			}
+			
+			String conflict = HttpUtils.findConflictingHeaders(request);
+			if(conflict != null) {
+				this.sendResponse(new Response(Status.BAD_REQUEST).contentType(MimeType.PLAIN_TEXT).body(conflict));
+				return;
 			}
 			
 			reader.close();
+			this.releaseHeader();
+			if(trace != null) {
+				trace.setRequest(request);
+				request.setTrace(trace);
+				trace.mark(TracePhase.HEADERS_READ);
+			}
 			
 			// read body, if it's present
 			if(request.hasHeader(HttpHeader.CONTENT_LENGTH)) {
-				int bodyLength = HttpUtils.safeParseInt(request.getHeader(HttpHeader.CONTENT_LENGTH));
-				if(bodyLength > 0) {
-					byte[] body = new byte[bodyLength];
-					int read, totalRead = 0;
-					while(bodyLength - totalRead > 0 && (read = in.read(body, totalRead, bodyLength - totalRead)) > -1) {
-						totalRead += read;
-					}
-					
-					if(totalRead < bodyLength) {
-						this.sendResponse(new Response(Status.BAD_REQUEST).contentType(MimeType.PLAIN_TEXT).body("Unable to read complete body"));
+				String boundary = MultipartParser.getBoundary(request.getHeader(HttpHeader.CONTENT_TYPE));
+				if(boundary != null) {
+					if(!this.readMultipart(boundary, HttpUtils.safeParseLong(request.getHeader(HttpHeader.CONTENT_LENGTH))))
 						return;
+				} else {
+					int bodyLength = HttpUtils.safeParseInt(request.getHeader(HttpHeader.CONTENT_LENGTH));
+					if(bodyLength > 0) {
+						byte[] body = new byte[bodyLength];
+						int read;
+						this.startDataRateCheck(false, options.getMinRequestBodyRate());
+						try {
+							while(bodyLength - bodyRead > 0 && (read = in.read(body, (int) bodyRead, bodyLength - (int) bodyRead)) > -1) {
+								bodyRead += read;
+							}
+						} catch (SocketTimeoutException ex) {
+							server.getMetrics().readTimeout();
+							this.sendTimeout();
+							return;
+						} finally {
+							this.cancelTimeout();
+						}
+						
+						if(timedOut) {
+							this.sendTimeout();
+							return;
+						}
+						
+						if(bodyRead < bodyLength) {
+							this.sendResponse(new Response(Status.BAD_REQUEST).contentType(MimeType.PLAIN_TEXT).body("Unable to read complete body"));
+							return;
+						}
+						
+						request.setBody(body);
 					}
-					
-					request.setBody(body);
 				}
 			}
 			
-			this.sendResponse(server.handleRequest(request));
+			if(trace != null)
+				trace.mark(TracePhase.BODY_READ);
+			
+			if(options.isHttp2() && !secure && Http2Connection.isUpgradeRequest(request)) {
+				byte[] settings = this.decodeHttp2Settings(request.getHeader(HttpHeader.HTTP2_SETTINGS));
+				if(settings != null) {
+					this.sendUpgrade();
+					this.state = ConnectionState.HTTP2;
+					new Http2Connection(this, server, socket, in, this.getOutputStream()).runUpgrade(request, settings);
+					return;
+				}
+			}
+			
+			this.state = ConnectionState.PROCESSING;
+			CompletableFuture<Response> response = server.handleRequest(request);
+			if(response.isDone()) {
+				if(trace != null)
+					trace.mark(TracePhase.HANDLER_DONE);
+				this.sendResponse(response.join());
+				return;
+			}
+			
+			// The handler is asynchronous, release this thread until the response is ready
+			this.awaitResponse(response);
 		} catch (IOException ex) {
-			HttpServer.LOGGER.log(Level.SEVERE, "Error handling client connection", ex);
+			if(!timedOut)
+				HttpServer.LOGGER.log(Level.SEVERE, "Error handling client connection", ex);
 		} finally {
-			server.getClientHandler().closed(this);
+			if(pendingResponse == null && !detached)
+				this.close();
+		}
+	}
+	
+	// Multipart bodies are parsed as they arrive, so large uploads never have to fit in memory
+	private boolean readMultipart(String boundary, long length) throws IOException {
+		if(length <= 0)
+			return true;
+		
+		ServerOptions options = server.getOptions();
+		long maxSize = options.getMultipartMaxSize();
+		if(maxSize >= 0 && length > maxSize) {
+			this.sendResponse(new Response(Status.PAYLOAD_TOO_LARGE).contentType(MimeType.PLAIN_TEXT).body("Request body too large"));
+			return false;
+		}
+		
+		InputStream countingIn = new FilterInputStream(in) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if(read > 0)
+					bodyRead += read;
+				return read;
+			}
+		};
+		
+		this.startDataRateCheck(false, options.getMinRequestBodyRate());
+		try {
+			request.setParts(new MultipartParser(countingIn, length, boundary, options).parse());
+		} catch (SocketTimeoutException ex) {
+			server.getMetrics().readTimeout();
+			this.sendTimeout();
+			return false;
+		} catch (MultipartException ex) {
+			// A body that is cut off by the data rate check looks truncated
+			if(timedOut) {
+				this.sendTimeout();
+				return false;
+			}
+			this.sendResponse(new Response(ex.getStatus()).contentType(MimeType.PLAIN_TEXT).body(ex.getMessage()));
+			return false;
+		} finally {
+			this.cancelTimeout();
+		}
+		
+		if(timedOut) {
+			this.sendTimeout();
+			return false;
+		}
+		return true;
+	}
+	
+	private void awaitResponse(CompletableFuture<Response> response) {
+		this.pendingResponse = response;
+		
+		int handlerTimeout = server.getOptions().getHandlerTimeout();
+		if(handlerTimeout > 0)
+			this.timeout = server.getTimeoutWheel().schedule(() -> response.cancel(false), handlerTimeout, TimeUnit.MILLISECONDS);
+		
+		response.whenCompleteAsync((resp, ex) -> {
+			this.cancelTimeout();
+			if(trace != null)
+				trace.mark(TracePhase.HANDLER_DONE);
+			try {
+				if(!closed)
+					this.sendResponse(resp != null ? resp : new Response(ex instanceof CancellationException ? Status.SERVICE_UNAVAILABLE : Status.INTERNAL_SERVER_ERROR));
+			} catch (IOException ioEx) {
+				if(!timedOut)
+					HttpServer.LOGGER.log(Level.SEVERE, "Error handling client connection", ioEx);
+			} finally {
+				if(!detached)
+					this.close();
+			}
+		}, server.getClientHandler().getExecutor());
+	}
+	
+	/**
+	 * Closes the connection. If an asynchronous handler is still
+	 * producing the response, it is cancelled.
+	 */
+	public void close() {
+		CompletableFuture<Response> pendingResponse = this.pendingResponse;
+		if(pendingResponse != null && !pendingResponse.isDone()) {
+			// The completion callback finishes closing the connection
+			this.closed = true;
+			pendingResponse.cancel(false);
+			HttpUtils.close(socket);
+			return;
 		}
+		
+		if(!released.compareAndSet(false, true))
+			return;
+		
+		this.cancelTimeout();
+		this.releaseHeader();
+		if(request != null)
+			request.releaseParts();
+		HttpUtils.close(socket);
+		this.state = ConnectionState.CLOSED;
+		server.getClientHandler().closed(this);
+	}
+	
+	// The same stream is used for the whole connection, so it counts all bytes written
+	private CountingOutputStream getOutputStream() throws IOException {
+		if(out == null)
+			this.out = new CountingOutputStream(socket.getOutputStream());
+		return out;
+	}
+	
+	/**
+	 * Method for internal use.
+	 * Counts a response sent on an HTTP/2 stream of this connection.
+	 */
+	void http2ResponseSent() {
+		requestCount.increment();
+	}
+	
+	/**
+	 * Returns the ID of this connection, which is unique within the process.
+	 * 
+	 * @return the connection ID
+	 */
+	public long getId() {
+		return id;
+	}
+	
+	/**
+	 * Returns the address of the client.
+	 * 
+	 * @return the remote address
+	 */
+	public InetAddress getRemoteAddress() {
+		return socket.getInetAddress();
+	}
+	
+	/**
+	 * Returns the time this connection was accepted.
+	 * 
+	 * @return the connection time (unix time)
+	 */
+	public long getConnectedTime() {
+		return connectedTime;
+	}
+	
+	/**
+	 * Returns how long this connection has been open.
+	 * 
+	 * @return the age in milliseconds
+	 */
+	public long getAge() {
+		return System.currentTimeMillis() - connectedTime;
+	}
+	
+	/**
+	 * Returns the number of bytes read from the connection, including
+	 * request heads, bodies and the data of upgraded protocols.
+	 * 
+	 * @return the number of bytes read
+	 */
+	public long getBytesRead() {
+		return in.getCount();
+	}
+	
+	/**
+	 * Returns the number of bytes written to the connection.
+	 * Bytes written during the TLS handshake are not counted.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten() {
+		CountingOutputStream out = this.out;
+		return out != null ? out.getCount() : 0;
+	}
+	
+	/**
+	 * Returns the number of responses sent on this connection. Over HTTP/2,
+	 * this counts every stream that was answered.
+	 * 
+	 * @return the number of requests served
+	 */
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+	
+	/**
+	 * Returns the request being handled on this connection. Over HTTP/2, this is the
+	 * request that upgraded the connection, if any.
+	 * 
+	 * @return the request, or null if its head hasn't been read yet
+	 */
+	public Request getRequest() {
+		return request;
+	}
+	
+	/**
+	 * Returns how long the current request has been in flight, from its first
+	 * byte until the response is written.
+	 * 
+	 * @return the time in nanoseconds, or 0 if no request is in flight
+	 */
+	public long getRequestNanos() {
+		long start = requestStartNanos;
+		ConnectionState state = this.state;
+		if(start == 0 || (state != ConnectionState.READING && state != ConnectionState.PROCESSING && state != ConnectionState.WRITING))
+			return 0;
+		return System.nanoTime() - start;
+	}
+	
+	/**
+	 * Returns the current state of this connection.
+	 * 
+	 * @return the state
+	 */
+	public ConnectionState getState() {
+		return state;
+	}
+	
+	private void releaseHeader() {
+		BufferPool.getDefault().release(header);
+		this.header = null;
+	}
+	
+	private byte[] decodeHttp2Settings(String value) {
+		try {
+			return Base64.getUrlDecoder().decode(value);
+		} catch (IllegalArgumentException ex) {
+			return null; // not a valid upgrade, serve the request over HTTP/1.1
+		}
+	}
+	
+	private void sendUpgrade() throws IOException {
+		OutputStream out = this.getOutputStream();
+		out.write(UPGRADE_RESPONSE);
+		out.flush();
+	}
+	
+	/**
+	 * Performs the TLS handshake, which must complete within the header timeout.
+	 * 
+	 * @return whether the handshake succeeded
+	 */
+	private boolean handshake(SSLSocket socket) throws IOException {
+		ServerOptions options = server.getOptions();
+		socket.setSoTimeout(options.getReadTimeout());
+		if(options.getHeaderTimeout() > 0)
+			this.timeout = server.getTimeoutWheel().schedule(() -> {
+				this.timedOut = true;
+				HttpUtils.close(socket);
+			}, options.getHeaderTimeout(), TimeUnit.MILLISECONDS);
+		
+		long startMillis = System.currentTimeMillis();
+		long start = System.nanoTime();
+		try {
+			socket.startHandshake();
+		} catch (IOException ex) {
+			server.getMetrics().handshakeFailed();
+			HttpServer.LOGGER.log(Level.FINE, "TLS handshake failed", ex);
+			return false;
+		} finally {
+			this.cancelTimeout();
+		}
+		
+		// A resumed session keeps the creation time of the session it resumes
+		boolean resumed = socket.getSession().getCreationTime() < startMillis;
+		server.getMetrics().handshake(System.nanoTime() - start, resumed);
+		
+		socket.setSoTimeout(options.getIdleTimeout());
+		return true;
+	}
+	
+	private void headerTimedOut() {
+		server.getMetrics().headerTimeout();
+		this.timedOut = true;
+		this.shutdownInput();
+	}
+	
+	private void startDataRateCheck(boolean writing, int minRate) {
+		if(minRate <= 0)
+			return;
+		
+		DataRateCheck check = new DataRateCheck(writing, minRate);
+		this.dataRateCheck = check;
+		this.timeout = server.getTimeoutWheel().schedule(check, DATA_RATE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	private void cancelTimeout() {
+		this.dataRateCheck = null;
+		TimeoutWheel.Timeout timeout = this.timeout;
+		if(timeout != null) {
+			timeout.cancel();
+			this.timeout = null;
+		}
+	}
+	
+	// Unblocks a pending read, which will then see end of stream
+	private void shutdownInput() {
+		// TLS has no half-close, so the connection is closed without a response
+		if(socket instanceof SSLSocket) {
+			this.aborted = true;
+			HttpUtils.close(socket);
+			return;
+		}
+		
+		try {
+			socket.shutdownInput();
+		} catch (IOException ex) {
+			HttpUtils.close(socket);
+		}
+	}
+	
+	private void sendTimeout() throws IOException {
+		if(aborted)
+			return;
+		
+		this.sendResponse(new Response(Status.REQUEST_TIMEOUT).contentType(MimeType.PLAIN_TEXT).body("Request timed out"));
 	}
 	
 	private void sendResponse(Response response) throws IOException {
-		boolean sendBody = request.getMethod() != Method.HEAD && response.getStatus() != Status.NO_CONTENT && response.hasBody();
+		boolean sendBody = (request == null || request.getMethod() != Method.HEAD) && response.getStatus() != Status.NO_CONTENT && response.hasBody();
 		if(response.hasBody() && !sendBody) {
 			response.getBody().close();
 		}
 		
-		if(sendBody) {
+		// Bodies of unknown length are delimited by closing the connection
+		if(sendBody && response.getBody().getLength() >= 0) {
 			response.optHeader(HttpHeader.CONTENT_LENGTH, String.valueOf(response.getBody().getLength()));
 		}
 		
 		response.optHeader(HttpHeader.SERVER, SERVER_HEADER);
-		response.header(HttpHeader.CONNECTION, "close"); // Implementation does not support keep-alive
 		
-		OutputStream out = socket.getOutputStream();
+		// Upgrade responses hand the connection over to another protocol
+		UpgradeHandler upgrade = response.getStatus() == Status.SWITCHING_PROTOCOLS ? response.getUpgrade() : null;
+		// Detached bodies keep the connection open, and close it themselves when done
+		DetachedResponseBody detachedBody = sendBody && response.getBody() instanceof DetachedResponseBody ? (DetachedResponseBody) response.getBody() : null;
+		if(upgrade == null && detachedBody == null)
+			response.header(HttpHeader.CONNECTION, "close"); // Implementation does not support keep-alive
+		
+		this.state = ConnectionState.WRITING;
+		CountingOutputStream out = this.getOutputStream();
+		PooledOutputStream bufferedOut = new PooledOutputStream(out, BufferPool.getDefault());
+		long bodyStart = 0;
+		
+		try {
+			bufferedOut.write(STATUS_LINES[response.getStatus().ordinal()]);
+			Headers headers = response.getHeaders();
+			for(int i = 0; i < headers.size(); i++) {
+				this.writeHeader(bufferedOut, headers.getName(i), headers.getValue(i));
+			}
+			List<Cookie> cookies = response.getCookies();
+			for(int i = 0; i < cookies.size(); i++) {
+				bufferedOut.write(SET_COOKIE_PREFIX);
+				cookies.get(i).writeHeaderValue(bufferedOut);
+				bufferedOut.write(CRLF);
+			}
+			bufferedOut.write(CRLF);
+			bodyStart = out.getCount() + bufferedOut.getBufferedCount();
+			
+			if(sendBody && detachedBody == null) {
+				this.startDataRateCheck(true, server.getOptions().getMinResponseRate());
+				try {
+					response.getBody().write(bufferedOut);
+					bufferedOut.flush();
+				} finally {
+					this.cancelTimeout();
+					response.getBody().close();
+				}
+			}
+		} finally {
+			HttpUtils.close(bufferedOut);
+		}
+		requestCount.increment();
+		
+		AccessLog accessLog = server.getAccessLog();
+		if(accessLog != null) {
+			long start = requestStartNanos;
+			accessLog.log(socket.getInetAddress(), request, response.getStatus(), out.getCount() - bodyStart, start != 0 ? System.nanoTime() - start : 0);
+		}
+		if(trace != null) {
+			trace.setStatus(response.getStatus());
+			trace.mark(TracePhase.RESPONSE_FLUSHED);
+		}
 		
-		StringBuilder header = new StringBuilder();
-		header.append("HTTP/1.1 ").append(response.getStatus().toString()).append("\r\n");
-		response.getHeaders().forEach((name, value) -> header.append(name).append(": ").append(value).append("\r\n"));
-		response.getCookies().forEach(cookie -> header.append(HttpHeader.SET_COOKIE).append(": ").append(cookie.getHeaderValue()).append("\r\n"));
-		header.append("\r\n");
-		out.write(header.toString().getBytes());
+		if(detachedBody != null || upgrade != null)
+			this.state = ConnectionState.UPGRADED;
 		
-		if(sendBody) {
-			response.getBody().write(out);
+		if(detachedBody != null) {
+			this.detached = true;
+			try {
+				detachedBody.detach(new DetachedOutputStream(out));
+			} catch (RuntimeException ex) {
+				this.detached = false;
+				throw ex;
+			}
+			return;
+		}
+		
+		try {
+			if(upgrade != null)
+				upgrade.upgrade(socket, in, out);
+		} finally {
+			HttpUtils.close(out);
+			HttpUtils.close(socket);
+		}
+	}
+	
+	private void writeHeader(PooledOutputStream out, String name, String value) throws IOException {
+		out.writeLatin1(name);
+		out.write(HEADER_SEPARATOR);
+		out.writeLatin1(value);
+		out.write(CRLF);
+	}
+	
+	/**
+	 * The output stream handed to a detached body.
+	 * Closing it closes the connection.
+	 */
+	private class DetachedOutputStream extends FilterOutputStream {
+		
+		private DetachedOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		
+		@Override
+		public void close() {
+			ServerClient.this.close();
+		}
+		
+	}
+	
+	private class DataRateCheck implements Runnable {
+		
+		private final boolean writing;
+		private final int minRate;
+		private final long startTime = System.nanoTime();
+		private final long startBytes;
+		
+		private DataRateCheck(boolean writing, int minRate) {
+			this.writing = writing;
+			this.minRate = minRate;
+			this.startBytes = this.getBytes();
+		}
+		
+		@Override
+		public void run() {
+			if(dataRateCheck != this) // phase already finished
+				return;
+			
+			long elapsed = System.nanoTime() - startTime;
+			if(elapsed < TimeUnit.MILLISECONDS.toNanos(server.getOptions().getDataRateGracePeriod())) {
+				timeout = server.getTimeoutWheel().schedule(this, DATA_RATE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
+			double rate = (this.getBytes() - startBytes) / (elapsed / 1e9);
+			if(rate >= minRate) {
+				timeout = server.getTimeoutWheel().schedule(this, DATA_RATE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
+			timedOut = true;
+			if(writing) {
+				// A client that doesn't read won't see a 408 either
+				server.getMetrics().writeRateTimeout();
+				HttpUtils.close(socket);
+			} else {
+				server.getMetrics().bodyRateTimeout();
+				shutdownInput();
+			}
+		}
+		
+		private long getBytes() {
+			return writing ? out.getCount() : bodyRead;
 		}
 		
-		HttpUtils.close(out);
-		HttpUtils.close(socket);
 	}
 	
 	public static class ParseException extends Exception {
@@ -0,0 +1,198 @@
+package com.melluh.simplehttpserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the behaviour of a {@link HttpServer}.
+ * All counters are cumulative since the server was created.
+ *
+ * @see HttpServer#getMetrics()
+ */
+public class ServerMetrics {
+
+	private final LongAdder idleTimeouts = new LongAdder();
+	private final LongAdder readTimeouts = new LongAdder();
+	private final LongAdder headerTimeouts = new LongAdder();
+	private final LongAdder bodyRateTimeouts = new LongAdder();
+	private final LongAdder writeRateTimeouts = new LongAdder();
+
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder resumedHandshakes = new LongAdder();
+	private final LongAdder failedHandshakes = new LongAdder();
+	private final LongAdder handshakeNanos = new LongAdder();
+
+	private final LongAdder rateLimitedRequests = new LongAdder();
+	private final LongAdder rateLimitedConnections = new LongAdder();
+	private final LongAdder rejectedConnections = new LongAdder();
+
+	protected void idleTimeout() {
+		idleTimeouts.increment();
+	}
+
+	protected void readTimeout() {
+		readTimeouts.increment();
+	}
+
+	protected void headerTimeout() {
+		headerTimeouts.increment();
+	}
+
+	protected void bodyRateTimeout() {
+		bodyRateTimeouts.increment();
+	}
+
+	protected void writeRateTimeout() {
+		writeRateTimeouts.increment();
+	}
+
+	protected void handshake(long nanos, boolean resumed) {
+		handshakes.increment();
+		handshakeNanos.add(nanos);
+		if(resumed)
+			resumedHandshakes.increment();
+	}
+
+	protected void handshakeFailed() {
+		failedHandshakes.increment();
+	}
+
+	protected void requestRateLimited() {
+		rateLimitedRequests.increment();
+	}
+
+	protected void connectionRateLimited() {
+		rateLimitedConnections.increment();
+	}
+
+	protected void connectionRejected() {
+		rejectedConnections.increment();
+	}
+
+	/**
+	 * Returns the number of connections closed because the client
+	 * didn't send anything within the idle timeout.
+	 *
+	 * @return the number of idle timeouts
+	 * @see ServerOptions#idleTimeout(int)
+	 */
+	public long getIdleTimeouts() {
+		return idleTimeouts.sum();
+	}
+
+	/**
+	 * Returns the number of connections closed because a single
+	 * read blocked for longer than the read timeout.
+	 *
+	 * @return the number of read timeouts
+	 * @see ServerOptions#readTimeout(int)
+	 */
+	public long getReadTimeouts() {
+		return readTimeouts.sum();
+	}
+
+	/**
+	 * Returns the number of connections closed because the client
+	 * didn't send its headers before the header deadline.
+	 *
+	 * @return the number of header timeouts
+	 * @see ServerOptions#headerTimeout(int)
+	 */
+	public long getHeaderTimeouts() {
+		return headerTimeouts.sum();
+	}
+
+	/**
+	 * Returns the number of connections closed because the client
+	 * sent its request body slower than the minimum data rate.
+	 *
+	 * @return the number of body rate timeouts
+	 * @see ServerOptions#minRequestBodyRate(int)
+	 */
+	public long getBodyRateTimeouts() {
+		return bodyRateTimeouts.sum();
+	}
+
+	/**
+	 * Returns the number of connections closed because the client
+	 * received the response slower than the minimum data rate.
+	 *
+	 * @return the number of write rate timeouts
+	 * @see ServerOptions#minResponseRate(int)
+	 */
+	public long getWriteRateTimeouts() {
+		return writeRateTimeouts.sum();
+	}
+
+	/**
+	 * Returns the number of completed TLS handshakes.
+	 *
+	 * @return the number of handshakes
+	 * @see HttpServer#tls(TlsOptions)
+	 */
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	/**
+	 * Returns the number of completed TLS handshakes that resumed
+	 * an earlier session, instead of performing a full handshake.
+	 *
+	 * @return the number of resumed handshakes
+	 */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.sum();
+	}
+
+	/**
+	 * Returns the number of TLS handshakes that failed or timed out.
+	 *
+	 * @return the number of failed handshakes
+	 */
+	public long getFailedHandshakes() {
+		return failedHandshakes.sum();
+	}
+
+	/**
+	 * Returns the total time spent in completed TLS handshakes.
+	 * Divide by {@link #getHandshakes()} for the average.
+	 *
+	 * @return the total handshake time in nanoseconds
+	 */
+	public long getHandshakeTimeNanos() {
+		return handshakeNanos.sum();
+	}
+
+	/**
+	 * Returns the number of requests rejected with <code>429 Too Many Requests</code>
+	 * by a {@link RateLimiter}.
+	 *
+	 * @return the number of rate limited requests
+	 */
+	public long getRateLimitedRequests() {
+		return rateLimitedRequests.sum();
+	}
+
+	/**
+	 * Returns the number of connections closed right after they were accepted,
+	 * because they exceeded the connection rate limit.
+	 *
+	 * @return the number of rate limited connections
+	 * @see HttpServer#connectionRateLimit(RateLimiter)
+	 */
+	public long getRateLimitedConnections() {
+		return rateLimitedConnections.sum();
+	}
+
+	/**
+	 * Returns the number of connections closed right after they were accepted,
+	 * because the server or their remote address had too many open connections.
+	 *
+	 * @return the number of rejected connections
+	 * @see ServerOptions#maxConnections(int)
+	 * @see ServerOptions#maxConnectionsPerAddress(int)
+	 */
+	public long getRejectedConnections() {
+		return rejectedConnections.sum();
+	}
+
+}
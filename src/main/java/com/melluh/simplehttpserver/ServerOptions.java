@@ -0,0 +1,445 @@
+package com.melluh.simplehttpserver;
+
+import java.io.File;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket and connection options for a {@link HttpServer}.
+ * These are applied to every connection the server accepts.
+ *
+ * @see HttpServer#options(ServerOptions)
+ */
+public class ServerOptions {
+
+	private boolean tcpNoDelay = true;
+	private int sendBufferSize = -1;
+	private int receiveBufferSize = -1;
+
+	private int readTimeout = 30000;
+	private int headerTimeout = 10000;
+	private int idleTimeout = 60000;
+
+	private int minRequestBodyRate = 240;
+	private int minResponseRate = 240;
+	private int dataRateGracePeriod = 5000;
+
+	private int handlerTimeout = 30000;
+
+	private int backlog = 50;
+	private int maxConnections = -1;
+	private int maxConnectionsPerAddress = -1;
+
+	private boolean http2 = true;
+
+	private int webSocketMaxMessageSize = 1024 * 1024;
+	private int webSocketPingInterval = 30000;
+	private int webSocketWriteTimeout = 30000;
+	private int webSocketMaxQueuedMessages = 256;
+	private int maxParameters = 1000;
+	private long multipartMaxSize = 64 * 1024 * 1024;
+	private long multipartMaxPartSize = 32 * 1024 * 1024;
+	private int multipartMemoryThreshold = 64 * 1024;
+	private File multipartTempDirectory;
+
+	/**
+	 * Enables or disables <code>TCP_NODELAY</code> (disabling Nagle's algorithm)
+	 * on accepted connections. Enabled by default.
+	 *
+	 * @param tcpNoDelay whether to enable TCP_NODELAY
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions tcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	/**
+	 * Sets the <code>SO_SNDBUF</code> size of accepted connections.
+	 * A value of zero or lower keeps the system default.
+	 *
+	 * @param sendBufferSize send buffer size in bytes
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions sendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+		return this;
+	}
+
+	/**
+	 * Sets the <code>SO_RCVBUF</code> size of accepted connections.
+	 * A value of zero or lower keeps the system default.
+	 *
+	 * @param receiveBufferSize receive buffer size in bytes
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions receiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum time a single read may block once a request has
+	 * started arriving (<code>SO_TIMEOUT</code>). Zero disables the timeout.
+	 *
+	 * @param readTimeout read timeout in milliseconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions readTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the total time a client has to send the complete request headers,
+	 * measured from the first byte. On TLS connections, the handshake must also
+	 * complete within this time. Zero disables the timeout.
+	 *
+	 * @param headerTimeout header timeout in milliseconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions headerTimeout(int headerTimeout) {
+		this.headerTimeout = headerTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum time a connection may stay open without the client
+	 * sending anything. Zero disables the timeout.
+	 *
+	 * @param idleTimeout idle timeout in milliseconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions idleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the minimum average rate at which a client must send its request body,
+	 * once the grace period has passed. Slower clients are closed with a
+	 * <code>408 Request Timeout</code>. Zero disables the check.
+	 *
+	 * @param minRequestBodyRate minimum rate in bytes per second
+	 * @return a reference to this, so the API can be used fluently
+	 * @see #dataRateGracePeriod(int)
+	 */
+	public ServerOptions minRequestBodyRate(int minRequestBodyRate) {
+		this.minRequestBodyRate = minRequestBodyRate;
+		return this;
+	}
+
+	/**
+	 * Sets the minimum average rate at which a client must receive the response,
+	 * once the grace period has passed. Slower clients are disconnected.
+	 * Zero disables the check.
+	 *
+	 * @param minResponseRate minimum rate in bytes per second
+	 * @return a reference to this, so the API can be used fluently
+	 * @see #dataRateGracePeriod(int)
+	 */
+	public ServerOptions minResponseRate(int minResponseRate) {
+		this.minResponseRate = minResponseRate;
+		return this;
+	}
+
+	/**
+	 * Sets the time a request body or response may take before the
+	 * minimum data rates are enforced.
+	 *
+	 * @param dataRateGracePeriod grace period in milliseconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions dataRateGracePeriod(int dataRateGracePeriod) {
+		this.dataRateGracePeriod = dataRateGracePeriod;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum time an {@link AsyncRequestHandler} may take to complete
+	 * its response. When exceeded, the handler's stage is cancelled and the
+	 * client receives a <code>503 Service Unavailable</code>.
+	 * Zero disables the timeout.
+	 *
+	 * @param handlerTimeout handler timeout in milliseconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions handlerTimeout(int handlerTimeout) {
+		this.handlerTimeout = handlerTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum length of the queue of incoming connections
+	 * waiting to be accepted.
+	 *
+	 * @param backlog the accept backlog
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions backlog(int backlog) {
+		this.backlog = backlog;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of open connections. Connections over the limit
+	 * are closed right after they are accepted, before a thread is assigned to them.
+	 *
+	 * @param maxConnections maximum number of connections, or -1 for no limit
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions maxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of open connections from a single remote address, so
+	 * a single host can't take up all workers. Connections over the limit are closed
+	 * right after they are accepted. Behind a proxy, all clients share its address.
+	 *
+	 * @param maxConnectionsPerAddress maximum number of connections per address, or -1 for no limit
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions maxConnectionsPerAddress(int maxConnectionsPerAddress) {
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+		return this;
+	}
+
+	/**
+	 * Enables or disables cleartext HTTP/2 (h2c). When enabled, clients may
+	 * connect with prior knowledge or upgrade from HTTP/1.1 using
+	 * <code>Upgrade: h2c</code>. Enabled by default.
+	 *
+	 * @param http2 whether to accept HTTP/2 connections
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions http2(boolean http2) {
+		this.http2 = http2;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum size of a single WebSocket message, after reassembling
+	 * fragments and decompressing. Larger messages close the connection.
+	 *
+	 * @param webSocketMaxMessageSize maximum message size in bytes
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions webSocketMaxMessageSize(int webSocketMaxMessageSize) {
+		this.webSocketMaxMessageSize = webSocketMaxMessageSize;
+		return this;
+	}
+
+	/**
+	 * Sets how long a WebSocket may stay silent before the server sends a ping.
+	 * If the client doesn't respond within another interval, the connection is
+	 * closed. Zero disables pings, the idle timeout applies instead.
+	 *
+	 * @param webSocketPingInterval ping interval in milliseconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions webSocketPingInterval(int webSocketPingInterval) {
+		this.webSocketPingInterval = webSocketPingInterval;
+		return this;
+	}
+
+	/**
+	 * Sets how long writing a single WebSocket frame may take. A client that stops
+	 * reading fills up the connection, after which writes block; when this time
+	 * has passed, the connection is closed. Zero disables the timeout.
+	 *
+	 * @param webSocketWriteTimeout write timeout in milliseconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions webSocketWriteTimeout(int webSocketWriteTimeout) {
+		this.webSocketWriteTimeout = webSocketWriteTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the number of broadcast messages that can be queued for a WebSocket
+	 * that hasn't received them yet. A connection whose queue is full is closed.
+	 *
+	 * @param webSocketMaxQueuedMessages maximum number of queued messages
+	 * @return a reference to this, so the API can be used fluently
+	 * @see com.melluh.simplehttpserver.websocket.WebSocket#broadcast(Iterable, com.melluh.simplehttpserver.websocket.WebSocketMessage)
+	 */
+	public ServerOptions webSocketMaxQueuedMessages(int webSocketMaxQueuedMessages) {
+		this.webSocketMaxQueuedMessages = webSocketMaxQueuedMessages;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of parameters parsed from a query string or form body.
+	 * Further parameters are left out, which bounds the work a single request can cause.
+	 *
+	 * @param maxParameters maximum number of parameters
+	 * @return a reference to this, so the API can be used fluently
+	 * @see com.melluh.simplehttpserver.protocol.Parameters#isTruncated()
+	 */
+	public ServerOptions maxParameters(int maxParameters) {
+		this.maxParameters = maxParameters;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum size of a <code>multipart/form-data</code> body.
+	 * Larger requests are answered with <code>413 Payload Too Large</code>.
+	 * Defaults to 64 MB.
+	 *
+	 * @param multipartMaxSize maximum body size in bytes, or -1 for no limit
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions multipartMaxSize(long multipartMaxSize) {
+		this.multipartMaxSize = multipartMaxSize;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum size of a single part of a <code>multipart/form-data</code> body.
+	 * Requests with larger parts are answered with <code>413 Payload Too Large</code>.
+	 * Defaults to 32 MB.
+	 *
+	 * @param multipartMaxPartSize maximum part size in bytes, or -1 for no limit
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions multipartMaxPartSize(long multipartMaxPartSize) {
+		this.multipartMaxPartSize = multipartMaxPartSize;
+		return this;
+	}
+
+	/**
+	 * Sets how much of a <code>multipart/form-data</code> body is kept in memory,
+	 * for all its parts together. Parts that don't fit are written to a temporary
+	 * file instead. Defaults to 64 KB.
+	 *
+	 * @param multipartMemoryThreshold threshold in bytes
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions multipartMemoryThreshold(int multipartMemoryThreshold) {
+		this.multipartMemoryThreshold = multipartMemoryThreshold;
+		return this;
+	}
+
+	/**
+	 * Sets the directory temporary files of large parts are written to.
+	 * Defaults to the system's temporary directory.
+	 *
+	 * @param multipartTempDirectory the directory, or null for the default
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public ServerOptions multipartTempDirectory(File multipartTempDirectory) {
+		this.multipartTempDirectory = multipartTempDirectory;
+		return this;
+	}
+
+	/**
+	 * Method for internal use.
+	 * Applies these options to an accepted socket.
+	 *
+	 * @param socket the accepted socket
+	 * @throws SocketException if an option could not be set
+	 */
+	protected void apply(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		if(sendBufferSize > 0)
+			socket.setSendBufferSize(sendBufferSize);
+		if(receiveBufferSize > 0)
+			socket.setReceiveBufferSize(receiveBufferSize);
+		socket.setSoTimeout(idleTimeout);
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getHeaderTimeout() {
+		return headerTimeout;
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public int getMinRequestBodyRate() {
+		return minRequestBodyRate;
+	}
+
+	public int getMinResponseRate() {
+		return minResponseRate;
+	}
+
+	public int getDataRateGracePeriod() {
+		return dataRateGracePeriod;
+	}
+
+	public int getHandlerTimeout() {
+		return handlerTimeout;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getMaxConnectionsPerAddress() {
+		return maxConnectionsPerAddress;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public int getWebSocketMaxMessageSize() {
+		return webSocketMaxMessageSize;
+	}
+
+	public int getWebSocketPingInterval() {
+		return webSocketPingInterval;
+	}
+
+	public int getWebSocketWriteTimeout() {
+		return webSocketWriteTimeout;
+	}
+
+	public int getWebSocketMaxQueuedMessages() {
+		return webSocketMaxQueuedMessages;
+	}
+
+	public int getMaxParameters() {
+		return maxParameters;
+	}
+
+	public long getMultipartMaxSize() {
+		return multipartMaxSize;
+	}
+
+	public long getMultipartMaxPartSize() {
+		return multipartMaxPartSize;
+	}
+
+	public int getMultipartMemoryThreshold() {
+		return multipartMemoryThreshold;
+	}
+
+	public File getMultipartTempDirectory() {
+		return multipartTempDirectory;
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.melluh.simplehttpserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A tracer that keeps the traces of requests slower than a threshold, with the
+ * time they spent in every phase. The traces are kept in a fixed-size ring, so
+ * the newest slow requests replace the oldest ones. Fast requests cost nothing
+ * but a comparison:
+ * <pre>
+ * SlowRequestSampler sampler = new SlowRequestSampler(500, TimeUnit.MILLISECONDS);
+ * server.tracer(sampler);
+ * </pre>
+ *
+ * @see HttpServer#tracer(RequestTracer)
+ * @see AdminHandler#sampler(SlowRequestSampler)
+ */
+public class SlowRequestSampler implements RequestTracer {
+
+	private final long thresholdNanos;
+	private volatile AtomicReferenceArray<RequestTrace> traces = new AtomicReferenceArray<>(100);
+	private final AtomicLong captured = new AtomicLong();
+	private volatile Consumer<RequestTrace> listener;
+
+	/**
+	 * Creates a new sampler.
+	 *
+	 * @param threshold the duration from which requests are kept
+	 * @param unit the unit of the threshold
+	 */
+	public SlowRequestSampler(long threshold, TimeUnit unit) {
+		this.thresholdNanos = unit.toNanos(threshold);
+	}
+
+	/**
+	 * Sets the number of traces that are kept. Defaults to 100.
+	 * Traces captured before calling this are discarded.
+	 *
+	 * @param capacity the number of traces
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SlowRequestSampler capacity(int capacity) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.traces = new AtomicReferenceArray<>(capacity);
+		captured.set(0);
+		return this;
+	}
+
+	/**
+	 * Sets a listener that is called with every slow request, for example to log it.
+	 * It is called on the thread that handled the request.
+	 *
+	 * @param listener the listener, or null to remove it
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SlowRequestSampler listener(Consumer<RequestTrace> listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	@Override
+	public void completed(RequestTrace trace) {
+		if(trace.getDurationNanos() < thresholdNanos)
+			return;
+
+		AtomicReferenceArray<RequestTrace> traces = this.traces;
+		traces.set((int) (captured.getAndIncrement() % traces.length()), trace);
+		Consumer<RequestTrace> listener = this.listener;
+		if(listener != null)
+			listener.accept(trace);
+	}
+
+	/**
+	 * Returns the slow requests that are kept.
+	 *
+	 * @return the traces, newest first
+	 */
+	public List<RequestTrace> getSlowRequests() {
+		AtomicReferenceArray<RequestTrace> traces = this.traces;
+		long end = captured.get();
+		int count = (int) Math.min(end, traces.length());
+
+		List<RequestTrace> list = new ArrayList<>(count);
+		for(long i = end - 1; i >= end - count; i--) {
+			RequestTrace trace = traces.get((int) (i % traces.length()));
+			if(trace != null)
+				list.add(trace);
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the total number of slow requests, including the ones that were replaced.
+	 *
+	 * @return the number of slow requests
+	 */
+	public long getCaptured() {
+		return captured.get();
+	}
+
+	public long getThresholdNanos() {
+		return thresholdNanos;
+	}
+
+}
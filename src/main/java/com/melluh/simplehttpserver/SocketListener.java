@@ -2,6 +2,7 @@ package com.melluh.simplehttpserver;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.logging.Level;
@@ -21,8 +22,34 @@ public class SocketListener implements Runnable {
 		while(!socket.isClosed()) {
 			try {
 				Socket clientSocket = socket.accept();
-				InputStream in = clientSocket.getInputStream();
-				server.getClientHandler().acceptClient(new ServerClient(server, clientSocket, in));
+				long acceptedNanos = System.nanoTime();
+				InetAddress address = clientSocket.getInetAddress();
+				RateLimiter rateLimit = server.getConnectionRateLimit();
+				if(rateLimit != null && rateLimit.tryAcquire(address) != 0) {
+					server.getMetrics().connectionRateLimited();
+					HttpUtils.close(clientSocket);
+					continue;
+				}
+				
+				// Checked before anything else is allocated for the connection
+				ClientHandler clientHandler = server.getClientHandler();
+				if(!clientHandler.reserve(address)) {
+					server.getMetrics().connectionRejected();
+					HttpUtils.close(clientSocket);
+					continue;
+				}
+				
+				InputStream in;
+				try {
+					server.getOptions().apply(clientSocket);
+					in = clientSocket.getInputStream();
+				} catch (IOException ex) {
+					clientHandler.release(address);
+					HttpUtils.close(clientSocket);
+					throw ex;
+				}
+				
+				clientHandler.acceptClient(new ServerClient(server, clientSocket, in, acceptedNanos));
 			} catch (IOException ex) {
 				HttpServer.LOGGER.log(Level.SEVERE, "Error handling client connection", ex);
 			}
@@ -0,0 +1,197 @@
+package com.melluh.simplehttpserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * A hashed timer wheel, used to track connection deadlines without creating
+ * a timer per connection. All timeouts share a single thread, which advances
+ * the wheel every tick and runs expired tasks.
+ *
+ * <br><br>
+ * Expired tasks run on the wheel thread, so they must be short and must not
+ * block. Scheduling and cancelling are lock-free and may be done from any thread.
+ */
+public class TimeoutWheel implements Runnable {
+
+	private static final int WHEEL_SIZE = 512; // must be a power of two
+	private static final int MASK = WHEEL_SIZE - 1;
+
+	private final long tickNanos;
+	private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+	private final long startNanos = System.nanoTime();
+	private long tick; // only accessed by the wheel thread
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a new timeout wheel, with the specified tick duration.
+	 * Timeouts fire with a precision of one tick.
+	 *
+	 * @param tickMillis tick duration in milliseconds
+	 */
+	public TimeoutWheel(long tickMillis) {
+		if(tickMillis <= 0)
+			throw new IllegalArgumentException("tickMillis must be positive");
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+	}
+
+	/**
+	 * Starts the wheel on a new daemon thread.
+	 *
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TimeoutWheel start() {
+		Thread thread = new Thread(this);
+		thread.setName("Timeout Wheel Thread");
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+
+	/**
+	 * Stops the wheel. Pending timeouts will not fire.
+	 */
+	public void stop() {
+		this.running = false;
+	}
+
+	/**
+	 * Schedules a task to run once the specified delay has passed.
+	 *
+	 * @param task the task to run
+	 * @param delay the delay
+	 * @param unit unit of the delay
+	 * @return a handle that can be used to cancel the timeout
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	@Override
+	public void run() {
+		while(running) {
+			long deadline = startNanos + (tick + 1) * tickNanos;
+			long sleepNanos;
+			while((sleepNanos = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, sleepNanos);
+			}
+
+			this.transferPending();
+			this.expireBucket(buckets[(int) (tick & MASK)]);
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while((timeout = pending.poll()) != null) {
+			if(timeout.isCancelled())
+				continue;
+
+			long ticks = Math.max((timeout.deadline - startNanos) / tickNanos, tick);
+			timeout.remainingRounds = (ticks - tick) / WHEEL_SIZE;
+
+			int index = (int) (ticks & MASK);
+			timeout.next = buckets[index];
+			buckets[index] = timeout;
+		}
+	}
+
+	private void expireBucket(Timeout head) {
+		int index = (int) (tick & MASK);
+		Timeout previous = null;
+		Timeout timeout = head;
+
+		while(timeout != null) {
+			Timeout next = timeout.next;
+			boolean remove;
+
+			if(timeout.isCancelled()) {
+				remove = true;
+			} else if(timeout.remainingRounds <= 0) {
+				remove = true;
+				timeout.expire();
+			} else {
+				remove = false;
+				timeout.remainingRounds--;
+			}
+
+			if(remove) {
+				if(previous == null) {
+					buckets[index] = next;
+				} else {
+					previous.next = next;
+				}
+				timeout.next = null;
+			} else {
+				previous = timeout;
+			}
+
+			timeout = next;
+		}
+	}
+
+	/**
+	 * A scheduled task on a {@link TimeoutWheel}.
+	 */
+	public static class Timeout {
+
+		private static final int STATE_PENDING = 0;
+		private static final int STATE_CANCELLED = 1;
+		private static final int STATE_EXPIRED = 2;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final Runnable task;
+		private final long deadline;
+		private volatile int state = STATE_PENDING;
+
+		// only accessed by the wheel thread
+		private long remainingRounds;
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels this timeout, if it hasn't fired yet.
+		 *
+		 * @return true if the timeout was cancelled, false if it already fired
+		 */
+		public boolean cancel() {
+			return STATE_UPDATER.compareAndSet(this, STATE_PENDING, STATE_CANCELLED);
+		}
+
+		public boolean isCancelled() {
+			return state == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == STATE_EXPIRED;
+		}
+
+		private void expire() {
+			if(!STATE_UPDATER.compareAndSet(this, STATE_PENDING, STATE_EXPIRED))
+				return;
+
+			try {
+				task.run();
+			} catch (Throwable ex) {
+				HttpServer.LOGGER.log(Level.SEVERE, "Error in timeout task", ex);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,205 @@
+package com.melluh.simplehttpserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Objects;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS configuration for a {@link HttpServer}. The server certificate and key
+ * are loaded from a keystore, or an existing {@link SSLContext} can be used.
+ *
+ * <br><br>
+ * Sessions are cached, so returning clients can resume them with an abbreviated
+ * handshake. Clients negotiate the protocol with ALPN, offering <code>h2</code>
+ * when HTTP/2 is enabled and <code>http/1.1</code> otherwise.
+ *
+ * @see HttpServer#tls(TlsOptions)
+ */
+public class TlsOptions {
+
+	private File keyStoreFile;
+	private String keyStoreType = KeyStore.getDefaultType();
+	private char[] keyStorePassword;
+	private char[] keyPassword;
+	private SSLContext sslContext;
+
+	private String[] protocols;
+	private String[] cipherSuites;
+	private int sessionCacheSize = 10000;
+	private int sessionTimeout = 86400;
+
+	/**
+	 * Sets the keystore containing the server certificate chain and private key.
+	 *
+	 * @param file the keystore file
+	 * @param password the keystore password, also used for the key unless {@link #keyPassword(String)} is set
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions keyStore(File file, String password) {
+		Objects.requireNonNull(file, "file is missing");
+		this.keyStoreFile = file;
+		this.keyStorePassword = password != null ? password.toCharArray() : null;
+		return this;
+	}
+
+	/**
+	 * Sets the type of the keystore, such as <code>PKCS12</code> or <code>JKS</code>.
+	 * Defaults to the platform's default keystore type.
+	 *
+	 * @param keyStoreType the keystore type
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions keyStoreType(String keyStoreType) {
+		Objects.requireNonNull(keyStoreType, "keyStoreType is missing");
+		this.keyStoreType = keyStoreType;
+		return this;
+	}
+
+	/**
+	 * Sets the password of the private key, if it differs from the keystore password.
+	 *
+	 * @param keyPassword the key password
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions keyPassword(String keyPassword) {
+		this.keyPassword = keyPassword != null ? keyPassword.toCharArray() : null;
+		return this;
+	}
+
+	/**
+	 * Uses an existing SSL context instead of loading a keystore.
+	 *
+	 * @param sslContext the initialized SSL context
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions sslContext(SSLContext sslContext) {
+		Objects.requireNonNull(sslContext, "sslContext is missing");
+		this.sslContext = sslContext;
+		return this;
+	}
+
+	/**
+	 * Restricts the enabled TLS protocol versions, for example <code>TLSv1.3</code>.
+	 * By default, the platform defaults are used.
+	 *
+	 * @param protocols the protocol versions
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions protocols(String... protocols) {
+		this.protocols = protocols;
+		return this;
+	}
+
+	/**
+	 * Restricts the enabled cipher suites.
+	 * By default, the platform defaults are used.
+	 *
+	 * @param cipherSuites the cipher suites
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions cipherSuites(String... cipherSuites) {
+		this.cipherSuites = cipherSuites;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of sessions kept for resumption.
+	 * Zero means no limit.
+	 *
+	 * @param sessionCacheSize the maximum number of cached sessions
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions sessionCacheSize(int sessionCacheSize) {
+		this.sessionCacheSize = sessionCacheSize;
+		return this;
+	}
+
+	/**
+	 * Sets how long a session can be resumed after it was created.
+	 * Zero means no limit.
+	 *
+	 * @param sessionTimeout the session timeout in seconds
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public TlsOptions sessionTimeout(int sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+		return this;
+	}
+
+	/**
+	 * Method for internal use.
+	 * Creates the SSL context, loading the keystore if needed.
+	 *
+	 * @return the SSL context
+	 * @throws IOException if the keystore could not be loaded
+	 */
+	protected SSLContext createContext() throws IOException {
+		SSLContext context = sslContext;
+		if(context == null) {
+			if(keyStoreFile == null)
+				throw new IllegalStateException("No keystore or SSL context configured");
+
+			try(InputStream in = new FileInputStream(keyStoreFile)) {
+				KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+				keyStore.load(in, keyStorePassword);
+
+				KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				keyManagerFactory.init(keyStore, keyPassword != null ? keyPassword : keyStorePassword);
+
+				context = SSLContext.getInstance("TLS");
+				context.init(keyManagerFactory.getKeyManagers(), null, null);
+			} catch (GeneralSecurityException ex) {
+				throw new IOException("Failed to load keystore " + keyStoreFile, ex);
+			}
+		}
+
+		SSLSessionContext sessionContext = context.getServerSessionContext();
+		sessionContext.setSessionCacheSize(sessionCacheSize);
+		sessionContext.setSessionTimeout(sessionTimeout);
+		return context;
+	}
+
+	/**
+	 * Method for internal use.
+	 * Applies the protocol, cipher suite and ALPN settings to a server socket.
+	 *
+	 * @param socket the server socket
+	 * @param http2 whether to offer HTTP/2 over ALPN
+	 */
+	protected void apply(SSLServerSocket socket, boolean http2) {
+		SSLParameters params = socket.getSSLParameters();
+		if(protocols != null)
+			params.setProtocols(protocols);
+		if(cipherSuites != null)
+			params.setCipherSuites(cipherSuites);
+		params.setApplicationProtocols(http2 ? new String[] { "h2", "http/1.1" } : new String[] { "http/1.1" });
+		socket.setSSLParameters(params);
+	}
+
+	public String[] getProtocols() {
+		return protocols;
+	}
+
+	public String[] getCipherSuites() {
+		return cipherSuites;
+	}
+
+	public int getSessionCacheSize() {
+		return sessionCacheSize;
+	}
+
+	public int getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.melluh.simplehttpserver;
+
+/**
+ * The phases a request passes through, in order. Not every request reaches every
+ * phase: requests over HTTP/2 share the connection and have no accept or first byte
+ * of their own, only requests served by a router have a matched route, and requests
+ * that are answered with an error may skip straight to the response.
+ *
+ * @see RequestTrace
+ */
+public enum TracePhase {
+
+	/** The connection was accepted. */
+	ACCEPTED,
+	/** The first byte of the request was read. */
+	FIRST_BYTE,
+	/** The request line and headers were read and parsed. */
+	HEADERS_READ,
+	/** The body was read, or there was none. */
+	BODY_READ,
+	/** A route of a router matched the request. */
+	ROUTE_MATCHED,
+	/** The handlers and interceptors produced a response. */
+	HANDLER_DONE,
+	/** The response head, and the body unless it is detached, was flushed to the socket. */
+	RESPONSE_FLUSHED
+
+}
@@ -0,0 +1,95 @@
+package com.melluh.simplehttpserver.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+import com.melluh.simplehttpserver.protocol.MimeType;
+
+/**
+ * Immutable metadata of a file, as needed to serve it: its size,
+ * modification time, MIME type and entity tag.
+ *
+ * <br><br>
+ * When the content hash is known, the entity tag is derived from it, so it
+ * only changes when the content does. Until then, a tag derived from the size
+ * and modification time is used, which changes whenever the file is written.
+ *
+ * @see StaticRoot#get(String)
+ */
+public final class FileMetadata {
+
+	private final File file;
+	private final long length;
+	private final long lastModified;
+	private final String mimeType;
+	private final String contentHash;
+	private final String etag;
+
+	FileMetadata(File file, long length, long lastModified, String mimeType, String contentHash) {
+		this.file = file;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.mimeType = mimeType;
+		this.contentHash = contentHash;
+		this.etag = '"' + (contentHash != null ? contentHash : Long.toHexString(length) + "-" + Long.toHexString(lastModified)) + '"';
+	}
+
+	/**
+	 * Reads the metadata of a file, without hashing its content.
+	 *
+	 * @param file the file
+	 * @return the metadata
+	 * @throws IOException if the file does not exist or can't be read
+	 */
+	public static FileMetadata read(File file) throws IOException {
+		Objects.requireNonNull(file, "file is missing");
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		return new FileMetadata(file, attributes.size(), attributes.lastModifiedTime().toMillis(), MimeType.getMimeType(file.getName()), null);
+	}
+
+	FileMetadata withContentHash(String contentHash) {
+		return new FileMetadata(file, length, lastModified, mimeType, contentHash);
+	}
+
+	boolean isSameVersion(long length, long lastModified) {
+		return this.length == length && this.lastModified == lastModified;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * Returns the content hash of the file, if it has been computed yet.
+	 *
+	 * @return the base64url encoded hash, or null if not known yet
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * Returns the strong entity tag of the file, including the quotes.
+	 *
+	 * @return the entity tag
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+}
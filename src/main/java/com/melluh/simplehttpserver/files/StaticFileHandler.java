@@ -0,0 +1,208 @@
+package com.melluh.simplehttpserver.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.logging.Level;
+
+import com.melluh.simplehttpserver.HttpServer;
+import com.melluh.simplehttpserver.HttpUtils;
+import com.melluh.simplehttpserver.Request;
+import com.melluh.simplehttpserver.protocol.Method;
+import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.response.Response;
+import com.melluh.simplehttpserver.router.Route;
+
+/**
+ * Serves the files in a directory under a URL prefix. For example, with the prefix
+ * <code>/static</code>, a request for <code>/static/css/site.css</code> is answered
+ * with the file <code>css/site.css</code> in the directory.
+ *
+ * <br><br>
+ * Files are looked up in the in-memory index of a {@link StaticRoot}, so only files
+ * that were found in the directory can ever be served, and requests for files that
+ * don't exist never touch the disk. Requests outside the prefix, or for files that
+ * don't exist, return null, so other routes can handle them:
+ * <pre>
+ * router.all(new StaticFileHandler("/static", new File("www")));
+ * </pre>
+ */
+public class StaticFileHandler implements Route {
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final String prefix;
+	private final StaticRoot root;
+
+	private String[] indexFiles = { "index.html" };
+	private boolean serveHidden;
+
+	/**
+	 * Creates a new static file handler, serving the files in a directory.
+	 * The directory is indexed and watched for changes.
+	 *
+	 * @param prefix the URL prefix, such as <code>/static</code>, or <code>/</code> for the whole site
+	 * @param directory the directory
+	 * @throws IOException if the directory can't be read
+	 */
+	public StaticFileHandler(String prefix, File directory) throws IOException {
+		this(prefix, new StaticRoot(directory).start());
+	}
+
+	/**
+	 * Creates a new static file handler, serving the files of a static root.
+	 * The root must already be started.
+	 *
+	 * @param prefix the URL prefix, such as <code>/static</code>, or <code>/</code> for the whole site
+	 * @param root the static root
+	 */
+	public StaticFileHandler(String prefix, StaticRoot root) {
+		Objects.requireNonNull(prefix, "prefix is missing");
+		Objects.requireNonNull(root, "root is missing");
+		if(!prefix.startsWith("/"))
+			throw new IllegalArgumentException("prefix must start with /");
+
+		this.prefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+		this.root = root;
+	}
+
+	/**
+	 * Sets the files that are served for requests to a directory, in order of preference.
+	 * Defaults to <code>index.html</code>.
+	 *
+	 * @param indexFiles the index file names, none to disable index files
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public StaticFileHandler indexFiles(String... indexFiles) {
+		Objects.requireNonNull(indexFiles, "indexFiles is missing");
+		this.indexFiles = indexFiles;
+		return this;
+	}
+
+	/**
+	 * Sets whether files and directories starting with a dot, such as
+	 * <code>.git</code> or <code>.env</code>, are served. Disabled by default.
+	 *
+	 * @param serveHidden whether to serve hidden files
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public StaticFileHandler serveHidden(boolean serveHidden) {
+		this.serveHidden = serveHidden;
+		return this;
+	}
+
+	@Override
+	public Response serve(Request request) {
+		if(request.getMethod() != Method.GET && request.getMethod() != Method.HEAD)
+			return null;
+
+		String location = request.getLocation();
+		if(!location.startsWith(prefix) || (location.length() > prefix.length() && location.charAt(prefix.length()) != '/'))
+			return null;
+
+		String path = this.normalize(location, prefix.length());
+		if(path == null)
+			return null;
+
+		FileMetadata metadata = path.isEmpty() ? null : root.get(path);
+		if(metadata == null) {
+			metadata = this.findIndexFile(path);
+			if(metadata == null)
+				return null;
+
+			// Relative links in the index file only work if the URL ends with a slash
+			if(!location.endsWith("/"))
+				return new Response(Status.MOVED_PERMANENTLY).header("location", this.getRedirectLocation(request));
+		}
+
+		try {
+			return HttpUtils.serveFile(request, metadata);
+		} catch (IOException ex) {
+			// Deleted after it was indexed, the watcher will remove it shortly
+			HttpServer.LOGGER.log(Level.FINE, "Failed to serve " + metadata.getFile(), ex);
+			return null;
+		}
+	}
+
+	private String getRedirectLocation(Request request) {
+		// Leading slashes are collapsed, //host/dir would be a protocol-relative URL to another host
+		String location = request.getLocation();
+		int start = 0;
+		while(start < location.length() - 1 && location.charAt(start + 1) == '/') {
+			start++;
+		}
+
+		String redirect = encodePath(location.substring(start)) + "/";
+		String query = request.getQueryString();
+		return query != null ? redirect + "?" + query : redirect;
+	}
+
+	private FileMetadata findIndexFile(String path) {
+		for(String indexFile : indexFiles) {
+			FileMetadata metadata = root.get(path.isEmpty() ? indexFile : path + "/" + indexFile);
+			if(metadata != null)
+				return metadata;
+		}
+		return null;
+	}
+
+	/**
+	 * Turns the part of the location after the prefix into a path in the index, separated by
+	 * <code>/</code> and without empty segments. Returns null for paths that can't be served:
+	 * paths that contain <code>..</code> segments, backslashes or null characters, and
+	 * hidden files unless enabled.
+	 */
+	private String normalize(String location, int start) {
+		StringBuilder builder = null;
+		int length = location.length();
+		int segmentStart = start;
+
+		for(int i = start; i <= length; i++) {
+			char c = i < length ? location.charAt(i) : '/';
+			if(c == '\\' || c == '\0')
+				return null;
+			if(c != '/')
+				continue;
+
+			int segmentLength = i - segmentStart;
+			boolean empty = segmentLength == 0 || (segmentLength == 1 && location.charAt(segmentStart) == '.');
+			if(!empty) {
+				if(location.charAt(segmentStart) == '.' && (!serveHidden || (segmentLength == 2 && location.charAt(segmentStart + 1) == '.')))
+					return null;
+
+				if(builder == null)
+					builder = new StringBuilder(length - start);
+				else
+					builder.append('/');
+				builder.append(location, segmentStart, i);
+			}
+			segmentStart = i + 1;
+		}
+
+		return builder != null ? builder.toString() : "";
+	}
+
+	// Percent-encodes a decoded path for the Location header, leaving slashes and unreserved characters
+	private static String encodePath(String path) {
+		StringBuilder builder = new StringBuilder(path.length() + 16);
+		for(byte b : path.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xFF);
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '/' || c == '-' || c == '.' || c == '_' || c == '~') {
+				builder.append(c);
+			} else {
+				builder.append('%').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+			}
+		}
+		return builder.toString();
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public StaticRoot getRoot() {
+		return root;
+	}
+
+}
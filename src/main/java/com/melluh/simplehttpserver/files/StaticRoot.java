@@ -0,0 +1,413 @@
+package com.melluh.simplehttpserver.files;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import com.melluh.simplehttpserver.BufferPool;
+import com.melluh.simplehttpserver.HttpServer;
+import com.melluh.simplehttpserver.protocol.MimeType;
+
+/**
+ * An index of the files in a directory tree, for serving them as static files.
+ * The metadata of every file is kept in memory, so looking up a file, including
+ * one that doesn't exist, never touches the disk.
+ *
+ * <br><br>
+ * The content of every file is hashed once in the background, to give it a
+ * strong entity tag. The index is kept up to date with a {@link WatchService},
+ * and can be persisted to a file with {@link #indexFile(File)}, so hashes of
+ * unchanged files don't have to be computed again after a restart.
+ */
+public class StaticRoot implements Closeable {
+
+	private static final String INDEX_HEADER = "# simple-http-server static index v1";
+
+	// 128 bits of SHA-256 is plenty to tell versions of a file apart
+	private static final int HASH_LENGTH = 16;
+
+	private final Path directory;
+	private final Map<String, FileMetadata> files = new ConcurrentHashMap<>();
+	private final Map<WatchKey, Path> watchKeys = new ConcurrentHashMap<>();
+
+	private File indexFile;
+	private boolean watch = true;
+
+	private WatchService watchService;
+	private ExecutorService hasher;
+	private final AtomicInteger pendingHashes = new AtomicInteger();
+	private final AtomicBoolean dirty = new AtomicBoolean();
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new static root. Call {@link #start()} to build the index.
+	 *
+	 * @param directory the root directory
+	 */
+	public StaticRoot(File directory) {
+		Objects.requireNonNull(directory, "directory is missing");
+		this.directory = directory.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Sets the file the index is persisted to. It is loaded on start,
+	 * and written whenever all pending files have been hashed.
+	 *
+	 * @param indexFile the index file, or null to not persist the index
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public StaticRoot indexFile(File indexFile) {
+		this.indexFile = indexFile;
+		return this;
+	}
+
+	/**
+	 * Sets whether the directory is watched for changes. When disabled,
+	 * the index reflects the directory as it was when it was started.
+	 * Enabled by default.
+	 *
+	 * @param watch whether to watch for changes
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public StaticRoot watch(boolean watch) {
+		this.watch = watch;
+		return this;
+	}
+
+	/**
+	 * Builds the index and starts watching the directory. Hashes that were
+	 * persisted for files with the same size and modification time are reused,
+	 * other files are hashed in the background.
+	 *
+	 * @return a reference to this, so the API can be used fluently
+	 * @throws IOException if the directory can't be read
+	 */
+	public StaticRoot start() throws IOException {
+		if(!Files.isDirectory(directory))
+			throw new IOException(directory + " is not a directory");
+
+		this.hasher = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable);
+			thread.setName("Static Root Hasher Thread");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+
+		if(watch)
+			this.watchService = directory.getFileSystem().newWatchService();
+
+		Map<String, String[]> persisted = this.loadIndex();
+		this.scan(directory, persisted);
+
+		if(watch) {
+			Thread thread = new Thread(this::watchLoop);
+			thread.setName("Static Root Watcher Thread");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// Nothing to hash, but files may have been removed since the index was written
+		if(pendingHashes.get() == 0 && indexFile != null)
+			this.saveIndex();
+		return this;
+	}
+
+	/**
+	 * Looks up a file in the index.
+	 *
+	 * @param path the path relative to the root directory, separated by <code>/</code>, without a leading slash
+	 * @return the metadata, or null if there is no such file
+	 */
+	public FileMetadata get(String path) {
+		return files.get(path);
+	}
+
+	/**
+	 * Returns the number of files in the index.
+	 *
+	 * @return the number of files
+	 */
+	public int size() {
+		return files.size();
+	}
+
+	public File getDirectory() {
+		return directory.toFile();
+	}
+
+	/**
+	 * Stops watching the directory, and persists the index if an index file is set.
+	 */
+	@Override
+	public void close() {
+		if(closed)
+			return;
+		this.closed = true;
+
+		if(hasher != null)
+			hasher.shutdownNow();
+		if(watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ex) {
+				HttpServer.LOGGER.log(Level.WARNING, "Failed to close watch service", ex);
+			}
+		}
+		if(indexFile != null)
+			this.saveIndex();
+	}
+
+	private void scan(Path start, Map<String, String[]> persisted) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+				if(watchService != null)
+					watchKeys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				if(attributes.isRegularFile())
+					StaticRoot.this.update(file, attributes, persisted);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException ex) {
+				// Files can disappear while walking, or be unreadable
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void update(Path file, BasicFileAttributes attributes, Map<String, String[]> persisted) {
+		String key = this.getKey(file);
+		long length = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+
+		FileMetadata existing = files.get(key);
+		if(existing != null && existing.isSameVersion(length, lastModified))
+			return;
+
+		String hash = null;
+		String[] entry = persisted != null ? persisted.get(key) : null;
+		if(entry != null && entry[0].equals(Long.toString(length)) && entry[1].equals(Long.toString(lastModified)))
+			hash = entry[2];
+
+		FileMetadata metadata = new FileMetadata(file.toFile(), length, lastModified, MimeType.getMimeType(file.getFileName().toString()), hash);
+		files.put(key, metadata);
+		dirty.set(true);
+
+		if(hash == null)
+			this.queueHash(key, metadata);
+	}
+
+	private void remove(Path path) {
+		String key = this.getKey(path);
+		String prefix = key + "/";
+		if(files.keySet().removeIf(name -> name.equals(key) || name.startsWith(prefix)))
+			dirty.set(true);
+	}
+
+	private String getKey(Path file) {
+		String key = directory.relativize(file).toString();
+		return File.separatorChar == '/' ? key : key.replace(File.separatorChar, '/');
+	}
+
+	private void queueHash(String key, FileMetadata metadata) {
+		pendingHashes.incrementAndGet();
+		try {
+			hasher.execute(() -> {
+				try {
+					String hash = hash(metadata.getFile());
+					if(hash != null && files.replace(key, metadata, metadata.withContentHash(hash))) // unless it changed meanwhile
+						dirty.set(true);
+				} finally {
+					if(pendingHashes.decrementAndGet() == 0 && indexFile != null && !closed)
+						this.saveIndex();
+				}
+			});
+		} catch (RuntimeException ex) {
+			pendingHashes.decrementAndGet(); // rejected, the root was closed
+		}
+	}
+
+	private static String hash(File file) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not supported on system", ex);
+		}
+
+		byte[] buffer = BufferPool.getDefault().acquire(BufferPool.LARGE);
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+			int len;
+			while((len = channel.read(wrapped)) != -1) {
+				digest.update(buffer, 0, len);
+				wrapped.clear();
+			}
+		} catch (NoSuchFileException ex) {
+			return null;
+		} catch (IOException ex) {
+			HttpServer.LOGGER.log(Level.WARNING, "Failed to hash " + file, ex);
+			return null;
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), HASH_LENGTH));
+	}
+
+	private void watchLoop() {
+		while(!closed) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException ex) {
+				return;
+			}
+
+			Path dir = watchKeys.get(key);
+			for(WatchEvent<?> event : key.pollEvents()) {
+				if(event.kind() == OVERFLOW) {
+					this.rescan();
+					continue;
+				}
+				if(dir != null)
+					this.handleEvent(dir.resolve((Path) event.context()));
+			}
+
+			if(!key.reset())
+				watchKeys.remove(key);
+		}
+	}
+
+	private void handleEvent(Path path) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException ex) {
+			this.remove(path); // deleted
+			return;
+		}
+
+		try {
+			if(attributes.isDirectory()) {
+				this.scan(path, null);
+			} else if(attributes.isRegularFile()) {
+				this.update(path, attributes, null);
+			}
+		} catch (IOException ex) {
+			HttpServer.LOGGER.log(Level.WARNING, "Failed to index " + path, ex);
+		}
+	}
+
+	// Events were lost, so compare the whole tree with the index
+	private void rescan() {
+		try {
+			Map<String, FileMetadata> before = new HashMap<>(files);
+			this.scan(directory, null);
+			for(String key : before.keySet()) {
+				if(!Files.isRegularFile(directory.resolve(key)))
+					files.remove(key);
+			}
+			dirty.set(true);
+		} catch (IOException ex) {
+			HttpServer.LOGGER.log(Level.WARNING, "Failed to rescan " + directory, ex);
+		}
+	}
+
+	private Map<String, String[]> loadIndex() {
+		if(indexFile == null || !indexFile.isFile())
+			return null;
+
+		Map<String, String[]> entries = new HashMap<>();
+		try(BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+			if(!INDEX_HEADER.equals(reader.readLine()))
+				return null; // unknown format, start over
+
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", 4);
+				if(parts.length == 4)
+					entries.put(parts[3], parts);
+			}
+		} catch (IOException ex) {
+			HttpServer.LOGGER.log(Level.WARNING, "Failed to load static index " + indexFile, ex);
+			return null;
+		}
+		return entries;
+	}
+
+	private synchronized void saveIndex() {
+		if(!dirty.getAndSet(false))
+			return;
+
+		// Written next to the index and moved over it, so a crash never leaves a partial index
+		Path target = indexFile.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		try {
+			try(BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(INDEX_HEADER);
+				writer.write('\n');
+				for(Map.Entry<String, FileMetadata> entry : files.entrySet()) {
+					FileMetadata metadata = entry.getValue();
+					if(metadata.getContentHash() == null || entry.getKey().indexOf('\n') >= 0)
+						continue;
+
+					writer.write(Long.toString(metadata.getLength()));
+					writer.write('\t');
+					writer.write(Long.toString(metadata.getLastModified()));
+					writer.write('\t');
+					writer.write(metadata.getContentHash());
+					writer.write('\t');
+					writer.write(entry.getKey());
+					writer.write('\n');
+				}
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			HttpServer.LOGGER.log(Level.WARNING, "Failed to save static index " + indexFile, ex);
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.melluh.simplehttpserver.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+/**
+ * Decodes HPACK header blocks. A decoder keeps the dynamic table for a single
+ * connection, so blocks must be decoded in the order they were received.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7541">RFC 7541</a>.
+ */
+public class HpackDecoder {
+
+	private final HpackTable table;
+	private final int maxTableSize;
+	private final int maxHeaderListSize;
+
+	/**
+	 * Creates a new decoder.
+	 *
+	 * @param maxTableSize the table size advertised in <code>SETTINGS_HEADER_TABLE_SIZE</code>
+	 * @param maxHeaderListSize the maximum size of a decoded header list
+	 */
+	public HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+		this.table = new HpackTable(maxTableSize);
+		this.maxTableSize = maxTableSize;
+		this.maxHeaderListSize = maxHeaderListSize;
+	}
+
+	/**
+	 * Decodes a complete header block.
+	 *
+	 * @param block buffer containing the block
+	 * @param offset offset of the block in the buffer
+	 * @param length length of the block
+	 * @param consumer called with the name and value of each header, in order
+	 * @throws Http2Exception if the block is invalid or too large
+	 */
+	public void decode(byte[] block, int offset, int length, BiConsumer<String, String> consumer) throws Http2Exception {
+		Cursor cursor = new Cursor(block, offset, offset + length);
+		int listSize = 0;
+		boolean headerSeen = false;
+
+		while(cursor.position < cursor.end) {
+			int b = block[cursor.position] & 0xFF;
+			String name;
+			String value;
+
+			if((b & 0x80) != 0) {
+				// Indexed header field
+				int index = cursor.readInteger(7);
+				name = table.getName(index);
+				value = table.getValue(index);
+			} else if((b & 0x40) != 0) {
+				// Literal with incremental indexing
+				name = this.readName(cursor, 6);
+				value = cursor.readString();
+				table.add(name, value);
+			} else if((b & 0x20) != 0) {
+				// Dynamic table size update, only allowed at the start of a block
+				if(headerSeen)
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update after header field");
+
+				int newSize = cursor.readInteger(5);
+				if(newSize > maxTableSize)
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update exceeds limit");
+				table.setMaxSize(newSize);
+				continue;
+			} else {
+				// Literal without indexing (0000) or never indexed (0001)
+				name = this.readName(cursor, 4);
+				value = cursor.readString();
+			}
+
+			headerSeen = true;
+			listSize += name.length() + value.length() + 32;
+			if(listSize > maxHeaderListSize)
+				throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header list too large");
+
+			consumer.accept(name, value);
+		}
+	}
+
+	private String readName(Cursor cursor, int prefix) throws Http2Exception {
+		int index = cursor.readInteger(prefix);
+		return index != 0 ? table.getName(index) : cursor.readString();
+	}
+
+	private static class Cursor {
+
+		private final byte[] data;
+		private final int end;
+		private int position;
+
+		private Cursor(byte[] data, int position, int end) {
+			this.data = data;
+			this.position = position;
+			this.end = end;
+		}
+
+		private int readInteger(int prefix) throws Http2Exception {
+			int max = (1 << prefix) - 1;
+			int value = data[position++] & max;
+			if(value < max)
+				return value;
+
+			int shift = 0;
+			int b;
+			do {
+				if(position >= end)
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated integer");
+				if(shift > 21)
+					throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Integer overflow");
+
+				b = data[position++] & 0xFF;
+				value += (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+
+			return value;
+		}
+
+		private String readString() throws Http2Exception {
+			if(position >= end)
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+
+			boolean huffman = (data[position] & 0x80) != 0;
+			int length = this.readInteger(7);
+			if(length > end - position)
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated string");
+
+			String str = huffman ? HpackHuffman.decode(data, position, length) : new String(data, position, length, StandardCharsets.ISO_8859_1);
+			position += length;
+			return str;
+		}
+
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.melluh.simplehttpserver.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes HPACK header blocks. An encoder keeps the dynamic table for a single
+ * connection, so blocks must be sent in the order they were encoded.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7541">RFC 7541</a>.
+ */
+public class HpackEncoder {
+
+	private final HpackTable table;
+	private final int localMaxTableSize;
+	private int pendingTableSize = -1;
+
+	/**
+	 * Creates a new encoder.
+	 *
+	 * @param maxTableSize the maximum dynamic table size this encoder will use
+	 */
+	public HpackEncoder(int maxTableSize) {
+		this.table = new HpackTable(maxTableSize);
+		this.localMaxTableSize = maxTableSize;
+	}
+
+	/**
+	 * Called when the peer changes <code>SETTINGS_HEADER_TABLE_SIZE</code>.
+	 * The change is signalled at the start of the next header block.
+	 *
+	 * @param peerMaxTableSize the table size the peer allows
+	 */
+	public void setPeerMaxTableSize(int peerMaxTableSize) {
+		int newSize = Math.min(localMaxTableSize, peerMaxTableSize);
+		if(newSize != table.getMaxSize())
+			this.pendingTableSize = newSize;
+	}
+
+	/**
+	 * Starts a new header block. This must be called before the
+	 * first header of every block.
+	 *
+	 * @param out the stream the block is written to
+	 */
+	public void startBlock(ByteArrayOutputStream out) {
+		if(pendingTableSize < 0)
+			return;
+
+		table.setMaxSize(pendingTableSize);
+		writeInteger(out, 0x20, 5, pendingTableSize);
+		this.pendingTableSize = -1;
+	}
+
+	/**
+	 * Encodes a single header. Headers that change on nearly every response
+	 * should not be indexed, so they don't push useful entries out of the table.
+	 *
+	 * @param out the stream the block is written to
+	 * @param name the header name, in lowercase
+	 * @param value the header value
+	 * @param index whether the header may be added to the dynamic table
+	 */
+	public void encode(ByteArrayOutputStream out, String name, String value, boolean index) {
+		int fieldIndex = table.findField(name, value);
+		if(fieldIndex > 0) {
+			writeInteger(out, 0x80, 7, fieldIndex);
+			return;
+		}
+
+		int nameIndex = table.findName(name);
+		if(index) {
+			writeInteger(out, 0x40, 6, nameIndex);
+			table.add(name, value);
+		} else {
+			writeInteger(out, 0x00, 4, nameIndex);
+		}
+
+		if(nameIndex == 0)
+			writeString(out, name);
+		writeString(out, value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String str) {
+		int huffmanLength = HpackHuffman.getEncodedLength(str);
+		if(huffmanLength < str.length()) {
+			writeInteger(out, 0x80, 7, huffmanLength);
+			HpackHuffman.encode(str, out);
+			return;
+		}
+
+		writeInteger(out, 0x00, 7, str.length());
+		byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeInteger(ByteArrayOutputStream out, int mask, int prefix, int value) {
+		int max = (1 << prefix) - 1;
+		if(value < max) {
+			out.write(mask | value);
+			return;
+		}
+
+		out.write(mask | max);
+		value -= max;
+		while(value >= 0x80) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+}
@@ -0,0 +1,250 @@
+package com.melluh.simplehttpserver.http2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HPACK header table, made up of the static table followed by a
+ * dynamic table of recently used header fields. Indices start at 1.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7541#section-2.3">RFC 7541, Section 2.3</a>.
+ */
+public class HpackTable {
+
+	private static final String[][] STATIC_TABLE = {
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" }
+	};
+
+	public static final int STATIC_LENGTH = STATIC_TABLE.length;
+
+	// Static lookups by name and by name + value, used when encoding
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+	private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+	static {
+		for(int i = STATIC_LENGTH - 1; i >= 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+			if(!STATIC_TABLE[i][1].isEmpty())
+				STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+		}
+	}
+
+	private static final int ENTRY_OVERHEAD = 32;
+
+	// Ring buffer of dynamic entries, newest first
+	private String[] names = new String[16];
+	private String[] values = new String[16];
+	private int head; // position the next entry is inserted at
+	private int count;
+	private int size;
+	private int maxSize;
+
+	/**
+	 * Creates a new table.
+	 *
+	 * @param maxSize maximum size of the dynamic table, in HPACK size units
+	 */
+	public HpackTable(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the name of the field at the specified index.
+	 *
+	 * @param index the index, starting at 1
+	 * @return the name
+	 * @throws Http2Exception if the index is out of range
+	 */
+	public String getName(int index) throws Http2Exception {
+		if(index >= 1 && index <= STATIC_LENGTH)
+			return STATIC_TABLE[index - 1][0];
+		return names[this.getDynamicPosition(index)];
+	}
+
+	/**
+	 * Returns the value of the field at the specified index.
+	 *
+	 * @param index the index, starting at 1
+	 * @return the value
+	 * @throws Http2Exception if the index is out of range
+	 */
+	public String getValue(int index) throws Http2Exception {
+		if(index >= 1 && index <= STATIC_LENGTH)
+			return STATIC_TABLE[index - 1][1];
+		return values[this.getDynamicPosition(index)];
+	}
+
+	private int getDynamicPosition(int index) throws Http2Exception {
+		int dynamicIndex = index - STATIC_LENGTH - 1;
+		if(dynamicIndex < 0 || dynamicIndex >= count)
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header table index " + index);
+		return (head - 1 - dynamicIndex) & (names.length - 1);
+	}
+
+	/**
+	 * Finds a field matching both the name and value.
+	 *
+	 * @param name the name
+	 * @param value the value
+	 * @return the index, or 0 if not present
+	 */
+	public int findField(String name, String value) {
+		Integer index = STATIC_FIELDS.get(name + '\0' + value);
+		if(index != null)
+			return index;
+
+		for(int i = 0; i < count; i++) {
+			int position = (head - 1 - i) & (names.length - 1);
+			if(names[position].equals(name) && values[position].equals(value))
+				return STATIC_LENGTH + 1 + i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds a field matching the name.
+	 *
+	 * @param name the name
+	 * @return the index, or 0 if not present
+	 */
+	public int findName(String name) {
+		Integer index = STATIC_NAMES.get(name);
+		if(index != null)
+			return index;
+
+		for(int i = 0; i < count; i++) {
+			if(names[(head - 1 - i) & (names.length - 1)].equals(name))
+				return STATIC_LENGTH + 1 + i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds a field to the dynamic table, evicting the oldest entries if needed.
+	 * A field larger than the table empties it and isn't added.
+	 *
+	 * @param name the name
+	 * @param value the value
+	 */
+	public void add(String name, String value) {
+		int entrySize = getEntrySize(name, value);
+		this.evict(maxSize - entrySize);
+		if(entrySize > maxSize)
+			return;
+
+		if(count == names.length)
+			this.grow();
+
+		names[head] = name;
+		values[head] = value;
+		head = (head + 1) & (names.length - 1);
+		count++;
+		size += entrySize;
+	}
+
+	/**
+	 * Changes the maximum size of the dynamic table, evicting entries if needed.
+	 *
+	 * @param maxSize the new maximum size
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		this.evict(maxSize);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	private void evict(int targetSize) {
+		while(count > 0 && size > targetSize) {
+			int position = (head - count) & (names.length - 1);
+			size -= getEntrySize(names[position], values[position]);
+			names[position] = null;
+			values[position] = null;
+			count--;
+		}
+	}
+
+	private void grow() {
+		String[] newNames = new String[names.length * 2];
+		String[] newValues = new String[values.length * 2];
+		for(int i = 0; i < count; i++) {
+			int position = (head - count + i) & (names.length - 1);
+			newNames[i] = names[position];
+			newValues[i] = values[position];
+		}
+
+		this.names = newNames;
+		this.values = newValues;
+		this.head = count;
+	}
+
+	private static int getEntrySize(String name, String value) {
+		return name.length() + value.length() + ENTRY_OVERHEAD;
+	}
+
+}
@@ -0,0 +1,71 @@
+package com.melluh.simplehttpserver.http2;
+
+/**
+ * Thrown when a peer violates the HTTP/2 protocol. Depending on whether
+ * a stream ID is set, this is either a stream or a connection error.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7540#section-7">RFC 7540, Section 7</a>.
+ */
+public class Http2Exception extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int SETTINGS_TIMEOUT = 0x4;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int CANCEL = 0x8;
+	public static final int COMPRESSION_ERROR = 0x9;
+	public static final int CONNECT_ERROR = 0xa;
+	public static final int ENHANCE_YOUR_CALM = 0xb;
+	public static final int INADEQUATE_SECURITY = 0xc;
+	public static final int HTTP_1_1_REQUIRED = 0xd;
+
+	private final int errorCode;
+	private final int streamId;
+
+	/**
+	 * Creates a new connection error.
+	 *
+	 * @param errorCode the HTTP/2 error code
+	 * @param msg description of the error
+	 */
+	public Http2Exception(int errorCode, String msg) {
+		this(errorCode, 0, msg);
+	}
+
+	/**
+	 * Creates a new stream error, or a connection error if the stream ID is 0.
+	 *
+	 * @param errorCode the HTTP/2 error code
+	 * @param streamId the stream the error applies to
+	 * @param msg description of the error
+	 */
+	public Http2Exception(int errorCode, int streamId, String msg) {
+		super(msg);
+		this.errorCode = errorCode;
+		this.streamId = streamId;
+	}
+
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	/**
+	 * Returns whether this error only affects a single stream,
+	 * rather than the entire connection.
+	 *
+	 * @return true if this is a stream error
+	 */
+	public boolean isStreamError() {
+		return streamId != 0;
+	}
+
+}
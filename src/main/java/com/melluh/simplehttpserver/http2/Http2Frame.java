@@ -0,0 +1,66 @@
+package com.melluh.simplehttpserver.http2;
+
+/**
+ * Contains the HTTP/2 frame types, flags and settings identifiers.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7540#section-6">RFC 7540, Section 6</a>.
+ */
+public class Http2Frame {
+
+	private Http2Frame() {}
+
+	public static final int HEADER_LENGTH = 9;
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	public static final int MAX_ALLOWED_FRAME_SIZE = 16777215;
+	public static final int DEFAULT_WINDOW_SIZE = 65535;
+	public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+	public static final int TYPE_DATA = 0x0;
+	public static final int TYPE_HEADERS = 0x1;
+	public static final int TYPE_PRIORITY = 0x2;
+	public static final int TYPE_RST_STREAM = 0x3;
+	public static final int TYPE_SETTINGS = 0x4;
+	public static final int TYPE_PUSH_PROMISE = 0x5;
+	public static final int TYPE_PING = 0x6;
+	public static final int TYPE_GOAWAY = 0x7;
+	public static final int TYPE_WINDOW_UPDATE = 0x8;
+	public static final int TYPE_CONTINUATION = 0x9;
+
+	public static final int FLAG_END_STREAM = 0x1;
+	public static final int FLAG_ACK = 0x1;
+	public static final int FLAG_END_HEADERS = 0x4;
+	public static final int FLAG_PADDED = 0x8;
+	public static final int FLAG_PRIORITY = 0x20;
+
+	public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	public static final int SETTINGS_ENABLE_PUSH = 0x2;
+	public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	/**
+	 * Reads a 32-bit big-endian integer.
+	 *
+	 * @param data the buffer
+	 * @param offset offset of the integer
+	 * @return the integer
+	 */
+	public static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Writes a 32-bit big-endian integer.
+	 *
+	 * @param data the buffer
+	 * @param offset offset to write at
+	 * @param value the integer
+	 */
+	public static void writeInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.melluh.simplehttpserver.multipart;
+
+import java.io.IOException;
+
+import com.melluh.simplehttpserver.protocol.Status;
+
+/**
+ * Thrown when a multipart body is malformed, or exceeds one of the limits.
+ * The status is the one the request should be answered with.
+ */
+public class MultipartException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Status status;
+
+	public MultipartException(Status status, String msg) {
+		super(msg);
+		this.status = status;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+}
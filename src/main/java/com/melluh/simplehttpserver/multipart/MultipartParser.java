@@ -0,0 +1,395 @@
+package com.melluh.simplehttpserver.multipart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.melluh.simplehttpserver.BufferPool;
+import com.melluh.simplehttpserver.ServerOptions;
+import com.melluh.simplehttpserver.protocol.MimeType;
+import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.protocol.UrlDecoder;
+
+/**
+ * A streaming parser for <code>multipart/form-data</code> bodies. The body is read
+ * once through a pooled buffer, so memory use is bounded no matter how large it is:
+ * parts above the memory threshold are written to temporary files as they arrive.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7578">RFC 7578</a>.
+ *
+ * <br><br>
+ * Boundaries are found with the Boyer-Moore-Horspool algorithm, which for typical
+ * boundaries skips most bytes of the content without comparing them.
+ */
+public class MultipartParser {
+
+	private static final int MAX_BOUNDARY_LENGTH = 70;
+	private static final int MAX_HEADER_SIZE = 8192;
+
+	private final InputStream in;
+	private long remaining;
+
+	private final byte[] delimiter;
+	private final int[] skip = new int[256];
+
+	private final int maxParts;
+	private final long maxPartSize;
+	private final int memoryThreshold;
+	private final File tempDirectory;
+
+	private byte[] buffer;
+	private int position;
+	private int limit;
+	private long memoryUsed; // by the parts kept in memory, together
+
+	/**
+	 * Creates a new parser, reading a body of known length.
+	 *
+	 * @param in the input stream, no more than <code>length</code> bytes are read from it
+	 * @param length length of the body
+	 * @param boundary the boundary, from the <code>Content-Type</code> header
+	 * @param options the options holding the limits
+	 */
+	public MultipartParser(InputStream in, long length, String boundary, ServerOptions options) {
+		this.in = in;
+		this.remaining = length;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.maxParts = options.getMaxParameters();
+		this.maxPartSize = options.getMultipartMaxPartSize();
+		this.memoryThreshold = options.getMultipartMemoryThreshold();
+		this.tempDirectory = options.getMultipartTempDirectory();
+
+		// Horspool's bad character table, how far the window can shift when a byte is last in it
+		Arrays.fill(skip, delimiter.length);
+		for(int i = 0; i < delimiter.length - 1; i++) {
+			skip[delimiter[i] & 0xFF] = delimiter.length - 1 - i;
+		}
+	}
+
+	/**
+	 * Returns the boundary of a multipart content type.
+	 *
+	 * @param contentType the <code>Content-Type</code> header, may be null
+	 * @return the boundary, or null if this is not a valid <code>multipart/form-data</code> type
+	 */
+	public static String getBoundary(String contentType) {
+		if(contentType == null || !contentType.regionMatches(true, 0, MimeType.MULTIPART_FORM_DATA, 0, MimeType.MULTIPART_FORM_DATA.length()))
+			return null;
+
+		String boundary = parseParams(contentType).get("boundary");
+		if(boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH)
+			return null;
+		return boundary;
+	}
+
+	/**
+	 * Reads the whole body and returns its parts. If parsing fails, the
+	 * temporary files of parts read so far are deleted.
+	 *
+	 * @return the parts, in order
+	 * @throws MultipartException if the body is malformed or exceeds a limit
+	 * @throws IOException if an I/O error occurs
+	 */
+	public List<Part> parse() throws IOException {
+		List<Part> parts = new ArrayList<>();
+		this.buffer = BufferPool.getDefault().acquire(BufferPool.LARGE);
+		try {
+			// The first boundary has no line break before it, pretend it does
+			buffer[0] = '\r';
+			buffer[1] = '\n';
+			this.limit = 2;
+
+			if(!this.copyUntilDelimiter(null))
+				throw new MultipartException(Status.BAD_REQUEST, "No boundary found");
+
+			while(true) {
+				if(!this.ensure(2))
+					throw new MultipartException(Status.BAD_REQUEST, "Unexpected end of body");
+				if(buffer[position] == '-' && buffer[position + 1] == '-')
+					return parts; // the close delimiter, anything after it is ignored
+
+				this.skipLineBreak();
+				if(parts.size() >= maxParts)
+					throw new MultipartException(Status.PAYLOAD_TOO_LARGE, "Too many parts");
+
+				Map<String, String> headers = this.readHeaders();
+				Map<String, String> disposition = parseParams(headers.getOrDefault("content-disposition", ""));
+
+				PartSink sink = new PartSink();
+				boolean complete;
+				try {
+					complete = this.copyUntilDelimiter(sink);
+					sink.finish();
+				} catch (IOException | RuntimeException ex) {
+					sink.discard();
+					throw ex;
+				}
+
+				parts.add(new Part(disposition.get("name"), getFileName(disposition), headers, sink.size, sink.getData(), sink.file));
+				if(!complete)
+					throw new MultipartException(Status.BAD_REQUEST, "Unexpected end of body");
+			}
+		} catch (IOException | RuntimeException ex) {
+			for(Part part : parts) {
+				part.delete();
+			}
+			throw ex;
+		} finally {
+			BufferPool.getDefault().release(buffer);
+			this.buffer = null;
+		}
+	}
+
+	/**
+	 * Copies the content up to the next delimiter to the sink, or discards it if there is no sink.
+	 * Returns whether a delimiter was found, the position is right after it.
+	 */
+	private boolean copyUntilDelimiter(PartSink sink) throws IOException {
+		while(true) {
+			int index = this.indexOfDelimiter();
+			if(index >= 0) {
+				if(sink != null)
+					sink.write(buffer, position, index - position);
+				this.position = index + delimiter.length;
+				return true;
+			}
+
+			// The end of the buffer may hold the start of a delimiter, keep it
+			int safe = limit - delimiter.length + 1;
+			if(safe > position) {
+				if(sink != null)
+					sink.write(buffer, position, safe - position);
+				this.position = safe;
+			}
+			if(!this.fill())
+				return false;
+		}
+	}
+
+	private int indexOfDelimiter() {
+		int last = delimiter.length - 1;
+		byte lastByte = delimiter[last];
+		int i = position;
+		while(i + last < limit) {
+			byte b = buffer[i + last];
+			if(b == lastByte) {
+				int j = last - 1;
+				while(j >= 0 && buffer[i + j] == delimiter[j]) {
+					j--;
+				}
+				if(j < 0)
+					return i;
+			}
+			i += skip[b & 0xFF];
+		}
+		return -1;
+	}
+
+	// A delimiter is followed by optional whitespace and a line break
+	private void skipLineBreak() throws IOException {
+		while(true) {
+			if(!this.ensure(1))
+				throw new MultipartException(Status.BAD_REQUEST, "Unexpected end of body");
+			byte b = buffer[position];
+			if(b != ' ' && b != '\t')
+				break;
+			position++;
+		}
+
+		if(!this.ensure(2) || buffer[position] != '\r' || buffer[position + 1] != '\n')
+			throw new MultipartException(Status.BAD_REQUEST, "Invalid boundary line");
+		position += 2;
+	}
+
+	private Map<String, String> readHeaders() throws IOException {
+		Map<String, String> headers = new HashMap<>();
+		int headerSize = 0;
+		while(true) {
+			int lineEnd;
+			while((lineEnd = this.indexOf((byte) '\n')) < 0) {
+				if(limit - position > MAX_HEADER_SIZE)
+					throw new MultipartException(Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Part headers too large");
+				if(!this.fill())
+					throw new MultipartException(Status.BAD_REQUEST, "Unexpected end of body");
+			}
+
+			int lineLength = lineEnd - position;
+			headerSize += lineLength + 1;
+			if(headerSize > MAX_HEADER_SIZE)
+				throw new MultipartException(Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Part headers too large");
+
+			if(lineLength > 0 && buffer[lineEnd - 1] == '\r')
+				lineLength--;
+			String line = new String(buffer, position, lineLength, StandardCharsets.UTF_8);
+			this.position = lineEnd + 1;
+
+			if(line.isEmpty())
+				return headers;
+
+			int colonIndex = line.indexOf(':');
+			if(colonIndex > 0)
+				headers.put(line.substring(0, colonIndex).trim().toLowerCase(Locale.ROOT), line.substring(colonIndex + 1).trim());
+		}
+	}
+
+	private int indexOf(byte b) {
+		for(int i = position; i < limit; i++) {
+			if(buffer[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private boolean ensure(int length) throws IOException {
+		while(limit - position < length) {
+			if(!this.fill())
+				return false;
+		}
+		return true;
+	}
+
+	// Moves the unread bytes to the start of the buffer, and reads more after them
+	private boolean fill() throws IOException {
+		if(remaining <= 0)
+			return false;
+
+		if(position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			this.limit -= position;
+			this.position = 0;
+		}
+
+		int read = in.read(buffer, limit, (int) Math.min(buffer.length - limit, remaining));
+		if(read < 0) {
+			this.remaining = 0;
+			return false;
+		}
+		this.limit += read;
+		this.remaining -= read;
+		return true;
+	}
+
+	private static String getFileName(Map<String, String> disposition) {
+		// The extended form holds a percent-encoded name, RFC 6266 section 4.3
+		String fileName = disposition.get("filename*");
+		if(fileName != null) {
+			int quoteIndex = fileName.indexOf("''");
+			fileName = quoteIndex >= 0 ? UrlDecoder.decodePath(fileName.substring(quoteIndex + 2)) : null;
+		}
+		if(fileName == null)
+			fileName = disposition.get("filename");
+		if(fileName == null)
+			return null;
+
+		// Some clients send the full path of the file
+		int slashIndex = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+		return slashIndex >= 0 ? fileName.substring(slashIndex + 1) : fileName;
+	}
+
+	/**
+	 * Parses the parameters of a header value such as <code>form-data; name="field"</code>.
+	 * Names are lowercased, quoted values are unquoted.
+	 */
+	private static Map<String, String> parseParams(String value) {
+		Map<String, String> params = new HashMap<>();
+		int length = value.length();
+		int i = value.indexOf(';');
+		while(i >= 0 && i < length) {
+			i++; // skip the semicolon
+			while(i < length && value.charAt(i) == ' ')
+				i++;
+
+			int equalsIndex = value.indexOf('=', i);
+			int semicolonIndex = value.indexOf(';', i);
+			if(equalsIndex < 0 || (semicolonIndex >= 0 && semicolonIndex < equalsIndex)) {
+				i = semicolonIndex;
+				continue;
+			}
+
+			String name = value.substring(i, equalsIndex).trim().toLowerCase(Locale.ROOT);
+			i = equalsIndex + 1;
+			if(i < length && value.charAt(i) == '"') {
+				StringBuilder builder = new StringBuilder();
+				for(i++; i < length && value.charAt(i) != '"'; i++) {
+					char c = value.charAt(i);
+					if(c == '\\' && i + 1 < length)
+						c = value.charAt(++i);
+					builder.append(c);
+				}
+				params.put(name, builder.toString());
+				i = value.indexOf(';', i);
+			} else {
+				int end = value.indexOf(';', i);
+				params.put(name, value.substring(i, end >= 0 ? end : length).trim());
+				i = end;
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Collects the content of a part in memory, and moves it to a temporary
+	 * file once the parts in memory together grow past the memory threshold.
+	 */
+	private class PartSink {
+
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private File file;
+		private OutputStream fileOut;
+		private long size;
+
+		private void write(byte[] data, int offset, int length) throws IOException {
+			if(length == 0)
+				return;
+
+			this.size += length;
+			if(maxPartSize >= 0 && size > maxPartSize)
+				throw new MultipartException(Status.PAYLOAD_TOO_LARGE, "Part too large");
+
+			if(fileOut == null && memoryUsed + length > memoryThreshold) {
+				this.file = File.createTempFile("upload-", ".tmp", tempDirectory);
+				this.fileOut = new FileOutputStream(file);
+				memory.writeTo(fileOut);
+				memoryUsed -= memory.size();
+				this.memory = null;
+			}
+
+			if(fileOut != null) {
+				fileOut.write(data, offset, length);
+			} else {
+				memory.write(data, offset, length);
+				memoryUsed += length;
+			}
+		}
+
+		private byte[] getData() {
+			return memory != null ? memory.toByteArray() : null;
+		}
+
+		private void finish() throws IOException {
+			if(fileOut != null)
+				fileOut.close();
+		}
+
+		private void discard() {
+			if(fileOut != null) {
+				try {
+					fileOut.close();
+				} catch (IOException ignored) {}
+			}
+			if(file != null)
+				file.delete();
+		}
+
+	}
+
+}
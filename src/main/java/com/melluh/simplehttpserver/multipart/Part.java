@@ -0,0 +1,179 @@
+package com.melluh.simplehttpserver.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A part of a <code>multipart/form-data</code> body, either a form field or an uploaded file.
+ * Small parts are kept in memory, larger parts are stored in a temporary file,
+ * which is deleted once the response has been sent.
+ *
+ * @see com.melluh.simplehttpserver.Request#getParts()
+ */
+public final class Part {
+
+	private final String name;
+	private final String fileName;
+	private final Map<String, String> headers;
+	private final long size;
+
+	private final byte[] data;
+	private volatile File file;
+
+	Part(String name, String fileName, Map<String, String> headers, long size, byte[] data, File file) {
+		this.name = name;
+		this.fileName = fileName;
+		this.headers = headers;
+		this.size = size;
+		this.data = data;
+		this.file = file;
+	}
+
+	/**
+	 * Returns the name of the form field this part belongs to.
+	 *
+	 * @return the name, or null if the part has none
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the name of the uploaded file, as sent by the client. Any directories in
+	 * it are removed, but it must still not be trusted as a name to store the file under.
+	 *
+	 * @return the file name, or null if this part is not a file
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Returns the value for the specified header of this part.
+	 * The name is case-insensitive.
+	 *
+	 * @param name name of the header
+	 * @return value of the header, or null if it isn't present
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Returns a set of all headers of this part.
+	 * All names are in lowercase.
+	 *
+	 * @return an immutable set of the headers
+	 */
+	public Set<String> getHeaders() {
+		return Collections.unmodifiableSet(headers.keySet());
+	}
+
+	/**
+	 * Returns the content type of this part.
+	 *
+	 * @return the content type, or null if it wasn't sent
+	 */
+	public String getContentType() {
+		return headers.get("content-type");
+	}
+
+	/**
+	 * Returns whether this part is an uploaded file, rather than a form field.
+	 *
+	 * @return whether this part is a file
+	 */
+	public boolean isFile() {
+		return fileName != null;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns whether the content of this part is kept in memory,
+	 * rather than in a temporary file.
+	 *
+	 * @return whether the content is in memory
+	 */
+	public boolean isInMemory() {
+		return data != null;
+	}
+
+	/**
+	 * Opens a new stream of the content of this part.
+	 *
+	 * @return the input stream
+	 * @throws IOException if the temporary file can't be opened
+	 */
+	public InputStream getInputStream() throws IOException {
+		if(data != null)
+			return new ByteArrayInputStream(data);
+
+		File file = this.file;
+		if(file == null)
+			throw new IOException("Part was moved or deleted");
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Returns the content of this part as a string, decoded as UTF-8.
+	 * Meant for form fields, as the whole content is read into memory.
+	 *
+	 * @return the content
+	 * @throws IOException if the temporary file can't be read
+	 */
+	public String getString() throws IOException {
+		if(data != null)
+			return new String(data, StandardCharsets.UTF_8);
+
+		File file = this.file;
+		if(file == null)
+			throw new IOException("Part was moved or deleted");
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the content of this part to a file. A temporary file is moved
+	 * rather than copied if possible, after which the content can no longer be read.
+	 *
+	 * @param target the file to write to, which is replaced if it exists
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void moveTo(File target) throws IOException {
+		if(data != null) {
+			Files.write(target.toPath(), data);
+			return;
+		}
+
+		File file = this.file;
+		if(file == null)
+			throw new IOException("Part was moved or deleted");
+		Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		this.file = null;
+	}
+
+	/**
+	 * Deletes the temporary file of this part, if any.
+	 * Called automatically once the response has been sent.
+	 */
+	public void delete() {
+		File file = this.file;
+		if(file != null) {
+			this.file = null;
+			file.delete();
+		}
+	}
+
+}
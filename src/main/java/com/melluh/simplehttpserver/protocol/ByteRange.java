@@ -0,0 +1,154 @@
+package com.melluh.simplehttpserver.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes in a representation, as requested with the <code>Range</code> header.
+ * Both ends are inclusive.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7233">RFC 7233</a>.
+ */
+public final class ByteRange {
+
+	// Limits the work a single request can cause, more ranges than this are ignored
+	private static final int MAX_RANGES = 64;
+
+	// Ranges closer than this are merged, a separate part would cost about as much in headers
+	private static final long COALESCE_GAP = 80;
+
+	private final long start;
+	private final long end;
+
+	public ByteRange(long start, long end) {
+		if(start < 0 || end < start)
+			throw new IllegalArgumentException("Invalid range " + start + "-" + end);
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Parses a <code>Range</code> header for a representation of the specified length.
+	 * Satisfiable ranges are sorted, and overlapping or nearby ranges are merged.
+	 *
+	 * @param header the header value
+	 * @param length length of the representation
+	 * @return the satisfiable ranges, empty if none are satisfiable,
+	 * 		or null if the header is invalid or uses another unit and should be ignored
+	 */
+	public static List<ByteRange> parse(String header, long length) {
+		int equalsIndex = header.indexOf('=');
+		if(equalsIndex < 0 || !header.substring(0, equalsIndex).trim().equalsIgnoreCase("bytes"))
+			return null;
+
+		String[] specs = header.substring(equalsIndex + 1).split(",");
+		if(specs.length > MAX_RANGES)
+			return null;
+
+		List<ByteRange> ranges = new ArrayList<>(specs.length);
+		boolean empty = true;
+		for(String spec : specs) {
+			spec = spec.trim();
+			if(spec.isEmpty())
+				continue; // empty list elements are allowed
+			empty = false;
+
+			int minusIndex = spec.indexOf('-');
+			if(minusIndex < 0)
+				return null;
+
+			long first = parseNumber(spec, 0, minusIndex);
+			long last = parseNumber(spec, minusIndex + 1, spec.length());
+
+			if(minusIndex == 0) {
+				// Suffix range, the last n bytes
+				if(last < 0)
+					return null;
+				if(last > 0 && length > 0)
+					ranges.add(new ByteRange(Math.max(0, length - last), length - 1));
+				continue;
+			}
+
+			if(first < 0)
+				return null;
+			if(minusIndex == spec.length() - 1) {
+				last = length - 1; // open range, until the end
+			} else if(last < first) {
+				return null;
+			}
+
+			if(first < length)
+				ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+		}
+
+		if(empty)
+			return null;
+		return coalesce(ranges);
+	}
+
+	private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+		if(ranges.size() <= 1)
+			return ranges;
+
+		ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+		List<ByteRange> merged = new ArrayList<>(ranges.size());
+		ByteRange current = ranges.get(0);
+		for(int i = 1; i < ranges.size(); i++) {
+			ByteRange next = ranges.get(i);
+			if(next.start <= current.end + 1 + COALESCE_GAP) {
+				current = new ByteRange(current.start, Math.max(current.end, next.end));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return Collections.unmodifiableList(merged);
+	}
+
+	// Parses a non-negative number, returns -1 if the string isn't one. Numbers too
+	// large for a long saturate, they are clamped to the length of the file anyway
+	private static long parseNumber(String str, int start, int end) {
+		if(start == end)
+			return -1;
+
+		long value = 0;
+		for(int i = start; i < end; i++) {
+			char c = str.charAt(i);
+			if(c < '0' || c > '9')
+				return -1;
+			int digit = c - '0';
+			value = value > (Long.MAX_VALUE - digit) / 10 ? Long.MAX_VALUE : value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the value of a <code>Content-Range</code> header for this range.
+	 *
+	 * @param length length of the complete representation
+	 * @return the header value
+	 */
+	public String toContentRange(long length) {
+		return "bytes " + start + "-" + end + "/" + length;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	@Override
+	public String toString() {
+		return start + "-" + end;
+	}
+
+}
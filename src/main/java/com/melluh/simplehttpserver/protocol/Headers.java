@@ -0,0 +1,285 @@
+package com.melluh.simplehttpserver.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The headers of a request or response, in the order they were added.
+ * A name can have multiple values, such as repeated <code>Accept</code> or
+ * <code>Via</code> headers. Names are case-insensitive, and are stored in lowercase.
+ *
+ * <br><br>
+ * Messages usually carry 10 to 30 headers, so names and values are kept in a single
+ * flat array and looked up with a linear scan, which is faster and smaller than a hash
+ * map at that size. Well-known names are replaced by a shared lowercase instance when
+ * added, and lookups compare ASCII case-insensitively without allocating.
+ */
+public final class Headers {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final String[] KNOWN_NAMES = {
+		"accept", "accept-charset", "accept-encoding", "accept-language", "accept-ranges",
+		"access-control-request-headers", "access-control-request-method", "age", "allow", "authorization",
+		"cache-control", "connection", "content-disposition", "content-encoding", "content-language",
+		"content-length", "content-location", "content-range", "content-type", "cookie", "date", "dnt",
+		"etag", "expect", "expires", "forwarded", "host", "http2-settings", "if-match", "if-modified-since",
+		"if-none-match", "if-range", "if-unmodified-since", "keep-alive", "last-event-id", "last-modified",
+		"link", "location", "origin", "pragma", "priority", "proxy-connection", "range", "referer", "retry-after",
+		"sec-ch-ua", "sec-ch-ua-mobile", "sec-ch-ua-platform", "sec-fetch-dest", "sec-fetch-mode",
+		"sec-fetch-site", "sec-fetch-user", "sec-websocket-accept", "sec-websocket-extensions",
+		"sec-websocket-key", "sec-websocket-protocol", "sec-websocket-version", "server", "set-cookie",
+		"strict-transport-security", "te", "trailer", "transfer-encoding", "upgrade",
+		"upgrade-insecure-requests", "user-agent", "vary", "via", "www-authenticate", "x-forwarded-for",
+		"x-forwarded-host", "x-forwarded-proto", "x-real-ip", "x-requested-with"
+	};
+
+	private static final String[] KNOWN_TABLE = new String[256];
+
+	static {
+		for(String name : KNOWN_NAMES) {
+			int index = hash(name) & (KNOWN_TABLE.length - 1);
+			while(KNOWN_TABLE[index] != null) {
+				index = (index + 1) & (KNOWN_TABLE.length - 1);
+			}
+			KNOWN_TABLE[index] = name;
+		}
+	}
+
+	// Names at even indices, their values right after them
+	private String[] entries;
+	private int size;
+
+	public Headers() {
+		this.entries = new String[INITIAL_CAPACITY * 2];
+	}
+
+	/**
+	 * Adds a header, keeping any existing values of the same name.
+	 *
+	 * @param name name of the header
+	 * @param value value of the header
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public Headers add(String name, String value) {
+		Objects.requireNonNull(name, "name is missing");
+		Objects.requireNonNull(value, "value is missing");
+
+		if(size * 2 == entries.length)
+			this.entries = Arrays.copyOf(entries, entries.length * 2);
+		entries[size * 2] = normalize(name);
+		entries[size * 2 + 1] = value;
+		size++;
+		return this;
+	}
+
+	/**
+	 * Sets a header, replacing all existing values of the same name.
+	 *
+	 * @param name name of the header
+	 * @param value value of the header
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public Headers set(String name, String value) {
+		Objects.requireNonNull(name, "name is missing");
+		Objects.requireNonNull(value, "value is missing");
+
+		int index = this.indexOf(name, 0);
+		if(index < 0)
+			return this.add(name, value);
+
+		entries[index * 2 + 1] = value;
+		this.removeFrom(name, index + 1);
+		return this;
+	}
+
+	/**
+	 * Adds a header, unless a header with the same name exists already.
+	 *
+	 * @param name name of the header
+	 * @param value value of the header
+	 * @return whether the header was added
+	 */
+	public boolean setIfAbsent(String name, String value) {
+		if(this.indexOf(name, 0) >= 0)
+			return false;
+		this.add(name, value);
+		return true;
+	}
+
+	/**
+	 * Removes all values of a header.
+	 *
+	 * @param name name of the header
+	 * @return whether any values were removed
+	 */
+	public boolean remove(String name) {
+		return this.removeFrom(name, 0);
+	}
+
+	private boolean removeFrom(String name, int from) {
+		int target = from;
+		for(int i = from; i < size; i++) {
+			if(matches(entries[i * 2], name))
+				continue;
+			if(target != i) {
+				entries[target * 2] = entries[i * 2];
+				entries[target * 2 + 1] = entries[i * 2 + 1];
+			}
+			target++;
+		}
+
+		boolean removed = target != size;
+		Arrays.fill(entries, target * 2, size * 2, null);
+		this.size = target;
+		return removed;
+	}
+
+	/**
+	 * Returns the first value of a header.
+	 *
+	 * @param name name of the header
+	 * @return the first value, or null if it isn't present
+	 */
+	public String get(String name) {
+		int index = this.indexOf(name, 0);
+		return index >= 0 ? entries[index * 2 + 1] : null;
+	}
+
+	/**
+	 * Returns all values of a header, in the order they were added.
+	 *
+	 * @param name name of the header
+	 * @return an immutable list of the values, empty if it isn't present
+	 */
+	public List<String> getAll(String name) {
+		int index = this.indexOf(name, 0);
+		if(index < 0)
+			return Collections.emptyList();
+
+		int next = this.indexOf(name, index + 1);
+		if(next < 0)
+			return Collections.singletonList(entries[index * 2 + 1]);
+
+		List<String> values = new ArrayList<>();
+		values.add(entries[index * 2 + 1]);
+		for(; next >= 0; next = this.indexOf(name, next + 1)) {
+			values.add(entries[next * 2 + 1]);
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	/**
+	 * Checks if a header is present.
+	 *
+	 * @param name name of the header
+	 * @return whether it is present
+	 */
+	public boolean contains(String name) {
+		return this.indexOf(name, 0) >= 0;
+	}
+
+	private int indexOf(String name, int from) {
+		for(int i = from; i < size; i++) {
+			if(matches(entries[i * 2], name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the names of all headers, in the order they were first added.
+	 *
+	 * @return an immutable set of the lowercase names
+	 */
+	public Set<String> names() {
+		Set<String> names = new LinkedHashSet<>();
+		for(int i = 0; i < size; i++) {
+			names.add(entries[i * 2]);
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * Returns the lowercase name of the header at an index.
+	 * Together with {@link #getValue(int)}, this iterates over all headers without allocating.
+	 *
+	 * @param index index of the header, below {@link #size()}
+	 * @return the name
+	 */
+	public String getName(int index) {
+		if(index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		return entries[index * 2];
+	}
+
+	public String getValue(int index) {
+		if(index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		return entries[index * 2 + 1];
+	}
+
+	/**
+	 * Returns the number of headers, counting every value separately.
+	 *
+	 * @return the number of headers
+	 */
+	public int size() {
+		return size;
+	}
+
+	// Stored names are lowercase, so only the other name needs folding
+	private static boolean matches(String lowerName, String name) {
+		if(lowerName == name)
+			return true;
+
+		int length = lowerName.length();
+		if(name.length() != length)
+			return false;
+		for(int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if(c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			if(lowerName.charAt(i) != c)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the shared lowercase instance of a well-known header name,
+	 * or the name in lowercase if it isn't well-known.
+	 *
+	 * @param name the header name, in any case
+	 * @return the lowercase name
+	 */
+	public static String normalize(String name) {
+		int index = hash(name) & (KNOWN_TABLE.length - 1);
+		String known;
+		while((known = KNOWN_TABLE[index]) != null) {
+			if(matches(known, name))
+				return known;
+			index = (index + 1) & (KNOWN_TABLE.length - 1);
+		}
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	// Hashes the lowercase form of a name, lowercasing ASCII letters on the fly
+	private static int hash(String name) {
+		int hash = 0;
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			hash = 31 * hash + c;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+}
@@ -5,11 +5,16 @@ public class HttpHeader {
 	private HttpHeader() {}
 	
 	public static final String CONTENT_LENGTH = "content-length";
+	public static final String CONTENT_TYPE = "content-type";
 	public static final String MIME_TYPE = "mime-type";
 	public static final String SERVER = "server";
 	public static final String DATE = "date";
 	public static final String CONNECTION = "connection";
 	public static final String COOKIE = "cookie";
 	public static final String SET_COOKIE = "set-cookie";
+	public static final String HOST = "host";
+	public static final String UPGRADE = "upgrade";
+	public static final String HTTP2_SETTINGS = "http2-settings";
+	public static final String RETRY_AFTER = "retry-after";
 	
 }
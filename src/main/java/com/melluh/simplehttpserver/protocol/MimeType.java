@@ -1,57 +1,79 @@
 package com.melluh.simplehttpserver.protocol;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 
 import com.melluh.simplehttpserver.response.Response;
 
 /**
  * Contains some commonly used MIME types, to be used in the <code>Content-Type</code> header of a response.
+ *
+ * <br><br>
+ * Also keeps a registry of file extensions and their MIME types, loaded from a bundled
+ * <code>mime.types</code> file. More types can be loaded with {@link #load(File)}, or registered
+ * with {@link #registerExtension(String, String)}, which override the bundled ones.
+ * Every type also has flags telling whether it is worth compressing, and whether it
+ * can be cached for a long time, for use by compression and caching layers.
+ *
  * @see Response#contentType(String)
  */
 public class MimeType {
 
 	private MimeType() {}
-	
-	public static String PLAIN_TEXT = "text/plain";
-	public static String CSS = "text/css";
-	public static String HTML = "text/html";
-	public static String JAVASCRIPT = "text/javascript";
-	public static String OCTET_STREAM = "application/octet-stream";
-	public static String JSON = "application/json";
-	public static String IMAGE_PNG = "image/png";
-	public static String IMAGE_GIF = "image/gif";
-	public static String IMAGE_JPEG = "image/jpeg";
-	public static String IMAGE_WEBP = "image/webp";
-	public static String IMAGE_SVG = "image/svg+xml";
-	public static String AUDIO_WAV = "audio/wav";
-	public static String AUDIO_WEBM = "audio/webm";
-	public static String VIDEO_WEBM = "video/webm";
-	public static String VIDEO_MP4 = "video/mp4";
-	
-	private static final Map<String, String> FILE_EXTENSIONS = new HashMap<>();
-	
+
+	public static final String PLAIN_TEXT = "text/plain";
+	public static final String CSS = "text/css";
+	public static final String HTML = "text/html";
+	public static final String JAVASCRIPT = "text/javascript";
+	public static final String OCTET_STREAM = "application/octet-stream";
+	public static final String JSON = "application/json";
+	public static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+	public static final String MULTIPART_FORM_DATA = "multipart/form-data";
+	public static final String EVENT_STREAM = "text/event-stream";
+	public static final String IMAGE_PNG = "image/png";
+	public static final String IMAGE_GIF = "image/gif";
+	public static final String IMAGE_JPEG = "image/jpeg";
+	public static final String IMAGE_WEBP = "image/webp";
+	public static final String IMAGE_SVG = "image/svg+xml";
+	public static final String AUDIO_WAV = "audio/wav";
+	public static final String AUDIO_WEBM = "audio/webm";
+	public static final String VIDEO_WEBM = "video/webm";
+	public static final String VIDEO_MP4 = "video/mp4";
+
+	private static final int FLAG_COMPRESSIBLE = 1;
+	private static final int FLAG_CACHEABLE = 2;
+
+	// Guarded by the class lock, the lookup table is rebuilt from these on every change
+	private static final Map<String, String> EXTENSIONS = new HashMap<>();
+	private static final Map<String, Integer> FLAGS = new HashMap<>();
+
+	private static volatile ExtensionTable extensionTable;
+	private static volatile Map<String, Integer> flagTable;
+
 	static {
-		FILE_EXTENSIONS.put("txt", PLAIN_TEXT);
-		FILE_EXTENSIONS.put("html", HTML);
-		FILE_EXTENSIONS.put("css", CSS);
-		FILE_EXTENSIONS.put("js", JAVASCRIPT);
-		FILE_EXTENSIONS.put("json", JSON);
-		FILE_EXTENSIONS.put("png", IMAGE_PNG);
-		FILE_EXTENSIONS.put("gif", IMAGE_GIF);
-		FILE_EXTENSIONS.put("jpg", IMAGE_JPEG);
-		FILE_EXTENSIONS.put("jpeg", IMAGE_JPEG);
-		FILE_EXTENSIONS.put("webp", IMAGE_WEBP);
-		FILE_EXTENSIONS.put("svg", IMAGE_SVG);
-		FILE_EXTENSIONS.put("wav", AUDIO_WAV);
-		FILE_EXTENSIONS.put("webm", VIDEO_WEBM);
-		FILE_EXTENSIONS.put("mp4", VIDEO_MP4);
+		try(InputStream in = MimeType.class.getResourceAsStream("mime.types")) {
+			if(in == null)
+				throw new IllegalStateException("Bundled mime.types is missing");
+			load(in);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Failed to load bundled mime.types", ex);
+		}
 	}
-	
+
 	/**
 	 * Returns the MIME type corresponding to a file extension.
+	 * Extensions are matched case-insensitively.
 	 * If the extension is unknown, <code>application/octet-stream</code> is returned.
-	 * 
+	 *
 	 * @param fileName complete file name
 	 * @return MIME type corresponding to the file extension
 	 */
@@ -59,8 +81,181 @@ public class MimeType {
 		int dotIndex = fileName.lastIndexOf('.');
 		if(dotIndex < 0)
 			return OCTET_STREAM;
-		String extension = fileName.substring(dotIndex + 1);
-		return FILE_EXTENSIONS.getOrDefault(extension, OCTET_STREAM);
+		String mimeType = extensionTable.get(fileName, dotIndex + 1);
+		return mimeType != null ? mimeType : OCTET_STREAM;
+	}
+
+	/**
+	 * Checks whether a MIME type is worth compressing, such as text and most structured data.
+	 * Types that are already compressed, like images, video and archives, are not.
+	 *
+	 * @param mimeType the MIME type, parameters such as <code>charset</code> are ignored
+	 * @return whether the type is compressible
+	 */
+	public static boolean isCompressible(String mimeType) {
+		return (getFlags(mimeType) & FLAG_COMPRESSIBLE) != 0;
+	}
+
+	/**
+	 * Checks whether a MIME type can be cached for a long time, such as stylesheets,
+	 * scripts, images, fonts and media. Documents like HTML and JSON, which usually
+	 * change under the same URL, and event streams are not.
+	 *
+	 * @param mimeType the MIME type, parameters such as <code>charset</code> are ignored
+	 * @return whether the type is cacheable
+	 */
+	public static boolean isCacheable(String mimeType) {
+		return (getFlags(mimeType) & FLAG_CACHEABLE) != 0;
+	}
+
+	/**
+	 * Maps a file extension to a MIME type, replacing any existing mapping.
+	 *
+	 * @param extension the file extension, without the dot
+	 * @param mimeType the MIME type
+	 */
+	public static synchronized void registerExtension(String extension, String mimeType) {
+		Objects.requireNonNull(extension, "extension is missing");
+		Objects.requireNonNull(mimeType, "mimeType is missing");
+		EXTENSIONS.put(extension.toLowerCase(Locale.ROOT), mimeType);
+		FLAGS.putIfAbsent(mimeType.toLowerCase(Locale.ROOT), getDefaultFlags(mimeType.toLowerCase(Locale.ROOT)));
+		rebuild();
+	}
+
+	/**
+	 * Sets the flags of a MIME type, replacing the defaults.
+	 *
+	 * @param mimeType the MIME type
+	 * @param compressible whether the type is worth compressing
+	 * @param cacheable whether the type can be cached for a long time
+	 */
+	public static synchronized void registerType(String mimeType, boolean compressible, boolean cacheable) {
+		Objects.requireNonNull(mimeType, "mimeType is missing");
+		FLAGS.put(mimeType.toLowerCase(Locale.ROOT), (compressible ? FLAG_COMPRESSIBLE : 0) | (cacheable ? FLAG_CACHEABLE : 0));
+		rebuild();
+	}
+
+	/**
+	 * Loads the extensions in a file in the format of the Apache <code>mime.types</code>
+	 * file, such as <code>/etc/mime.types</code>. Every line holds a MIME type, followed
+	 * by its extensions. Existing mappings of the same extensions are replaced.
+	 *
+	 * @param file the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void load(File file) throws IOException {
+		try(InputStream in = new FileInputStream(file)) {
+			load(in);
+		}
 	}
-	
+
+	/**
+	 * Loads the extensions in a stream in the format of the Apache <code>mime.types</code> file.
+	 *
+	 * @param in the input stream, which is not closed
+	 * @throws IOException if an I/O error occurs
+	 * @see #load(File)
+	 */
+	public static synchronized void load(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line;
+		while((line = reader.readLine()) != null) {
+			line = line.trim();
+			if(line.isEmpty() || line.charAt(0) == '#')
+				continue;
+
+			String[] parts = line.split("\\s+");
+			String mimeType = parts[0].toLowerCase(Locale.ROOT);
+			FLAGS.putIfAbsent(mimeType, getDefaultFlags(mimeType));
+			for(int i = 1; i < parts.length; i++) {
+				EXTENSIONS.put(parts[i].toLowerCase(Locale.ROOT), mimeType);
+			}
+		}
+		rebuild();
+	}
+
+	private static void rebuild() {
+		extensionTable = new ExtensionTable(EXTENSIONS);
+		flagTable = new HashMap<>(FLAGS);
+	}
+
+	private static int getFlags(String mimeType) {
+		int paramsIndex = mimeType.indexOf(';');
+		if(paramsIndex >= 0)
+			mimeType = mimeType.substring(0, paramsIndex).trim();
+
+		Integer flags = flagTable.get(mimeType);
+		if(flags == null)
+			flags = flagTable.get(mimeType.toLowerCase(Locale.ROOT));
+		return flags != null ? flags : getDefaultFlags(mimeType.toLowerCase(Locale.ROOT));
+	}
+
+	private static int getDefaultFlags(String mimeType) {
+		boolean compressible = mimeType.startsWith("text/") || mimeType.endsWith("+json") || mimeType.endsWith("+xml")
+				|| mimeType.equals(JSON) || mimeType.equals("application/javascript") || mimeType.equals("application/xml")
+				|| mimeType.equals("application/wasm") || mimeType.equals("application/yaml") || mimeType.equals("application/toml")
+				|| mimeType.equals("application/sql") || mimeType.equals("application/x-sh") || mimeType.equals("application/vnd.ms-fontobject")
+				|| mimeType.equals("font/ttf") || mimeType.equals("font/otf") || mimeType.equals("font/collection")
+				|| mimeType.equals("image/x-icon") || mimeType.equals("image/bmp");
+
+		boolean cacheable = mimeType.startsWith("image/") || mimeType.startsWith("font/") || mimeType.startsWith("audio/")
+				|| mimeType.startsWith("video/") || mimeType.equals(CSS) || mimeType.equals(JAVASCRIPT)
+				|| mimeType.equals("application/javascript") || mimeType.equals("application/wasm");
+
+		return (compressible ? FLAG_COMPRESSIBLE : 0) | (cacheable ? FLAG_CACHEABLE : 0);
+	}
+
+	/**
+	 * An immutable open addressing hash table of lowercase extensions, which is looked
+	 * up directly with a region of a file name, ignoring case and without allocating.
+	 */
+	private static final class ExtensionTable {
+
+		private final String[] keys;
+		private final String[] values;
+		private final int mask;
+
+		private ExtensionTable(Map<String, String> extensions) {
+			int capacity = Integer.highestOneBit(Math.max(16, extensions.size() * 2 - 1)) << 1;
+			this.keys = new String[capacity];
+			this.values = new String[capacity];
+			this.mask = capacity - 1;
+
+			for(Map.Entry<String, String> entry : extensions.entrySet()) {
+				String key = entry.getKey();
+				int index = hash(key, 0) & mask;
+				while(keys[index] != null) {
+					index = (index + 1) & mask;
+				}
+				keys[index] = key;
+				values[index] = entry.getValue();
+			}
+		}
+
+		private String get(String str, int start) {
+			int length = str.length() - start;
+			int index = hash(str, start) & mask;
+			String key;
+			while((key = keys[index]) != null) {
+				if(key.length() == length && key.regionMatches(true, 0, str, start, length))
+					return values[index];
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+		// Hashes the lowercase form of the string from start, lowercasing ASCII letters on the fly
+		private static int hash(String str, int start) {
+			int hash = 0;
+			for(int i = start; i < str.length(); i++) {
+				char c = str.charAt(i);
+				if(c >= 'A' && c <= 'Z')
+					c += 'a' - 'A';
+				hash = 31 * hash + c;
+			}
+			return hash ^ (hash >>> 16);
+		}
+
+	}
+
 }
@@ -0,0 +1,156 @@
+package com.melluh.simplehttpserver.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parameters from a query string or form body, in the order they were sent.
+ * A name can have multiple values. Names are case-insensitive, and are stored in lowercase.
+ *
+ * @see UrlDecoder#parse(String, int)
+ */
+public final class Parameters {
+
+	private static final Parameters EMPTY = new Parameters(0);
+
+	private String[] names;
+	private String[] values;
+	private int size;
+	private boolean truncated;
+
+	Parameters(int capacity) {
+		this.names = new String[capacity];
+		this.values = new String[capacity];
+	}
+
+	/**
+	 * Returns an empty, immutable set of parameters.
+	 *
+	 * @return the empty parameters
+	 */
+	public static Parameters empty() {
+		return EMPTY;
+	}
+
+	void add(String name, String value) {
+		if(size == names.length) {
+			int capacity = Math.max(8, size * 2);
+			this.names = Arrays.copyOf(names, capacity);
+			this.values = Arrays.copyOf(values, capacity);
+		}
+		names[size] = name;
+		values[size] = value;
+		size++;
+	}
+
+	void setTruncated() {
+		this.truncated = true;
+	}
+
+	/**
+	 * Returns the first value of a parameter.
+	 *
+	 * @param name name of the parameter
+	 * @return the first value, or null if it isn't present
+	 */
+	public String get(String name) {
+		int index = this.indexOf(name.toLowerCase(Locale.ROOT), 0);
+		return index >= 0 ? values[index] : null;
+	}
+
+	/**
+	 * Returns all values of a parameter, such as for <code>?tag=a&amp;tag=b</code>.
+	 *
+	 * @param name name of the parameter
+	 * @return an immutable list of the values, empty if it isn't present
+	 */
+	public List<String> getAll(String name) {
+		String lowerName = name.toLowerCase(Locale.ROOT);
+		int index = this.indexOf(lowerName, 0);
+		if(index < 0)
+			return Collections.emptyList();
+
+		int next = this.indexOf(lowerName, index + 1);
+		if(next < 0)
+			return Collections.singletonList(values[index]);
+
+		List<String> list = new ArrayList<>();
+		list.add(values[index]);
+		for(; next >= 0; next = this.indexOf(lowerName, next + 1)) {
+			list.add(values[next]);
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Checks if a parameter is present.
+	 *
+	 * @param name name of the parameter
+	 * @return whether it is present
+	 */
+	public boolean has(String name) {
+		return this.indexOf(name.toLowerCase(Locale.ROOT), 0) >= 0;
+	}
+
+	// A linear scan, parameter counts are capped and usually small
+	private int indexOf(String name, int from) {
+		for(int i = from; i < size; i++) {
+			if(names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the names of all parameters, in the order they were first sent.
+	 *
+	 * @return an immutable set of the names
+	 */
+	public Set<String> names() {
+		if(size == 0)
+			return Collections.emptySet();
+
+		Set<String> set = new LinkedHashSet<>();
+		for(int i = 0; i < size; i++) {
+			set.add(names[i]);
+		}
+		return Collections.unmodifiableSet(set);
+	}
+
+	public String getName(int index) {
+		if(index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		return names[index];
+	}
+
+	public String getValue(int index) {
+		if(index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		return values[index];
+	}
+
+	/**
+	 * Returns the number of parameters, counting every value separately.
+	 *
+	 * @return the number of parameters
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks whether parameters were left out because there were more than the limit.
+	 *
+	 * @return whether parameters were left out
+	 * @see com.melluh.simplehttpserver.ServerOptions#maxParameters(int)
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+}
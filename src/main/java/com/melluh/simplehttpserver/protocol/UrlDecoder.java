@@ -0,0 +1,152 @@
+package com.melluh.simplehttpserver.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Decodes percent-encoded strings, such as paths, query strings and
+ * <code>application/x-www-form-urlencoded</code> bodies, as UTF-8.<br>
+ * See <a href="https://url.spec.whatwg.org/#application/x-www-form-urlencoded">the URL standard</a>.
+ *
+ * <br><br>
+ * Malformed escapes are kept as they are, rather than rejecting the whole string.
+ */
+public final class UrlDecoder {
+
+	private UrlDecoder() {}
+
+	/**
+	 * Decodes a percent-encoded path. A <code>+</code> is kept as it is,
+	 * it only means a space in query strings and forms.
+	 *
+	 * @param str the encoded path
+	 * @return the decoded path
+	 */
+	public static String decodePath(String str) {
+		return decode(str, 0, str.length(), false);
+	}
+
+	/**
+	 * Decodes a single percent-encoded query or form component,
+	 * in which a <code>+</code> means a space.
+	 *
+	 * @param str the encoded component
+	 * @return the decoded component
+	 */
+	public static String decodeComponent(String str) {
+		return decode(str, 0, str.length(), true);
+	}
+
+	/**
+	 * Parses a query string or form body in a single pass. Pairs without a
+	 * <code>=</code> are parameters with an empty value, and empty pairs are skipped.
+	 * Names are decoded before they are lowercased.
+	 *
+	 * @param str the query string or form body, without the leading <code>?</code>
+	 * @param maxParameters the maximum number of parameters, more are left out
+	 * @return the parameters
+	 */
+	public static Parameters parse(String str, int maxParameters) {
+		if(str == null || str.isEmpty())
+			return Parameters.empty();
+
+		Parameters params = new Parameters(8);
+		int length = str.length();
+		int start = 0;
+		while(start < length) {
+			int end = start;
+			int equalsIndex = -1;
+			for(; end < length; end++) {
+				char c = str.charAt(end);
+				if(c == '&')
+					break;
+				if(c == '=' && equalsIndex < 0)
+					equalsIndex = end;
+			}
+
+			if(end > start) {
+				if(params.size() >= maxParameters) {
+					params.setTruncated();
+					break;
+				}
+
+				int nameEnd = equalsIndex >= 0 ? equalsIndex : end;
+				String name = decode(str, start, nameEnd, true).toLowerCase(Locale.ROOT);
+				String value = equalsIndex >= 0 ? decode(str, equalsIndex + 1, end, true) : "";
+				params.add(name, value);
+			}
+			start = end + 1;
+		}
+		return params;
+	}
+
+	private static String decode(String str, int start, int end, boolean plusAsSpace) {
+		// Most components need no decoding at all
+		int i = start;
+		for(; i < end; i++) {
+			char c = str.charAt(i);
+			if(c == '%' || c > 0x7F || (c == '+' && plusAsSpace))
+				break;
+		}
+		if(i == end)
+			return start == 0 && end == str.length() ? str : str.substring(start, end);
+
+		// Escapes become bytes, which are decoded as UTF-8 at the end
+		byte[] bytes = new byte[(end - start) * 3];
+		int length = 0;
+		for(int j = start; j < i; j++) {
+			bytes[length++] = (byte) str.charAt(j);
+		}
+
+		for(; i < end; i++) {
+			char c = str.charAt(i);
+			if(c == '%') {
+				int high = i + 2 < end ? hexValue(str.charAt(i + 1)) : -1;
+				int low = high >= 0 ? hexValue(str.charAt(i + 2)) : -1;
+				if(high >= 0 && low >= 0) {
+					bytes[length++] = (byte) (high << 4 | low);
+					i += 2;
+					continue;
+				}
+				bytes[length++] = '%';
+			} else if(c == '+' && plusAsSpace) {
+				bytes[length++] = ' ';
+			} else if(c <= 0x7F) {
+				bytes[length++] = (byte) c;
+			} else {
+				length = encodeUtf8(str, i, bytes, length);
+				if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(str.charAt(i + 1)))
+					i++;
+			}
+		}
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	// Characters that were already decoded, such as from a UTF-8 request line, are encoded back
+	private static int encodeUtf8(String str, int index, byte[] bytes, int length) {
+		int codePoint = str.codePointAt(index);
+		if(codePoint < 0x800) {
+			bytes[length++] = (byte) (0xC0 | codePoint >> 6);
+		} else if(codePoint < 0x10000) {
+			bytes[length++] = (byte) (0xE0 | codePoint >> 12);
+			bytes[length++] = (byte) (0x80 | (codePoint >> 6 & 0x3F));
+		} else {
+			bytes[length++] = (byte) (0xF0 | codePoint >> 18);
+			bytes[length++] = (byte) (0x80 | (codePoint >> 12 & 0x3F));
+			bytes[length++] = (byte) (0x80 | (codePoint >> 6 & 0x3F));
+		}
+		bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+		return length;
+	}
+
+	private static int hexValue(char c) {
+		if(c >= '0' && c <= '9')
+			return c - '0';
+		if(c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if(c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+
+}
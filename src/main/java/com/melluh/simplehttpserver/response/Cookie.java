@@ -1,7 +1,7 @@
 package com.melluh.simplehttpserver.response;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Objects;
 
 import com.melluh.simplehttpserver.HttpUtils;
@@ -9,7 +9,14 @@ import com.melluh.simplehttpserver.Request;
 
 /**
  * Represents a cookie that will be sent using the <code>Set-Cookie</code> header.
+ *
+ * <br><br>
+ * The attributes are serialized once, the first time the cookie is sent. Cookies that
+ * are sent often with different values, such as session cookies, can share the serialized
+ * attributes through a {@link CookieTemplate}, so only the value is written per response.
+ *
  * @see Request#getCookie(String)
+ * @see #toTemplate()
  */
 public class Cookie {
 
@@ -27,6 +34,10 @@ public class Cookie {
 	
 	private SameSiteMode sameSite;
 	
+	// The serialized name and attributes, reset whenever an attribute changes
+	private CookieTemplate template;
+	private String headerValue;
+	
 	public Cookie(String name, String value) {
 		Objects.requireNonNull(name, "name is missing");
 		Objects.requireNonNull(value, "value is missing");
@@ -35,6 +46,18 @@ public class Cookie {
 		this.value = value;
 	}
 	
+	Cookie(CookieTemplate template, Cookie attributes, String value) {
+		this(attributes.name, value);
+		this.expires = attributes.expires;
+		this.maxAge = attributes.maxAge;
+		this.domain = attributes.domain;
+		this.path = attributes.path;
+		this.secure = attributes.secure;
+		this.httpOnly = attributes.httpOnly;
+		this.sameSite = attributes.sameSite;
+		this.template = template;
+	}
+	
 	/**
 	 * Sets the timestamp the cookie will expire at.
 	 * If unspecified, the cookie becomes a session cookie. A session
@@ -46,6 +69,7 @@ public class Cookie {
 	 */
 	public Cookie expires(long expires) {
 		this.expires = expires;
+		this.invalidate();
 		return this;
 	}
 	
@@ -60,6 +84,7 @@ public class Cookie {
 	 */
 	public Cookie maxAge(long maxAge) {
 		this.maxAge = maxAge;
+		this.invalidate();
 		return this;
 	}
 	
@@ -78,6 +103,7 @@ public class Cookie {
 	public Cookie domain(String domain) {
 		Objects.requireNonNull(domain, "domain is missing");
 		this.domain = domain;
+		this.invalidate();
 		return this;
 	}
 	
@@ -93,6 +119,7 @@ public class Cookie {
 	public Cookie path(String path) {
 		Objects.requireNonNull(path, "path is missing");
 		this.path = path;
+		this.invalidate();
 		return this;
 	}
 	
@@ -111,6 +138,7 @@ public class Cookie {
 	 */
 	public Cookie secure(boolean secure) {
 		this.secure = secure;
+		this.invalidate();
 		return this;
 	}
 	
@@ -128,6 +156,7 @@ public class Cookie {
 	 */
 	public Cookie httpOnly(boolean httpOnly) {
 		this.httpOnly = httpOnly;
+		this.invalidate();
 		return this;
 	}
 	
@@ -143,9 +172,35 @@ public class Cookie {
 	public Cookie sameSite(SameSiteMode sameSite) {
 		Objects.requireNonNull(sameSite, "sameSite is missing");
 		this.sameSite = sameSite;
+		this.invalidate();
 		return this;
 	}
 	
+	private void invalidate() {
+		this.template = null;
+		this.headerValue = null;
+	}
+	
+	/**
+	 * Creates a template with the name and attributes of this cookie, which creates
+	 * cookies with different values that share the serialized attributes. Changes made
+	 * to this cookie afterwards don't affect the template.
+	 * 
+	 * @return the template
+	 */
+	public CookieTemplate toTemplate() {
+		return this.getTemplate();
+	}
+	
+	private CookieTemplate getTemplate() {
+		CookieTemplate template = this.template;
+		if(template == null) {
+			template = new CookieTemplate(this);
+			this.template = template;
+		}
+		return template;
+	}
+	
 	/**
 	 * Method for internal use.
 	 * Gets the header representation of this cookie.
@@ -153,43 +208,75 @@ public class Cookie {
 	 * @return header value
 	 */
 	public String getHeaderValue() {
-		StringBuilder builder = new StringBuilder();
-		builder.append(name).append("=").append(value);
-		
-		List<String> attributes = this.getAttributes();
-		if(!attributes.isEmpty()) {
-			builder.append("; ");
-			builder.append(String.join("; ", attributes));
+		String headerValue = this.headerValue;
+		if(headerValue == null) {
+			CookieTemplate template = this.getTemplate();
+			headerValue = template.getPrefix() + value + template.getSuffix();
+			this.headerValue = headerValue;
 		}
-		
-		return builder.toString();
+		return headerValue;
 	}
 	
-	private List<String> getAttributes() {
-		List<String> result = new ArrayList<>();
+	/**
+	 * Method for internal use.
+	 * Writes the header representation of this cookie, encoded as ISO-8859-1.
+	 * Only the value is encoded, the name and attributes are written pre-encoded.
+	 * 
+	 * @param out the output stream, which should be buffered
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeHeaderValue(OutputStream out) throws IOException {
+		CookieTemplate template = this.getTemplate();
+		out.write(template.getPrefixBytes());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			out.write(c < 256 ? c : '?');
+		}
+		out.write(template.getSuffixBytes());
+	}
+	
+	// Serializes the attributes, each starting with "; "
+	String serializeAttributes() {
+		StringBuilder builder = new StringBuilder();
 		
 		if(expires != null)
-			result.add("Expires=" + HttpUtils.getFormattedTime(expires));
+			builder.append("; Expires=").append(HttpUtils.getFormattedTime(expires));
 		
 		if(maxAge != null)
-			result.add("Max-Age=" + maxAge);
+			builder.append("; Max-Age=").append(maxAge);
 		
 		if(domain != null)
-			result.add("Domain=" + domain);
+			builder.append("; Domain=").append(domain);
 		
 		if(path != null)
-			result.add("Path=" + path);
+			builder.append("; Path=").append(path);
 		
 		if(secure)
-			result.add("Secure");
+			builder.append("; Secure");
 		
 		if(httpOnly)
-			result.add("HttpOnly");
+			builder.append("; HttpOnly");
 		
 		if(sameSite != null)
-			result.add("SameSite=" + sameSite.getProtocolName());
+			builder.append("; SameSite=").append(sameSite.getProtocolName());
 		
-		return result;
+		return builder.toString();
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
+	public String getDomain() {
+		return domain;
+	}
+	
+	public String getPath() {
+		return path;
 	}
 	
 	public enum SameSiteMode {
@@ -0,0 +1,72 @@
+package com.melluh.simplehttpserver.response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * The name and attributes of a cookie, serialized once, which creates cookies
+ * with different values. This avoids rebuilding the attributes for every response,
+ * which is useful for cookies that are set often, such as session cookies:
+ * <pre>
+ * private static final CookieTemplate SESSION = new Cookie("session", "")
+ *         .path("/").httpOnly(true).sameSite(SameSiteMode.LAX).toTemplate();
+ *
+ * response.cookie(SESSION.create(sessionId));
+ * </pre>
+ *
+ * Templates are immutable, and can be shared between threads. Because the attributes
+ * are fixed, an absolute <code>Expires</code> time is the same for every cookie;
+ * use <code>Max-Age</code> for cookies that expire relative to when they are set.
+ *
+ * @see Cookie#toTemplate()
+ */
+public final class CookieTemplate {
+
+	private final Cookie attributes;
+
+	private final String prefix;
+	private final String suffix;
+	private final byte[] prefixBytes;
+	private final byte[] suffixBytes;
+
+	CookieTemplate(Cookie cookie) {
+		this.attributes = new Cookie(this, cookie, "");
+		this.prefix = cookie.getName() + "=";
+		this.suffix = cookie.serializeAttributes();
+		this.prefixBytes = prefix.getBytes(StandardCharsets.ISO_8859_1);
+		this.suffixBytes = suffix.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Creates a cookie with the name and attributes of this template.
+	 * Changing an attribute of the cookie detaches it from the template.
+	 *
+	 * @param value the value of the cookie
+	 * @return the cookie
+	 */
+	public Cookie create(String value) {
+		Objects.requireNonNull(value, "value is missing");
+		return new Cookie(this, attributes, value);
+	}
+
+	public String getName() {
+		return attributes.getName();
+	}
+
+	String getPrefix() {
+		return prefix;
+	}
+
+	String getSuffix() {
+		return suffix;
+	}
+
+	byte[] getPrefixBytes() {
+		return prefixBytes;
+	}
+
+	byte[] getSuffixBytes() {
+		return suffixBytes;
+	}
+
+}
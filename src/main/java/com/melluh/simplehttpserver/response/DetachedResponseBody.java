@@ -0,0 +1,26 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.OutputStream;
+
+/**
+ * A response body that keeps writing after the response was sent, such as an
+ * event stream. Instead of writing the body and closing the connection, the
+ * server hands the connection's output stream to the body and releases the
+ * thread. The body then owns the connection, which is closed when the stream
+ * is closed.
+ *
+ * <br><br>
+ * {@link #write(OutputStream)} is still used when the body is wrapped by another
+ * body, it then has to block until the body is done.
+ */
+public interface DetachedResponseBody extends ResponseBody {
+
+	/**
+	 * Takes over the output stream, after the response head was sent.
+	 * This should not block.
+	 * 
+	 * @param out the output stream, closing it ends the response
+	 */
+	void detach(OutputStream out);
+	
+}
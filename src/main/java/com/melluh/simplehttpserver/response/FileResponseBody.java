@@ -0,0 +1,92 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+import com.melluh.simplehttpserver.BufferPool;
+import com.melluh.simplehttpserver.HttpUtils;
+
+/**
+ * Represents a body consisting of a file, or a region of a file.
+ * The file is read with positional reads into a buffer from the {@link BufferPool},
+ * so no seeking or skipping is needed to start in the middle of the file.
+ */
+public class FileResponseBody implements ResponseBody {
+
+	private final FileChannel channel;
+	private final long position;
+	private final long length;
+
+	/**
+	 * Creates a new file response body for the complete file.
+	 *
+	 * @param file the file
+	 * @throws IOException if the file could not be opened
+	 */
+	public FileResponseBody(File file) throws IOException {
+		this(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
+
+	private FileResponseBody(FileChannel channel) throws IOException {
+		this(channel, 0, channel.size());
+	}
+
+	/**
+	 * Creates a new file response body for a region of an open file.
+	 * The channel is closed when this body is closed.
+	 *
+	 * @param channel the file channel
+	 * @param position offset of the first byte to send
+	 * @param length number of bytes to send
+	 */
+	public FileResponseBody(FileChannel channel, long position, long length) {
+		Objects.requireNonNull(channel, "channel is missing");
+		this.channel = channel;
+		this.position = position;
+		this.length = length;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		transfer(channel, position, length, out);
+	}
+
+	/**
+	 * Copies a region of a file channel to an output stream,
+	 * using a buffer from the {@link BufferPool}.
+	 */
+	static void transfer(FileChannel channel, long position, long length, OutputStream out) throws IOException {
+		byte[] buffer = BufferPool.getDefault().acquire(BufferPool.LARGE);
+		try {
+			ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+			long end = position + length;
+			while(position < end) {
+				wrapped.clear();
+				wrapped.limit((int) Math.min(buffer.length, end - position));
+				int len = channel.read(wrapped, position);
+				if(len < 0)
+					throw new IOException("File was truncated while sending it");
+				out.write(buffer, 0, len);
+				position += len;
+			}
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+	}
+
+	@Override
+	public void close() {
+		HttpUtils.close(channel);
+	}
+
+	@Override
+	public long getLength() {
+		return length;
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Wraps another response body, allowing the stream it is written to to be
+ * filtered, e.g. for compression or computing checksums.
+ * 
+ * <br><br>
+ * The stream returned by {@link #wrap(OutputStream)} is closed once the body has
+ * been written, so filters like <code>GZIPOutputStream</code> can write their trailer.
+ * This doesn't close the connection. If the filter changes the length of the body,
+ * {@link #getLength()} must be overridden to return the new length, or -1 if it is
+ * not known in advance.
+ */
+public abstract class FilterResponseBody implements ResponseBody {
+
+	private final ResponseBody body;
+	
+	/**
+	 * Creates a new filter around the specified body.
+	 * 
+	 * @param body the body to wrap
+	 */
+	protected FilterResponseBody(ResponseBody body) {
+		Objects.requireNonNull(body, "body is missing");
+		this.body = body;
+	}
+	
+	/**
+	 * Wraps the stream the body is written to.
+	 * 
+	 * @param out the stream to the client
+	 * @return the stream the wrapped body is written to
+	 * @throws IOException if an I/O error occurs
+	 */
+	protected abstract OutputStream wrap(OutputStream out) throws IOException;
+	
+	@Override
+	public void write(OutputStream out) throws IOException {
+		OutputStream wrapped = this.wrap(new UnclosableOutputStream(out));
+		body.write(wrapped);
+		wrapped.close();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		body.close();
+	}
+	
+	@Override
+	public long getLength() {
+		return body.getLength();
+	}
+	
+	/**
+	 * Returns the body this filter wraps.
+	 * 
+	 * @return the wrapped body
+	 */
+	public ResponseBody getBody() {
+		return body;
+	}
+	
+	private static class UnclosableOutputStream extends FilterOutputStream {
+		
+		private UnclosableOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+		
+	}
+	
+}
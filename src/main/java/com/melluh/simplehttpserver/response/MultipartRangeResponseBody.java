@@ -0,0 +1,94 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.melluh.simplehttpserver.HttpUtils;
+import com.melluh.simplehttpserver.protocol.ByteRange;
+
+/**
+ * Represents a <code>multipart/byteranges</code> body, containing multiple ranges of a file.
+ * The part headers are encoded up front, so the exact length is known and the
+ * body can be sent with a <code>Content-Length</code> header.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc7233#appendix-A">RFC 7233</a>.
+ */
+public class MultipartRangeResponseBody implements ResponseBody {
+
+	private final FileChannel channel;
+	private final List<ByteRange> ranges;
+	private final String boundary;
+
+	private final byte[][] partHeaders;
+	private final byte[] closeDelimiter;
+	private final long length;
+
+	/**
+	 * Creates a new multipart range response body. The channel is closed when this body is closed.
+	 *
+	 * @param channel the file channel
+	 * @param ranges the ranges to send, in order
+	 * @param contentType content type of the file
+	 * @param completeLength length of the complete file
+	 */
+	public MultipartRangeResponseBody(FileChannel channel, List<ByteRange> ranges, String contentType, long completeLength) {
+		Objects.requireNonNull(channel, "channel is missing");
+		Objects.requireNonNull(ranges, "ranges is missing");
+		this.channel = channel;
+		this.ranges = ranges;
+		this.boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+		long length = 0;
+		this.partHeaders = new byte[ranges.size()][];
+		for(int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			StringBuilder builder = new StringBuilder();
+			if(i > 0)
+				builder.append("\r\n");
+			builder.append("--").append(boundary).append("\r\n");
+			if(contentType != null)
+				builder.append("content-type: ").append(contentType).append("\r\n");
+			builder.append("content-range: ").append(range.toContentRange(completeLength)).append("\r\n\r\n");
+
+			partHeaders[i] = builder.toString().getBytes(StandardCharsets.US_ASCII);
+			length += partHeaders[i].length + range.getLength();
+		}
+
+		this.closeDelimiter = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		this.length = length + closeDelimiter.length;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		for(int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			out.write(partHeaders[i]);
+			FileResponseBody.transfer(channel, range.getStart(), range.getLength(), out);
+		}
+		out.write(closeDelimiter);
+	}
+
+	@Override
+	public void close() {
+		HttpUtils.close(channel);
+	}
+
+	@Override
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the value of the <code>Content-Type</code> header for this body.
+	 *
+	 * @return the content type, including the boundary
+	 */
+	public String getContentType() {
+		return "multipart/byteranges; boundary=" + boundary;
+	}
+
+}
@@ -1,11 +1,12 @@
 package com.melluh.simplehttpserver.response;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.Set;
+import java.util.function.Consumer;
 
+import com.melluh.simplehttpserver.protocol.Headers;
+import com.melluh.simplehttpserver.protocol.HttpHeader;
 import com.melluh.simplehttpserver.protocol.MimeType;
 import com.melluh.simplehttpserver.protocol.Status;
 
@@ -15,10 +16,11 @@ import com.melluh.simplehttpserver.protocol.Status;
 public class Response {
 	
 	private final Status status;
-	private final Map<String, String> headers = new HashMap<>();
-	private final Set<Cookie> cookies = new HashSet<>();
+	private final Headers headers = new Headers();
+	private final List<Cookie> cookies = new ArrayList<>();
 
 	private ResponseBody body;
+	private UpgradeHandler upgrade;
 	
 	/**
 	 * Creates a new response, with the specified status.
@@ -41,7 +43,20 @@ public class Response {
 		Objects.requireNonNull(name, "name is missing");
 		Objects.requireNonNull(value, "value is missing");
 		
-		headers.put(name.toLowerCase(), value);
+		headers.set(name, value);
+		return this;
+	}
+	
+	/**
+	 * Adds a new header to the response, keeping any existing values.
+	 * This can be called multiple times to send a header with multiple values.
+	 * 
+	 * @param name name of the header
+	 * @param value value of the header
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public Response addHeader(String name, String value) {
+		headers.add(name, value);
 		return this;
 	}
 	
@@ -56,10 +71,7 @@ public class Response {
 		Objects.requireNonNull(name, "name is missing");
 		Objects.requireNonNull(value, "value is missing");
 		
-		name = name.toLowerCase();
-		if(headers.containsKey(name))
-			return this;
-		headers.put(name, value);
+		headers.setIfAbsent(name, value);
 		return this;
 	}
 	
@@ -74,7 +86,7 @@ public class Response {
 	 */
 	public Response contentType(String mimeType) {
 		Objects.requireNonNull(mimeType, "mimeType is missing");	
-		headers.put("content-type", mimeType);
+		headers.set(HttpHeader.CONTENT_TYPE, mimeType);
 		return this;
 	}
 	
@@ -114,27 +126,66 @@ public class Response {
 		return this;
 	}
 	
+	/**
+	 * Turns this response into a <code>text/event-stream</code>, which stays open
+	 * after it is sent. The callback receives the stream once the response head
+	 * was sent, and can send events to it at any time.
+	 * 
+	 * @param lastEventId value of the request's <code>Last-Event-ID</code> header, may be null
+	 * @param onOpen called with the open stream
+	 * @return a reference to this, so the API can be used fluently
+	 * @see SseResponseBody
+	 */
+	public Response eventStream(String lastEventId, Consumer<SseStream> onOpen) {
+		this.contentType(MimeType.EVENT_STREAM);
+		this.header("cache-control", "no-cache");
+		return this.body(new SseResponseBody(lastEventId, onOpen));
+	}
+	
 	/**
 	 * Adds a cookie to the response. This can be called multiple times to add multiple cookies.
+	 * Cookies with the same name can be added for different domains or paths, a cookie with the
+	 * same name, domain and path as one that was added before replaces it.
 	 * 
 	 * @param cookie cookie to add
 	 * @return a reference to this, so the API can be used fluently
 	 */
 	public Response cookie(Cookie cookie) {
 		Objects.requireNonNull(cookie, "cookie is missing");
+		for(int i = 0; i < cookies.size(); i++) {
+			Cookie existing = cookies.get(i);
+			if(existing.getName().equals(cookie.getName()) && Objects.equals(existing.getDomain(), cookie.getDomain())
+					&& Objects.equals(existing.getPath(), cookie.getPath())) {
+				cookies.set(i, cookie);
+				return this;
+			}
+		}
 		cookies.add(cookie);
 		return this;
 	}
 	
+	/**
+	 * Sets the handler that takes over the connection once this response is sent.
+	 * This only applies to <code>101 Switching Protocols</code> responses over HTTP/1.1.
+	 * 
+	 * @param upgrade the upgrade handler
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public Response upgrade(UpgradeHandler upgrade) {
+		Objects.requireNonNull(upgrade, "upgrade is missing");
+		this.upgrade = upgrade;
+		return this;
+	}
+	
 	public Status getStatus() {
 		return status;
 	}
 	
-	public Map<String, String> getHeaders() {
+	public Headers getHeaders() {
 		return headers;
 	}
 	
-	public Set<Cookie> getCookies() {
+	public List<Cookie> getCookies() {
 		return cookies;
 	}
 	
@@ -146,4 +197,8 @@ public class Response {
 		return body;
 	}
 	
+	public UpgradeHandler getUpgrade() {
+		return upgrade;
+	}
+	
 }
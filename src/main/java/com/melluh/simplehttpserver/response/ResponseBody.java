@@ -24,9 +24,11 @@ public interface ResponseBody {
 	void close() throws IOException;
 	
 	/**
-	 * Returns the length of this response.
+	 * Returns the length of this response, or -1 if it is not known
+	 * in advance. Bodies of unknown length are sent without a
+	 * <code>Content-Length</code> header, and end when the connection closes.
 	 * 
-	 * @return the length in bytes
+	 * @return the length in bytes, or -1 if unknown
 	 */
 	long getLength();
 	
@@ -0,0 +1,278 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.melluh.simplehttpserver.Request;
+import com.melluh.simplehttpserver.protocol.Status;
+
+/**
+ * Sends server-sent events to any number of subscribers. Each event is encoded
+ * once, and the same bytes are written to every stream. Recent events are kept
+ * in a bounded buffer, so reconnecting clients receive the events they missed.
+ *
+ * <br><br>
+ * Broadcasting never blocks on a subscriber. Every subscriber has a bounded queue
+ * of events, which is written to its stream by a writer thread. Subscribers that
+ * fall too far behind, such as clients that stopped reading, are closed, and
+ * subscribers that fail to receive an event are removed.
+ *
+ * <pre>
+ * SseBroadcaster prices = new SseBroadcaster(100);
+ * router.get("/prices", prices::subscribe);
+ * prices.broadcast("{\"price\": 42}");
+ * </pre>
+ */
+public class SseBroadcaster {
+
+	private static final String LAST_EVENT_ID = "last-event-id";
+	private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+	// Shared by all broadcasters, writer threads only exist while there are events to write
+	private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable);
+		thread.setName("SSE Writer Thread");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Map<SseStream, Subscriber> subscribers = new ConcurrentHashMap<>();
+	private Executor executor = WRITERS;
+	private int maxQueuedEvents = 256;
+
+	// Ring buffer of recent events, guarded by this
+	private final SseEvent[] history;
+	private int historyStart;
+	private int historySize;
+	private long nextId = 1;
+
+	/**
+	 * Creates a new broadcaster.
+	 *
+	 * @param replayCapacity number of recent events kept for reconnecting clients, may be zero
+	 */
+	public SseBroadcaster(int replayCapacity) {
+		if(replayCapacity < 0)
+			throw new IllegalArgumentException("replayCapacity must not be negative");
+		this.history = new SseEvent[replayCapacity];
+	}
+
+	/**
+	 * Creates a new broadcaster that keeps the last 100 events.
+	 */
+	public SseBroadcaster() {
+		this(100);
+	}
+
+	/**
+	 * Sets the executor that writes the events to the subscribers. Every subscriber
+	 * with pending events occupies a thread while its events are written.
+	 * Defaults to a shared pool of daemon threads.
+	 *
+	 * @param executor the executor
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SseBroadcaster executor(Executor executor) {
+		Objects.requireNonNull(executor, "executor is missing");
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Sets the number of events that can be queued for a subscriber that hasn't received
+	 * them yet. A subscriber whose queue is full is closed. Replayed events don't count
+	 * towards the limit. Defaults to 256.
+	 *
+	 * @param maxQueuedEvents the maximum number of queued events
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SseBroadcaster maxQueuedEvents(int maxQueuedEvents) {
+		if(maxQueuedEvents <= 0)
+			throw new IllegalArgumentException("maxQueuedEvents must be positive");
+		this.maxQueuedEvents = maxQueuedEvents;
+		return this;
+	}
+
+	/**
+	 * Creates an event stream response that subscribes the client to this broadcaster.
+	 * If the client is reconnecting, the events it missed are sent first.
+	 *
+	 * @param request the request
+	 * @return the response
+	 */
+	public Response subscribe(Request request) {
+		String lastEventId = request.getHeader(LAST_EVENT_ID);
+		return new Response(Status.OK).eventStream(lastEventId, this::subscribe);
+	}
+
+	/**
+	 * Subscribes an open stream to this broadcaster, replaying the events
+	 * after its last event id.
+	 *
+	 * @param stream the stream
+	 */
+	public synchronized void subscribe(SseStream stream) {
+		Subscriber subscriber = new Subscriber(stream);
+
+		// Queued under the lock, so no event is missed or sent twice
+		for(int i = this.findReplayStart(stream.getLastEventId()); i < historySize; i++) {
+			subscriber.offer(history[(historyStart + i) % history.length].getBytes(), true);
+		}
+
+		subscribers.put(stream, subscriber);
+		stream.onClose(() -> subscribers.remove(stream));
+	}
+
+	// Events older than the buffer are lost, so an unknown id replays everything that's left
+	private int findReplayStart(String lastEventId) {
+		if(lastEventId == null)
+			return historySize;
+
+		for(int i = historySize - 1; i >= 0; i--) {
+			if(lastEventId.equals(history[(historyStart + i) % history.length].getId()))
+				return i + 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Sends an event to all subscribers. Events without an id are given
+	 * a sequential one, so they can be replayed. The event is queued for
+	 * every subscriber, this doesn't wait for it to be written.
+	 *
+	 * @param event the event
+	 * @return the number of subscribers the event was queued for
+	 */
+	public synchronized int broadcast(SseEvent event) {
+		if(event.getId() == null)
+			event = event.withId(String.valueOf(nextId++));
+
+		if(history.length > 0) {
+			if(historySize < history.length) {
+				history[(historyStart + historySize++) % history.length] = event;
+			} else {
+				history[historyStart] = event;
+				historyStart = (historyStart + 1) % history.length;
+			}
+		}
+
+		byte[] bytes = event.getBytes();
+		int queued = 0;
+		for(Subscriber subscriber : subscribers.values()) {
+			if(subscriber.offer(bytes, false))
+				queued++;
+		}
+		return queued;
+	}
+
+	/**
+	 * Sends an event with the specified data to all subscribers.
+	 *
+	 * @param data the data
+	 * @return the number of subscribers the event was queued for
+	 * @see #broadcast(SseEvent)
+	 */
+	public int broadcast(String data) {
+		return this.broadcast(SseEvent.of(data));
+	}
+
+	/**
+	 * Sends a comment to all subscribers, to keep idle connections open
+	 * and remove subscribers that disconnected.
+	 */
+	public synchronized void heartbeat() {
+		for(Subscriber subscriber : subscribers.values()) {
+			subscriber.offer(HEARTBEAT, false);
+		}
+	}
+
+	/**
+	 * Closes all subscribed streams.
+	 */
+	public void close() {
+		for(SseStream stream : subscribers.keySet()) {
+			stream.close();
+		}
+	}
+
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * A subscribed stream with the events that still have to be written to it.
+	 */
+	private class Subscriber implements Runnable {
+
+		private final SseStream stream;
+
+		// guarded by this
+		private final Queue<byte[]> queue = new ArrayDeque<>();
+		private boolean writing;
+		private boolean closing;
+
+		private Subscriber(SseStream stream) {
+			this.stream = stream;
+		}
+
+		// Never blocks, so it can be called while holding the broadcaster lock
+		private boolean offer(byte[] bytes, boolean replay) {
+			boolean schedule;
+			synchronized(this) {
+				if(closing || !stream.isOpen())
+					return false;
+
+				if(!replay && queue.size() >= maxQueuedEvents) {
+					queue.clear();
+					this.closing = true;
+					// Closing may block on the stuck write, so it's done by a writer thread
+					executor.execute(stream::close);
+					return false;
+				}
+
+				queue.add(bytes);
+				schedule = !writing;
+				this.writing = true;
+			}
+
+			if(schedule)
+				executor.execute(this);
+			return true;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				byte[] bytes;
+				synchronized(this) {
+					bytes = queue.poll();
+					if(bytes == null) {
+						this.writing = false;
+						return;
+					}
+				}
+
+				try {
+					stream.write(bytes);
+				} catch (IOException ex) {
+					// the stream closed itself, and was removed
+					synchronized(this) {
+						queue.clear();
+						this.writing = false;
+					}
+					return;
+				}
+			}
+		}
+
+	}
+
+}
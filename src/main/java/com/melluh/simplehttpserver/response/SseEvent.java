@@ -0,0 +1,137 @@
+package com.melluh.simplehttpserver.response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * An immutable server-sent event. The event is encoded once, no matter
+ * how many streams it is sent to.<br>
+ * See <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">the specification</a>.
+ *
+ * @see SseStream
+ * @see SseBroadcaster
+ */
+public final class SseEvent {
+
+	private final String id;
+	private final String name;
+	private final String data;
+	private final long retry;
+
+	private volatile byte[] bytes;
+
+	private SseEvent(String id, String name, String data, long retry) {
+		this.id = id;
+		this.name = name;
+		this.data = data;
+		this.retry = retry;
+	}
+
+	/**
+	 * Creates an event with the specified data. Data spanning multiple
+	 * lines is sent as multiple <code>data</code> fields.
+	 *
+	 * @param data the data
+	 * @return the event
+	 */
+	public static SseEvent of(String data) {
+		Objects.requireNonNull(data, "data is missing");
+		return new SseEvent(null, null, data, -1);
+	}
+
+	/**
+	 * Returns a copy of this event with the specified id. Clients send the last
+	 * id they received when reconnecting, in the <code>Last-Event-ID</code> header.
+	 *
+	 * @param id the event id, must not contain line breaks
+	 * @return the new event
+	 */
+	public SseEvent withId(String id) {
+		checkField(id, "id");
+		return new SseEvent(id, name, data, retry);
+	}
+
+	/**
+	 * Returns a copy of this event with the specified event name. Clients
+	 * receive named events through <code>addEventListener(name)</code>.
+	 *
+	 * @param name the event name, must not contain line breaks
+	 * @return the new event
+	 */
+	public SseEvent withName(String name) {
+		checkField(name, "name");
+		return new SseEvent(id, name, data, retry);
+	}
+
+	/**
+	 * Returns a copy of this event that tells clients how long to wait
+	 * before reconnecting.
+	 *
+	 * @param retry reconnection time in milliseconds
+	 * @return the new event
+	 */
+	public SseEvent withRetry(long retry) {
+		return new SseEvent(id, name, data, retry);
+	}
+
+	private static void checkField(String value, String field) {
+		Objects.requireNonNull(value, field + " is missing");
+		if(value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+			throw new IllegalArgumentException(field + " must not contain line breaks");
+	}
+
+	/**
+	 * Returns the encoded event, encoding it on first use.
+	 *
+	 * @return the event in <code>text/event-stream</code> format
+	 */
+	byte[] getBytes() {
+		byte[] bytes = this.bytes;
+		if(bytes == null)
+			this.bytes = bytes = this.encode();
+		return bytes;
+	}
+
+	private byte[] encode() {
+		StringBuilder builder = new StringBuilder(data.length() + 32);
+		if(id != null)
+			builder.append("id: ").append(id).append('\n');
+		if(name != null)
+			builder.append("event: ").append(name).append('\n');
+		if(retry >= 0)
+			builder.append("retry: ").append(retry).append('\n');
+
+		int start = 0;
+		int length = data.length();
+		for(int i = 0; i <= length; i++) {
+			char c = i < length ? data.charAt(i) : '\n';
+			if(c != '\n' && c != '\r')
+				continue;
+
+			builder.append("data: ").append(data, start, i).append('\n');
+			if(c == '\r' && i + 1 < length && data.charAt(i + 1) == '\n')
+				i++;
+			start = i + 1;
+		}
+		builder.append('\n');
+
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getData() {
+		return data;
+	}
+
+	public long getRetry() {
+		return retry;
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * A <code>text/event-stream</code> body, which stays open after the response
+ * is sent. Events are sent through the {@link SseStream} passed to the open
+ * callback, which may keep it and send events at any time. The connection
+ * thread is released in the meantime.
+ *
+ * @see Response#eventStream(String, Consumer)
+ * @see SseBroadcaster
+ */
+public class SseResponseBody implements DetachedResponseBody {
+
+	private final String lastEventId;
+	private final Consumer<SseStream> onOpen;
+
+	/**
+	 * Creates a new event stream body.
+	 *
+	 * @param lastEventId value of the request's <code>Last-Event-ID</code> header, may be null
+	 * @param onOpen called with the stream once the response head was sent
+	 */
+	public SseResponseBody(String lastEventId, Consumer<SseStream> onOpen) {
+		Objects.requireNonNull(onOpen, "onOpen is missing");
+		this.lastEventId = lastEventId;
+		this.onOpen = onOpen;
+	}
+
+	@Override
+	public void detach(OutputStream out) {
+		SseStream stream = new SseStream(out, lastEventId);
+		try {
+			onOpen.accept(stream);
+		} catch (RuntimeException ex) {
+			stream.close();
+			throw ex;
+		}
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		// Closing the stream must not close the wrapping body's stream, that's up to the server
+		SseStream stream = new SseStream(new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.flush();
+			}
+		}, lastEventId);
+
+		onOpen.accept(stream);
+		stream.awaitClose();
+	}
+
+	@Override
+	public void close() {}
+
+	@Override
+	public long getLength() {
+		return -1;
+	}
+
+}
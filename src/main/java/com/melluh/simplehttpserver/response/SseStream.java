@@ -0,0 +1,132 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.melluh.simplehttpserver.HttpUtils;
+
+/**
+ * An open <code>text/event-stream</code> response, to which events can be sent
+ * from any thread. A failed write closes the stream, which is usually how a
+ * disconnected client is noticed.
+ *
+ * @see SseResponseBody
+ */
+public class SseStream implements Closeable {
+
+	private final OutputStream out;
+	private final String lastEventId;
+	private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+	private volatile boolean open = true;
+
+	SseStream(OutputStream out, String lastEventId) {
+		this.out = out;
+		this.lastEventId = lastEventId;
+	}
+
+	/**
+	 * Sends an event.
+	 *
+	 * @param event the event
+	 * @throws IOException if the stream is closed, or an I/O error occurs
+	 */
+	public void send(SseEvent event) throws IOException {
+		this.write(event.getBytes());
+	}
+
+	/**
+	 * Sends an event with the specified data.
+	 *
+	 * @param data the data
+	 * @throws IOException if the stream is closed, or an I/O error occurs
+	 */
+	public void send(String data) throws IOException {
+		this.send(SseEvent.of(data));
+	}
+
+	/**
+	 * Sends a comment, which clients ignore. Sending one periodically keeps
+	 * proxies from closing the connection, and detects disconnected clients.
+	 *
+	 * @param comment the comment, must not contain line breaks
+	 * @throws IOException if the stream is closed, or an I/O error occurs
+	 */
+	public void comment(String comment) throws IOException {
+		this.write((": " + comment + "\n\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	void write(byte[] bytes) throws IOException {
+		synchronized(out) {
+			if(!open)
+				throw new IOException("Event stream is closed");
+
+			try {
+				out.write(bytes);
+				out.flush();
+			} catch (IOException ex) {
+				this.close();
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Ends the stream, and closes the connection.
+	 */
+	@Override
+	public void close() {
+		synchronized(this) {
+			if(!open)
+				return;
+			this.open = false;
+			this.notifyAll();
+		}
+
+		HttpUtils.close(out);
+		for(Runnable listener : closeListeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Adds a listener that is called once when the stream closes.
+	 *
+	 * @param listener the listener
+	 */
+	public void onClose(Runnable listener) {
+		closeListeners.add(listener);
+		if(!open)
+			listener.run();
+	}
+
+	// Used when the body is written by a wrapping body instead of detached
+	synchronized void awaitClose() throws IOException {
+		try {
+			while(open) {
+				this.wait();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for event stream to close");
+		}
+	}
+
+	/**
+	 * Returns the id of the last event the client received before reconnecting,
+	 * from the <code>Last-Event-ID</code> header.
+	 *
+	 * @return the last event id, or null if this is a new connection
+	 */
+	public String getLastEventId() {
+		return lastEventId;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+}
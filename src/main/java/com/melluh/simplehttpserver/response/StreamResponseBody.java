@@ -5,11 +5,13 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Objects;
 
+import com.melluh.simplehttpserver.BufferPool;
 import com.melluh.simplehttpserver.HttpUtils;
 
 /**
  * Represents a body in the form of an {@link InputStream}.
- * The response is sent to the client by buffering the input stream.
+ * The response is sent to the client by buffering the input stream,
+ * using a buffer from the {@link BufferPool}.
  */
 public class StreamResponseBody implements ResponseBody {
 
@@ -50,15 +52,22 @@ public class StreamResponseBody implements ResponseBody {
 	
 	@Override
 	public void write(OutputStream out) throws IOException {
-		byte[] buffer = new byte[bufferSize];
-		int len;
-		while((len = in.read(buffer)) != -1) {
-			try {
-				out.write(buffer, 0, len);
-			} catch (IOException ex) {
-				HttpUtils.close(in);
-				break;
+		byte[] buffer = BufferPool.getDefault().acquire(bufferSize);
+		try {
+			// Never send more than the announced length, the stream may continue past it
+			long remaining = length >= 0 ? length : Long.MAX_VALUE;
+			int len;
+			while(remaining > 0 && (len = in.read(buffer, 0, (int) Math.min(bufferSize, remaining))) != -1) {
+				try {
+					out.write(buffer, 0, len);
+				} catch (IOException ex) {
+					HttpUtils.close(in);
+					break;
+				}
+				remaining -= len;
 			}
+		} finally {
+			BufferPool.getDefault().release(buffer);
 		}
 	}
 	
@@ -0,0 +1,28 @@
+package com.melluh.simplehttpserver.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Takes over a connection after a <code>101 Switching Protocols</code> response
+ * was sent, to speak a different protocol on it. The handler runs on the
+ * connection's thread, and the connection is closed when it returns.
+ *
+ * @see Response#upgrade(UpgradeHandler)
+ */
+@FunctionalInterface
+public interface UpgradeHandler {
+
+	/**
+	 * Runs the upgraded protocol on the connection.
+	 *
+	 * @param socket the client socket
+	 * @param in the socket's input stream, positioned right after the request
+	 * @param out the socket's output stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	void upgrade(Socket socket, InputStream in, OutputStream out) throws IOException;
+
+}
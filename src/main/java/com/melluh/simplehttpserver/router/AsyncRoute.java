@@ -0,0 +1,7 @@
+package com.melluh.simplehttpserver.router;
+
+import com.melluh.simplehttpserver.AsyncRequestHandler;
+
+public interface AsyncRoute extends AsyncRequestHandler {
+
+}
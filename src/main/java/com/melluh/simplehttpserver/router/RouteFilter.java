@@ -1,10 +1,16 @@
 package com.melluh.simplehttpserver.router;
 
 import com.melluh.simplehttpserver.Request;
+import com.melluh.simplehttpserver.RequestTrace;
+import com.melluh.simplehttpserver.TracePhase;
 import com.melluh.simplehttpserver.response.Response;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,30 +18,165 @@ public class RouteFilter {
 
     private static final Pattern ESCAPE_PATTERN = Pattern.compile("[\\W]");
 
+    /**
+     * The number of latency buckets. Bucket <code>i</code> counts responses that took
+     * less than <code>2^i</code> milliseconds, the last bucket counts all slower ones.
+     */
+    public static final int LATENCY_BUCKETS = 14;
+
     private final String method;
+    private final String uri;
     private final Pattern uriPattern;
     private final Route route;
+    private final AsyncRoute asyncRoute;
     private final List<String> uriParams = new ArrayList<>();
 
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder[] latencies = new LongAdder[LATENCY_BUCKETS];
+
+    {
+        for(int i = 0; i < LATENCY_BUCKETS; i++) {
+            latencies[i] = new LongAdder();
+        }
+    }
+
     protected RouteFilter(String method, String uri, Route route) {
         this.method = method;
+        this.uri = uri;
         this.uriPattern = getUriPattern(uri);
         this.route = route;
+        this.asyncRoute = null;
+    }
+
+    protected RouteFilter(String method, String uri, AsyncRoute asyncRoute) {
+        this.method = method;
+        this.uri = uri;
+        this.uriPattern = getUriPattern(uri);
+        this.route = null;
+        this.asyncRoute = asyncRoute;
     }
 
     public Response serve(Request req) {
-        if(!method.equals("*") && !method.equals(req.getMethod().name()))
+        if(!matches(req))
             return null;
 
+        long start = System.nanoTime();
+        traceMatched(req, start);
+        Response resp;
+        if(route != null) {
+            resp = route.serve(req);
+        } else {
+            // Synchronous callers have to wait for asynchronous routes
+            CompletionStage<Response> stage = asyncRoute.serveAsync(req);
+            resp = stage != null ? stage.toCompletableFuture().join() : null;
+        }
+
+        if(resp != null)
+            this.record(System.nanoTime() - start);
+        return resp;
+    }
+
+    /**
+     * Serves the request, without waiting for asynchronous routes.
+     *
+     * @param req the request
+     * @return a stage completing with the response, or null if this filter doesn't match
+     */
+    public CompletionStage<Response> serveAsync(Request req) {
+        if(!matches(req))
+            return null;
+
+        long start = System.nanoTime();
+        traceMatched(req, start);
+        if(route != null) {
+            Response resp = route.serve(req);
+            if(resp != null)
+                this.record(System.nanoTime() - start);
+            return CompletableFuture.completedFuture(resp);
+        }
+
+        CompletionStage<Response> stage = asyncRoute.serveAsync(req);
+        if(stage == null)
+            return null;
+        return stage.whenComplete((resp, ex) -> {
+            if(resp != null)
+                this.record(System.nanoTime() - start);
+        });
+    }
+
+    private static void traceMatched(Request req, long nanoTime) {
+        RequestTrace trace = req.getTrace();
+        if(trace != null)
+            trace.mark(TracePhase.ROUTE_MATCHED, nanoTime);
+    }
+
+    private void record(long nanos) {
+        hits.increment();
+        totalNanos.add(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = millis == 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        latencies[Math.min(bucket, LATENCY_BUCKETS - 1)].increment();
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the number of requests this route responded to.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the total time this route took to respond, over all hits.
+     * Divide by {@link #getHits()} for the average.
+     *
+     * @return the total time in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Returns a histogram of the time this route took to respond.
+     *
+     * @return the count of every latency bucket
+     * @see #LATENCY_BUCKETS
+     */
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for(int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = latencies[i].sum();
+        }
+        return histogram;
+    }
+
+    public boolean isAsync() {
+        return asyncRoute != null;
+    }
+
+    private boolean matches(Request req) {
+        if(!method.equals("*") && !method.equals(req.getMethod().name()))
+            return false;
+
         Matcher uriMatcher = uriPattern.matcher(discardTrailingSlash(req.getLocation()));
         if(!uriMatcher.matches())
-            return null;
+            return false;
 
         for(String uriParam : uriParams) {
             req.addUriParam(uriParam, uriMatcher.group(uriParam));
         }
 
-        return route.serve(req);
+        return true;
     }
 
     private String discardTrailingSlash(String location) {
@@ -46,6 +187,10 @@ public class RouteFilter {
 
     // This is a mess, but it works.
     private Pattern getUriPattern(String uri) {
+        // A catch-all route also matches the root, whose location is empty once the slash is discarded
+        if(uri.equals("*"))
+            return Pattern.compile(".*");
+
         StringBuilder builder = new StringBuilder();
         for(String uriPart : uri.split("/")) {
             if(uriPart.startsWith(":")) {
@@ -1,13 +1,19 @@
 package com.melluh.simplehttpserver.router;
 
+import com.melluh.simplehttpserver.AsyncRequestHandler;
 import com.melluh.simplehttpserver.Request;
 import com.melluh.simplehttpserver.RequestHandler;
 import com.melluh.simplehttpserver.response.Response;
+import com.melluh.simplehttpserver.websocket.WebSocketListener;
+import com.melluh.simplehttpserver.websocket.WebSocketRoute;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
-public class Router implements RequestHandler {
+public class Router implements RequestHandler, AsyncRequestHandler {
 
     private final List<RouteFilter> filters = new ArrayList<>();
 
@@ -41,10 +47,65 @@ public class Router implements RequestHandler {
         return this;
     }
 
+    public Router allAsync(AsyncRoute route) {
+        this.addAsyncRoute("*", "*", route);
+        return this;
+    }
+
+    public Router allAsync(String uri, AsyncRoute route) {
+        this.addAsyncRoute("*", uri, route);
+        return this;
+    }
+
+    public Router getAsync(String uri, AsyncRoute route) {
+        this.addAsyncRoute("GET", uri, route);
+        return this;
+    }
+
+    public Router postAsync(String uri, AsyncRoute route) {
+        this.addAsyncRoute("POST", uri, route);
+        return this;
+    }
+
+    public Router putAsync(String uri, AsyncRoute route) {
+        this.addAsyncRoute("PUT", uri, route);
+        return this;
+    }
+
+    public Router deleteAsync(String uri, AsyncRoute route) {
+        this.addAsyncRoute("DELETE", uri, route);
+        return this;
+    }
+
+    /**
+     * Accepts WebSocket connections on the specified URI.
+     *
+     * @param uri the uri
+     * @param listener the listener receiving the events of all connections
+     * @return a reference to this, so the API can be used fluently
+     */
+    public Router websocket(String uri, WebSocketListener listener) {
+        this.addRoute("GET", uri, new WebSocketRoute(listener));
+        return this;
+    }
+
     private void addRoute(String method, String uri, Route route) {
         filters.add(new RouteFilter(method, uri, route));
     }
 
+    private void addAsyncRoute(String method, String uri, AsyncRoute route) {
+        filters.add(new RouteFilter(method, uri, route));
+    }
+
+    /**
+     * Returns the routes of this router, in the order they are tried.
+     *
+     * @return an immutable list of the routes
+     */
+    public List<RouteFilter> getRoutes() {
+        return Collections.unmodifiableList(filters);
+    }
+
     @Override
     public Response serve(Request req) {
         for(RouteFilter filter : filters) {
@@ -56,4 +117,33 @@ public class Router implements RequestHandler {
         return null;
     }
 
+    @Override
+    public CompletionStage<Response> serveAsync(Request req) {
+        return this.serveAsync(req, 0);
+    }
+
+    private CompletableFuture<Response> serveAsync(Request req, int index) {
+        for(int i = index; i < filters.size(); i++) {
+            RouteFilter filter = filters.get(i);
+            if(!filter.isAsync()) {
+                Response resp = filter.serve(req);
+                if(resp != null)
+                    return CompletableFuture.completedFuture(resp);
+                continue;
+            }
+
+            CompletionStage<Response> stage = filter.serveAsync(req);
+            if(stage == null)
+                continue;
+
+            int next = i + 1;
+            CompletableFuture<Response> future = stage.toCompletableFuture();
+            CompletableFuture<Response> result = future.thenCompose(resp -> resp != null ? CompletableFuture.completedFuture(resp) : serveAsync(req, next));
+            result.whenComplete((resp, ex) -> future.cancel(false)); // propagate cancellation to the route
+            return result;
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
 }
@@ -0,0 +1,123 @@
+package com.melluh.simplehttpserver.session;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A session of a client, identified by a signed cookie. Sessions hold string
+ * attributes, which are safe to access from multiple threads, such as concurrent
+ * requests of the same client.
+ *
+ * @see SessionStore#getSession(com.melluh.simplehttpserver.Request)
+ */
+public class Session {
+
+	private final SessionStore store;
+	private final String id;
+	private final long creationTime;
+	private final Map<String, String> attributes = new ConcurrentHashMap<>();
+
+	private volatile long lastAccessedTime;
+	private volatile long lastPersistedAccess;
+	private volatile boolean valid = true;
+
+	Session(SessionStore store, String id, long creationTime, long lastAccessedTime) {
+		this.store = store;
+		this.id = id;
+		this.creationTime = creationTime;
+		this.lastAccessedTime = lastAccessedTime;
+		this.lastPersistedAccess = lastAccessedTime;
+	}
+
+	/**
+	 * Returns the value of an attribute.
+	 *
+	 * @param name the name of the attribute
+	 * @return the value, or null if it isn't set
+	 */
+	public String get(String name) {
+		return attributes.get(name);
+	}
+
+	/**
+	 * Sets an attribute, replacing the existing value if present.
+	 *
+	 * @param name the name of the attribute
+	 * @param value the value of the attribute
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public Session set(String name, String value) {
+		Objects.requireNonNull(name, "name is missing");
+		Objects.requireNonNull(value, "value is missing");
+		if(!value.equals(attributes.put(name, value)))
+			store.attributeSet(this, name, value);
+		return this;
+	}
+
+	/**
+	 * Removes an attribute.
+	 *
+	 * @param name the name of the attribute
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public Session remove(String name) {
+		if(attributes.remove(name) != null)
+			store.attributeRemoved(this, name);
+		return this;
+	}
+
+	/**
+	 * Returns the names of all attributes.
+	 *
+	 * @return an immutable view of the names
+	 */
+	public Set<String> getAttributeNames() {
+		return Collections.unmodifiableSet(attributes.keySet());
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	public long getLastAccessedTime() {
+		return lastAccessedTime;
+	}
+
+	/**
+	 * Checks whether this session is still valid, that is, it hasn't been
+	 * invalidated, expired or evicted.
+	 *
+	 * @return whether the session is valid
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	Map<String, String> getAttributes() {
+		return attributes;
+	}
+
+	void setLastAccessedTime(long lastAccessedTime) {
+		this.lastAccessedTime = lastAccessedTime;
+	}
+
+	long getLastPersistedAccess() {
+		return lastPersistedAccess;
+	}
+
+	void setLastPersistedAccess(long lastPersistedAccess) {
+		this.lastPersistedAccess = lastPersistedAccess;
+	}
+
+	void markInvalid() {
+		this.valid = false;
+	}
+
+}
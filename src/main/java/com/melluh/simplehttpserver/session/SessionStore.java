@@ -0,0 +1,575 @@
+package com.melluh.simplehttpserver.session;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.melluh.simplehttpserver.HttpServer;
+import com.melluh.simplehttpserver.Request;
+import com.melluh.simplehttpserver.response.Cookie;
+import com.melluh.simplehttpserver.response.Cookie.SameSiteMode;
+import com.melluh.simplehttpserver.response.CookieTemplate;
+import com.melluh.simplehttpserver.response.Response;
+
+/**
+ * Keeps track of sessions, identified by a cookie holding a random session ID
+ * and its HMAC-SHA256 signature. Cookies with a missing or wrong signature are
+ * rejected without looking up the session.
+ *
+ * <br><br>
+ * Sessions are spread over a fixed number of concurrent maps, so lookups never
+ * take a lock. Sessions expire after they haven't been accessed for the idle timeout.
+ * Expired sessions are removed by a background thread, which sweeps one map at a
+ * time, so there is never a pause to scan all sessions. When the maximum number of
+ * sessions is reached, the least recently accessed session of a map is evicted.
+ *
+ * <br><br>
+ * With {@link #journalFile(File)}, every change is appended to a file, so sessions
+ * survive restarts. The journal is flushed about once a second, and is compacted
+ * on start, on close, and whenever it grows much larger than the live sessions.
+ * <pre>
+ * SessionStore sessions = new SessionStore(secret).journalFile(new File("sessions.log")).start();
+ *
+ * Session session = sessions.getSession(request);
+ * if(session == null)
+ *     session = sessions.createSession(response);
+ * </pre>
+ */
+public class SessionStore implements Closeable {
+
+	private static final String JOURNAL_HEADER = "# simple-http-server sessions v1";
+
+	private static final int STRIPES = 64; // must be a power of two
+	private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+	private static final int ID_LENGTH = 16;
+	private static final int SIGNATURE_LENGTH = 16;
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs;
+	private final SecureRandom random = new SecureRandom();
+
+	private final Map<String, Session>[] stripes;
+	private final AtomicInteger size = new AtomicInteger();
+
+	private CookieTemplate cookie = new Cookie("session", "").path("/").httpOnly(true).sameSite(SameSiteMode.LAX).toTemplate();
+	private long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(30);
+	private int maxSessions = 100_000;
+	private File journalFile;
+
+	// Guarded by journalLock
+	private final Object journalLock = new Object();
+	private BufferedWriter journal;
+	private int journalRecords;
+
+	private Thread sweeper;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new session store. Call {@link #start()} before using it.
+	 *
+	 * @param secret the key session IDs are signed with, at least 32 bytes.
+	 *               Keep it the same across restarts to keep persisted sessions.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public SessionStore(byte[] secret) {
+		Objects.requireNonNull(secret, "secret is missing");
+		if(secret.length < 32)
+			throw new IllegalArgumentException("secret must be at least 32 bytes");
+
+		this.key = new SecretKeySpec(secret.clone(), "HmacSHA256");
+		this.macs = ThreadLocal.withInitial(() -> {
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException ex) {
+				throw new IllegalStateException("HmacSHA256 is not supported", ex);
+			}
+		});
+
+		this.stripes = new Map[STRIPES];
+		for(int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ConcurrentHashMap<>();
+		}
+	}
+
+	/**
+	 * Sets the cookie the session ID is sent in. Defaults to a cookie named
+	 * <code>session</code>, with <code>Path=/</code>, <code>HttpOnly</code> and
+	 * <code>SameSite=Lax</code>.
+	 *
+	 * @param cookie the template of the cookie
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SessionStore cookie(CookieTemplate cookie) {
+		Objects.requireNonNull(cookie, "cookie is missing");
+		this.cookie = cookie;
+		return this;
+	}
+
+	/**
+	 * Sets how long a session lasts after it was last accessed. Defaults to 30 minutes.
+	 *
+	 * @param idleTimeout the idle timeout
+	 * @param unit the unit of the idle timeout
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SessionStore idleTimeout(long idleTimeout, TimeUnit unit) {
+		if(idleTimeout <= 0)
+			throw new IllegalArgumentException("idleTimeout must be positive");
+		this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of sessions. Defaults to 100,000.
+	 *
+	 * @param maxSessions the maximum number of sessions
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SessionStore maxSessions(int maxSessions) {
+		if(maxSessions <= 0)
+			throw new IllegalArgumentException("maxSessions must be positive");
+		this.maxSessions = maxSessions;
+		return this;
+	}
+
+	/**
+	 * Sets the file sessions are persisted to. It is loaded on start,
+	 * and every change is appended to it.
+	 *
+	 * @param journalFile the journal file, or null to keep sessions in memory only
+	 * @return a reference to this, so the API can be used fluently
+	 */
+	public SessionStore journalFile(File journalFile) {
+		this.journalFile = journalFile;
+		return this;
+	}
+
+	/**
+	 * Loads the journal, if set, and starts sweeping expired sessions.
+	 *
+	 * @return a reference to this, so the API can be used fluently
+	 * @throws IOException if the journal can't be written
+	 */
+	public SessionStore start() throws IOException {
+		if(journalFile != null) {
+			this.loadJournal();
+			synchronized(journalLock) {
+				this.compactJournal();
+			}
+		}
+
+		this.sweeper = new Thread(this::sweepLoop);
+		sweeper.setName("Session Sweeper Thread");
+		sweeper.setDaemon(true);
+		sweeper.start();
+		return this;
+	}
+
+	/**
+	 * Looks up the session of a request, and marks it as accessed.
+	 *
+	 * @param request the request
+	 * @return the session, or null if the request has no valid session cookie
+	 *         or the session has expired
+	 */
+	public Session getSession(Request request) {
+		String id = this.verify(request.getCookie(cookie.getName()));
+		if(id == null)
+			return null;
+
+		Map<String, Session> stripe = this.getStripe(id);
+		Session session = stripe.get(id);
+		if(session == null)
+			return null;
+
+		long now = System.currentTimeMillis();
+		if(this.isExpired(session, now)) {
+			this.removeSession(stripe, session);
+			return null;
+		}
+
+		session.setLastAccessedTime(now);
+		// Accesses only need to be persisted often enough to not expire sessions on restart
+		if(journalFile != null && now - session.getLastPersistedAccess() > idleTimeoutMillis / 8) {
+			session.setLastPersistedAccess(now);
+			this.append("A", id, Long.toString(now));
+		}
+		return session;
+	}
+
+	/**
+	 * Creates a new session, and adds its cookie to a response.
+	 *
+	 * @param response the response
+	 * @return the new session
+	 */
+	public Session createSession(Response response) {
+		byte[] bytes = new byte[ID_LENGTH];
+		random.nextBytes(bytes);
+		String id = ENCODER.encodeToString(bytes);
+
+		long now = System.currentTimeMillis();
+		Session session = new Session(this, id, now, now);
+		// A compaction between the two would drop the session, as would a D record written before the C
+		synchronized(journalLock) {
+			this.getStripe(id).put(id, session);
+			this.append("C", id, Long.toString(now), Long.toString(now));
+		}
+		if(size.incrementAndGet() > maxSessions)
+			this.evict(id);
+
+		response.cookie(cookie.create(id + "." + this.sign(id)));
+		return session;
+	}
+
+	/**
+	 * Invalidates a session, and adds a cookie to a response that removes the session cookie.
+	 *
+	 * @param session the session
+	 * @param response the response
+	 */
+	public void invalidate(Session session, Response response) {
+		this.removeSession(this.getStripe(session.getId()), session);
+		response.cookie(cookie.create("").maxAge(0));
+	}
+
+	/**
+	 * Returns the number of sessions, including expired sessions that haven't been swept yet.
+	 *
+	 * @return the number of sessions
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Stops sweeping expired sessions, and compacts the journal if set.
+	 */
+	@Override
+	public void close() {
+		if(closed)
+			return;
+		this.closed = true;
+
+		if(sweeper != null)
+			sweeper.interrupt();
+
+		synchronized(journalLock) {
+			if(journal == null)
+				return;
+			try {
+				this.compactJournal();
+				journal.close();
+			} catch (IOException ex) {
+				HttpServer.LOGGER.log(Level.WARNING, "Failed to write session journal " + journalFile, ex);
+			}
+			this.journal = null;
+		}
+	}
+
+	private Map<String, Session> getStripe(String id) {
+		return stripes[getStripeIndex(id)];
+	}
+
+	private static int getStripeIndex(String id) {
+		int hash = id.hashCode();
+		return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+	}
+
+	private boolean isExpired(Session session, long now) {
+		return now - session.getLastAccessedTime() > idleTimeoutMillis;
+	}
+
+	private void removeSession(Map<String, Session> stripe, Session session) {
+		if(!stripe.remove(session.getId(), session))
+			return;
+
+		size.decrementAndGet();
+		session.markInvalid();
+		this.append("D", session.getId());
+	}
+
+	// Makes room for a new session, preferring expired sessions over live ones
+	private void evict(String newId) {
+		int startIndex = getStripeIndex(newId);
+		this.sweep(stripes[startIndex], System.currentTimeMillis());
+
+		for(int i = 0; i < STRIPES && size.get() > maxSessions; i++) {
+			Map<String, Session> stripe = stripes[(startIndex + i) & (STRIPES - 1)];
+
+			Session oldest = null;
+			for(Session session : stripe.values()) {
+				if(!session.getId().equals(newId) && (oldest == null || session.getLastAccessedTime() < oldest.getLastAccessedTime()))
+					oldest = session;
+			}
+			if(oldest != null)
+				this.removeSession(stripe, oldest);
+		}
+	}
+
+	private void sweep(Map<String, Session> stripe, long now) {
+		for(Session session : stripe.values()) {
+			if(this.isExpired(session, now))
+				this.removeSession(stripe, session);
+		}
+	}
+
+	private void sweepLoop() {
+		int next = 0;
+		while(!closed) {
+			try {
+				Thread.sleep(SWEEP_INTERVAL_MILLIS);
+			} catch (InterruptedException ex) {
+				return;
+			}
+
+			this.sweep(stripes[next], System.currentTimeMillis());
+			next = (next + 1) & (STRIPES - 1);
+
+			synchronized(journalLock) {
+				if(journal == null)
+					continue;
+				try {
+					if(journalRecords > Math.max(10_000, size.get() * 4))
+						this.compactJournal();
+					else
+						journal.flush();
+				} catch (IOException ex) {
+					HttpServer.LOGGER.log(Level.WARNING, "Failed to write session journal " + journalFile, ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Signs a session ID, returning the truncated signature in base64url.
+	 */
+	private String sign(String id) {
+		byte[] signature = macs.get().doFinal(id.getBytes(StandardCharsets.US_ASCII));
+		return ENCODER.encodeToString(Arrays.copyOf(signature, SIGNATURE_LENGTH));
+	}
+
+	/**
+	 * Returns the session ID in a cookie value, or null if the signature doesn't match.
+	 */
+	private String verify(String value) {
+		if(value == null)
+			return null;
+
+		int dotIndex = value.indexOf('.');
+		if(dotIndex < 0)
+			return null;
+
+		byte[] signature;
+		try {
+			signature = DECODER.decode(value.substring(dotIndex + 1));
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+
+		String id = value.substring(0, dotIndex);
+		byte[] expected = Arrays.copyOf(macs.get().doFinal(id.getBytes(StandardCharsets.US_ASCII)), SIGNATURE_LENGTH);
+		return MessageDigest.isEqual(signature, expected) ? id : null;
+	}
+
+	void attributeSet(Session session, String name, String value) {
+		if(session.isValid())
+			this.append("S", session.getId(), name, value);
+	}
+
+	void attributeRemoved(Session session, String name) {
+		if(session.isValid())
+			this.append("R", session.getId(), name);
+	}
+
+	private void append(String... fields) {
+		if(journalFile == null)
+			return;
+
+		synchronized(journalLock) {
+			if(journal == null)
+				return;
+			try {
+				this.writeRecord(journal, fields);
+				journalRecords++;
+			} catch (IOException ex) {
+				HttpServer.LOGGER.log(Level.WARNING, "Failed to write session journal " + journalFile, ex);
+			}
+		}
+	}
+
+	private void writeRecord(BufferedWriter writer, String... fields) throws IOException {
+		for(int i = 0; i < fields.length; i++) {
+			if(i > 0)
+				writer.write('\t');
+			writer.write(escape(fields[i]));
+		}
+		writer.write('\n');
+	}
+
+	/**
+	 * Replays the journal. Records are idempotent, so records that were written
+	 * both in a compacted journal and after it replay to the same state.
+	 */
+	private void loadJournal() {
+		if(!journalFile.isFile())
+			return;
+
+		Map<String, Session> sessions = new HashMap<>();
+		try(BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+			if(!JOURNAL_HEADER.equals(reader.readLine()))
+				return; // unknown format, start over
+
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				for(int i = 0; i < fields.length; i++) {
+					fields[i] = unescape(fields[i]);
+				}
+				this.replay(sessions, fields);
+			}
+		} catch (IOException | RuntimeException ex) {
+			// A crash can leave a partial last record, everything before it is still good
+			HttpServer.LOGGER.log(Level.WARNING, "Failed to read session journal " + journalFile, ex);
+		}
+
+		long now = System.currentTimeMillis();
+		for(Session session : sessions.values()) {
+			if(!this.isExpired(session, now) && size.get() < maxSessions) {
+				this.getStripe(session.getId()).put(session.getId(), session);
+				size.incrementAndGet();
+			}
+		}
+	}
+
+	private void replay(Map<String, Session> sessions, String[] fields) {
+		Session session = fields.length > 1 ? sessions.get(fields[1]) : null;
+		switch(fields[0]) {
+			case "C":
+				if(session == null && fields.length == 4)
+					sessions.put(fields[1], new Session(this, fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+				break;
+			case "A":
+				if(session != null && fields.length == 3) {
+					long time = Long.parseLong(fields[2]);
+					session.setLastAccessedTime(time);
+					session.setLastPersistedAccess(time);
+				}
+				break;
+			case "S":
+				if(session != null && fields.length == 4)
+					session.getAttributes().put(fields[2], fields[3]);
+				break;
+			case "R":
+				if(session != null && fields.length == 3)
+					session.getAttributes().remove(fields[2]);
+				break;
+			case "D":
+				sessions.remove(fields[1]);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Rewrites the journal with only the live sessions, and reopens it for appending.
+	 * Written next to the journal and moved over it, so a crash never loses sessions.
+	 */
+	private void compactJournal() throws IOException {
+		if(journal != null)
+			journal.close();
+
+		Path target = journalFile.toPath();
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		int records = 0;
+		try(BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write(JOURNAL_HEADER);
+			writer.write('\n');
+
+			long now = System.currentTimeMillis();
+			for(Map<String, Session> stripe : stripes) {
+				for(Session session : stripe.values()) {
+					if(this.isExpired(session, now))
+						continue;
+
+					this.writeRecord(writer, "C", session.getId(), Long.toString(session.getCreationTime()), Long.toString(session.getLastAccessedTime()));
+					for(Map.Entry<String, String> attribute : session.getAttributes().entrySet()) {
+						this.writeRecord(writer, "S", session.getId(), attribute.getKey(), attribute.getValue());
+						records++;
+					}
+					records++;
+				}
+			}
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		this.journal = Files.newBufferedWriter(target, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+		this.journalRecords = records;
+	}
+
+	private static String escape(String str) {
+		StringBuilder builder = null;
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			String replacement = c == '\\' ? "\\\\" : c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+			if(replacement == null) {
+				if(builder != null)
+					builder.append(c);
+				continue;
+			}
+
+			if(builder == null)
+				builder = new StringBuilder(str.length() + 16).append(str, 0, i);
+			builder.append(replacement);
+		}
+		return builder != null ? builder.toString() : str;
+	}
+
+	private static String unescape(String str) {
+		if(str.indexOf('\\') < 0)
+			return str;
+
+		StringBuilder builder = new StringBuilder(str.length());
+		for(int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if(c != '\\' || i + 1 == str.length()) {
+				builder.append(c);
+				continue;
+			}
+
+			char next = str.charAt(++i);
+			builder.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,651 @@
+package com.melluh.simplehttpserver.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.melluh.simplehttpserver.BufferPool;
+import com.melluh.simplehttpserver.HttpServer;
+import com.melluh.simplehttpserver.HttpUtils;
+import com.melluh.simplehttpserver.Request;
+import com.melluh.simplehttpserver.ServerOptions;
+import com.melluh.simplehttpserver.TimeoutWheel;
+
+/**
+ * A WebSocket connection. Messages can be sent from any thread, frames are
+ * never interleaved. Incoming messages are delivered to the {@link WebSocketListener}
+ * on the connection's own thread.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc6455">RFC 6455</a>.
+ */
+public class WebSocket {
+
+	public static final int NORMAL_CLOSURE = 1000;
+	public static final int GOING_AWAY = 1001;
+	public static final int PROTOCOL_ERROR = 1002;
+	public static final int UNSUPPORTED_DATA = 1003;
+	public static final int NO_STATUS = 1005;
+	public static final int ABNORMAL_CLOSURE = 1006;
+	public static final int INVALID_DATA = 1007;
+	public static final int POLICY_VIOLATION = 1008;
+	public static final int MESSAGE_TOO_BIG = 1009;
+	public static final int INTERNAL_ERROR = 1011;
+
+	// Time the client has to answer a close frame
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	private static final byte[] PING_FRAME = WebSocketCodec.encodeFrame(WebSocketCodec.OP_PING, false, new byte[0], 0, 0);
+
+	// Writes broadcast frames, threads only exist while there are frames to write
+	private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable);
+		thread.setName("WebSocket Writer Thread");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Request request;
+	private final WebSocketListener listener;
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final Inflater inflater;
+	private final int maxMessageSize;
+	private final int writeTimeout;
+	private final int maxQueuedMessages;
+
+	private final Object writeLock = new Object();
+
+	// Broadcast frames that still have to be written, guarded by queue
+	private final Queue<byte[]> queue = new ArrayDeque<>();
+	private boolean writing;
+
+	private volatile boolean open = true;
+	private volatile boolean closeSent;
+	private volatile Object attachment;
+
+	// Read state, only accessed by the connection's thread
+	private byte[] readBuffer;
+	private int readPosition;
+	private int readLimit;
+	private final byte[] mask = new byte[4];
+	private final byte[] controlPayload = new byte[WebSocketCodec.MAX_CONTROL_PAYLOAD];
+	private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+	private byte[] message;
+	private int messageLength;
+	private int messageOpcode = -1;
+	private boolean messageCompressed;
+
+	private int closeCode = ABNORMAL_CLOSURE;
+	private String closeReason = "";
+
+	WebSocket(Request request, WebSocketListener listener, boolean deflate, Socket socket, InputStream in, OutputStream out) {
+		this.request = request;
+		this.listener = listener;
+		this.socket = socket;
+		this.in = in;
+		this.out = out;
+		this.inflater = deflate ? new Inflater(true) : null;
+		ServerOptions options = request.getServer().getOptions();
+		this.maxMessageSize = options.getWebSocketMaxMessageSize();
+		this.writeTimeout = options.getWebSocketWriteTimeout();
+		this.maxQueuedMessages = options.getWebSocketMaxQueuedMessages();
+	}
+
+	/**
+	 * Sends a text message.
+	 *
+	 * @param text the text
+	 * @throws IOException if the connection is closed, or an I/O error occurs
+	 */
+	public void send(String text) throws IOException {
+		this.send(WebSocketMessage.text(text));
+	}
+
+	/**
+	 * Sends a binary message.
+	 *
+	 * @param data the data
+	 * @throws IOException if the connection is closed, or an I/O error occurs
+	 */
+	public void send(byte[] data) throws IOException {
+		this.send(WebSocketMessage.binary(data));
+	}
+
+	/**
+	 * Sends a prepared message. Messages that were broadcast to this connection
+	 * but not written yet are sent first.
+	 *
+	 * @param message the message
+	 * @throws IOException if the connection is closed, or an I/O error occurs
+	 */
+	public void send(WebSocketMessage message) throws IOException {
+		this.writeFrame(message.getFrame(inflater != null));
+	}
+
+	/**
+	 * Sends a message to multiple connections. The frame is encoded once and
+	 * shared by all of them.
+	 *
+	 * <br><br>
+	 * This never blocks on a connection. The message is queued for every connection,
+	 * and written by a writer thread. Connections that fall too far behind, such as
+	 * clients that stopped reading, are closed.
+	 *
+	 * @param sockets the connections
+	 * @param message the message
+	 * @return the number of connections the message was queued for
+	 * @see ServerOptions#webSocketMaxQueuedMessages(int)
+	 */
+	public static int broadcast(Iterable<WebSocket> sockets, WebSocketMessage message) {
+		int queued = 0;
+		for(WebSocket socket : sockets) {
+			if(socket.offer(message.getFrame(socket.inflater != null)))
+				queued++;
+		}
+		return queued;
+	}
+
+	/**
+	 * Sends a text message to multiple connections, encoding it once.
+	 *
+	 * @param sockets the connections
+	 * @param text the text
+	 * @return the number of connections the message was sent to
+	 * @see #broadcast(Iterable, WebSocketMessage)
+	 */
+	public static int broadcast(Iterable<WebSocket> sockets, String text) {
+		return broadcast(sockets, WebSocketMessage.text(text));
+	}
+
+	/**
+	 * Closes the connection normally.
+	 */
+	public void close() {
+		this.close(NORMAL_CLOSURE, "");
+	}
+
+	/**
+	 * Starts the closing handshake. The connection is closed once the client
+	 * answers, or after a few seconds if it doesn't.
+	 *
+	 * @param code the close code
+	 * @param reason the close reason, at most 123 bytes when encoded
+	 */
+	public void close(int code, String reason) {
+		if(this.sendClose(code, reason))
+			request.getServer().getTimeoutWheel().schedule(() -> HttpUtils.close(socket), CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method for internal use.
+	 * Runs the connection until it is closed.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	void run() throws IOException {
+		ServerOptions options = request.getServer().getOptions();
+		int pingInterval = options.getWebSocketPingInterval();
+		socket.setSoTimeout(pingInterval > 0 ? pingInterval : options.getIdleTimeout());
+
+		this.readBuffer = BufferPool.getDefault().acquire(BufferPool.SMALL);
+		try {
+			listener.onOpen(this);
+			this.readFrames(pingInterval > 0);
+		} catch (CloseException ex) {
+			this.closeCode = ex.code;
+			this.closeReason = ex.getMessage();
+			this.sendClose(ex.code, ex.getMessage());
+		} catch (SocketTimeoutException ex) {
+			this.closeCode = ABNORMAL_CLOSURE;
+		} catch (IOException ex) {
+			if(!closeSent)
+				this.notifyError(ex);
+		} catch (RuntimeException ex) {
+			HttpServer.LOGGER.log(Level.SEVERE, "Error in WebSocket listener", ex);
+			this.closeCode = INTERNAL_ERROR;
+			this.sendClose(INTERNAL_ERROR, "");
+		} finally {
+			this.open = false;
+			BufferPool.getDefault().release(readBuffer);
+			BufferPool.getDefault().release(message);
+			this.readBuffer = null;
+			this.message = null;
+			if(inflater != null)
+				inflater.end();
+
+			try {
+				listener.onClose(this, closeCode, closeReason);
+			} catch (RuntimeException ex) {
+				HttpServer.LOGGER.log(Level.SEVERE, "Error in WebSocket listener", ex);
+			}
+		}
+	}
+
+	private void readFrames(boolean keepAlive) throws IOException, CloseException {
+		boolean pingSent = false;
+
+		while(true) {
+			// Only wait for the start of a frame, a timeout in the middle of one ends the connection
+			if(readPosition == readLimit) {
+				try {
+					if(!this.fill())
+						return;
+				} catch (SocketTimeoutException ex) {
+					if(!keepAlive || pingSent)
+						throw ex;
+
+					this.writeFrame(PING_FRAME);
+					pingSent = true;
+					continue;
+				}
+			}
+			pingSent = false;
+
+			int b0 = this.readByte();
+			int b1 = this.readByte();
+
+			boolean fin = (b0 & WebSocketCodec.FLAG_FIN) != 0;
+			boolean rsv1 = (b0 & WebSocketCodec.FLAG_RSV1) != 0;
+			int opcode = b0 & WebSocketCodec.OPCODE_MASK;
+
+			if((b0 & WebSocketCodec.RSV_MASK & ~WebSocketCodec.FLAG_RSV1) != 0)
+				throw new CloseException(PROTOCOL_ERROR, "Reserved bits set");
+			if((b1 & WebSocketCodec.FLAG_MASK) == 0)
+				throw new CloseException(PROTOCOL_ERROR, "Client frames must be masked");
+
+			long length = b1 & 0x7F;
+			if(length == 126) {
+				length = (this.readByte() << 8) | this.readByte();
+			} else if(length == 127) {
+				length = 0;
+				for(int i = 0; i < 8; i++) {
+					length = (length << 8) | this.readByte();
+				}
+				if(length < 0)
+					throw new CloseException(PROTOCOL_ERROR, "Invalid frame length");
+			}
+			this.readFully(mask, 0, 4);
+
+			if(WebSocketCodec.isControl(opcode)) {
+				if(!fin || rsv1 || length > WebSocketCodec.MAX_CONTROL_PAYLOAD)
+					throw new CloseException(PROTOCOL_ERROR, "Invalid control frame");
+
+				this.readFully(controlPayload, 0, (int) length);
+				WebSocketCodec.unmask(controlPayload, 0, (int) length, mask);
+				if(this.handleControl(opcode, (int) length))
+					return;
+				continue;
+			}
+
+			if(opcode == WebSocketCodec.OP_CONTINUATION) {
+				if(messageOpcode < 0 || rsv1)
+					throw new CloseException(PROTOCOL_ERROR, "Unexpected continuation frame");
+			} else if(opcode == WebSocketCodec.OP_TEXT || opcode == WebSocketCodec.OP_BINARY) {
+				if(messageOpcode >= 0)
+					throw new CloseException(PROTOCOL_ERROR, "Expected continuation frame");
+				if(rsv1 && inflater == null)
+					throw new CloseException(PROTOCOL_ERROR, "Compression was not negotiated");
+				this.messageOpcode = opcode;
+				this.messageCompressed = rsv1;
+			} else {
+				throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+			}
+
+			if(messageLength + length > maxMessageSize)
+				throw new CloseException(MESSAGE_TOO_BIG, "Message too big");
+
+			// Read the payload straight into the message buffer, and unmask it there
+			int frameLength = (int) length;
+			this.ensureMessageCapacity(messageLength + frameLength);
+			this.readFully(message, messageLength, frameLength);
+			WebSocketCodec.unmask(message, messageLength, frameLength, mask);
+			messageLength += frameLength;
+
+			if(fin)
+				this.deliverMessage();
+		}
+	}
+
+	// Returns whether the connection should stop reading
+	private boolean handleControl(int opcode, int length) throws IOException, CloseException {
+		switch(opcode) {
+			case WebSocketCodec.OP_PING:
+				this.writeFrame(WebSocketCodec.encodeFrame(WebSocketCodec.OP_PONG, false, controlPayload, 0, length));
+				return false;
+			case WebSocketCodec.OP_PONG:
+				return false; // any frame counts as a sign of life
+			case WebSocketCodec.OP_CLOSE:
+				int code = NO_STATUS;
+				String reason = "";
+				if(length == 1)
+					throw new CloseException(PROTOCOL_ERROR, "Invalid close frame");
+				if(length >= 2) {
+					code = ((controlPayload[0] & 0xFF) << 8) | (controlPayload[1] & 0xFF);
+					if(!isValidCloseCode(code))
+						throw new CloseException(PROTOCOL_ERROR, "Invalid close code");
+					reason = this.decodeText(controlPayload, 2, length - 2);
+				}
+
+				this.closeCode = code;
+				this.closeReason = reason;
+				this.sendClose(code == NO_STATUS ? NORMAL_CLOSURE : code, "");
+				return true;
+			default:
+				throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+		}
+	}
+
+	private void deliverMessage() throws IOException, CloseException {
+		byte[] data = message;
+		int length = messageLength;
+		byte[] inflated = null;
+
+		try {
+			if(messageCompressed) {
+				inflated = this.inflate();
+				data = inflated;
+				length = messageLength;
+			}
+
+			if(messageOpcode == WebSocketCodec.OP_TEXT) {
+				listener.onText(this, this.decodeText(data, 0, length));
+			} else {
+				listener.onBinary(this, Arrays.copyOf(data, length));
+			}
+		} finally {
+			BufferPool.getDefault().release(inflated);
+			BufferPool.getDefault().release(message);
+			this.message = null;
+			this.messageLength = 0;
+			this.messageOpcode = -1;
+		}
+	}
+
+	// Decompresses the message, leaving the decompressed length in messageLength
+	private byte[] inflate() throws CloseException {
+		// The sender leaves out the empty block trailer, RFC 7692 section 7.2.2
+		this.ensureMessageCapacity(messageLength + 4);
+		message[messageLength] = 0;
+		message[messageLength + 1] = 0;
+		message[messageLength + 2] = (byte) 0xFF;
+		message[messageLength + 3] = (byte) 0xFF;
+		inflater.setInput(message, 0, messageLength + 4);
+
+		byte[] output = BufferPool.getDefault().acquire(Math.min(maxMessageSize, BufferPool.LARGE));
+		int outputLength = 0;
+		try {
+			while(true) {
+				if(outputLength == output.length) {
+					if(outputLength >= maxMessageSize)
+						throw new CloseException(MESSAGE_TOO_BIG, "Message too big");
+					output = grow(output, outputLength, Math.min(maxMessageSize, outputLength * 2));
+				}
+
+				int read = inflater.inflate(output, outputLength, output.length - outputLength);
+				outputLength += read;
+				if(read == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+					break;
+			}
+		} catch (DataFormatException ex) {
+			BufferPool.getDefault().release(output);
+			throw new CloseException(INVALID_DATA, "Invalid compressed data");
+		} catch (CloseException ex) {
+			BufferPool.getDefault().release(output);
+			throw ex;
+		}
+
+		this.messageLength = outputLength;
+		return output;
+	}
+
+	private String decodeText(byte[] data, int offset, int length) throws CloseException {
+		try {
+			utf8.reset();
+			return utf8.decode(ByteBuffer.wrap(data, offset, length)).toString();
+		} catch (CharacterCodingException ex) {
+			throw new CloseException(INVALID_DATA, "Invalid UTF-8");
+		}
+	}
+
+	private void ensureMessageCapacity(int capacity) {
+		if(message == null) {
+			this.message = BufferPool.getDefault().acquire(capacity);
+		} else if(message.length < capacity) {
+			this.message = grow(message, messageLength, Math.max(capacity, message.length * 2));
+		}
+	}
+
+	private static byte[] grow(byte[] buffer, int used, int size) {
+		byte[] grown = BufferPool.getDefault().acquire(size);
+		System.arraycopy(buffer, 0, grown, 0, used);
+		BufferPool.getDefault().release(buffer);
+		return grown;
+	}
+
+	private static boolean isValidCloseCode(int code) {
+		if(code >= 3000 && code <= 4999)
+			return true;
+		return code >= 1000 && code <= 1011 && code != 1004 && code != NO_STATUS && code != ABNORMAL_CLOSURE;
+	}
+
+	// Returns whether this call sent the close frame
+	private boolean sendClose(int code, String reason) {
+		byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+		int reasonLength = Math.min(reasonBytes.length, WebSocketCodec.MAX_CONTROL_PAYLOAD - 2);
+		byte[] payload = new byte[2 + reasonLength];
+		payload[0] = (byte) (code >>> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+		byte[] frame = WebSocketCodec.encodeFrame(WebSocketCodec.OP_CLOSE, false, payload, 0, payload.length);
+
+		synchronized(writeLock) {
+			if(closeSent)
+				return false;
+			this.closeSent = true;
+
+			try {
+				this.write(frame);
+			} catch (IOException ignored) {
+				// the connection is going away anyway
+			}
+			return true;
+		}
+	}
+
+	private void writeFrame(byte[] frame) throws IOException {
+		synchronized(writeLock) {
+			if(closeSent || !open)
+				throw new IOException("WebSocket is closed");
+
+			// Keep the order in which messages were sent and broadcast
+			byte[] queued;
+			while((queued = this.poll()) != null) {
+				this.write(queued);
+			}
+			this.write(frame);
+		}
+	}
+
+	// Never blocks, returns whether the frame was queued
+	private boolean offer(byte[] frame) {
+		synchronized(queue) {
+			if(!this.isOpen())
+				return false;
+
+			if(queue.size() >= maxQueuedMessages) {
+				queue.clear();
+				this.open = false;
+				// Closing may block on the stuck write, so it's done by a writer thread
+				WRITERS.execute(() -> HttpUtils.close(socket));
+				return false;
+			}
+
+			queue.add(frame);
+			if(writing)
+				return true;
+			this.writing = true;
+		}
+
+		WRITERS.execute(this::writeQueued);
+		return true;
+	}
+
+	private byte[] poll() {
+		synchronized(queue) {
+			return queue.poll();
+		}
+	}
+
+	private void writeQueued() {
+		while(true) {
+			synchronized(writeLock) {
+				byte[] frame;
+				synchronized(queue) {
+					frame = closeSent ? null : queue.poll();
+					if(frame == null) {
+						queue.clear();
+						this.writing = false;
+						return;
+					}
+				}
+
+				try {
+					this.write(frame);
+				} catch (IOException ex) {
+					// the connection's own thread will notice and close it
+					synchronized(queue) {
+						queue.clear();
+						this.writing = false;
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	// Writes a frame, closing the connection if the client doesn't take it in time
+	private void write(byte[] frame) throws IOException {
+		TimeoutWheel.Timeout timeout = writeTimeout > 0
+				? request.getServer().getTimeoutWheel().schedule(() -> HttpUtils.close(socket), writeTimeout, TimeUnit.MILLISECONDS)
+				: null;
+		try {
+			out.write(frame);
+			out.flush();
+		} finally {
+			if(timeout != null)
+				timeout.cancel();
+		}
+	}
+
+	private void notifyError(Throwable error) {
+		try {
+			listener.onError(this, error);
+		} catch (RuntimeException ex) {
+			HttpServer.LOGGER.log(Level.SEVERE, "Error in WebSocket listener", ex);
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int read = in.read(readBuffer, 0, readBuffer.length);
+		if(read == -1)
+			return false;
+		this.readPosition = 0;
+		this.readLimit = read;
+		return true;
+	}
+
+	private int readByte() throws IOException {
+		if(readPosition == readLimit && !this.fill())
+			throw new EOFException("Connection closed in the middle of a frame");
+		return readBuffer[readPosition++] & 0xFF;
+	}
+
+	private void readFully(byte[] buffer, int offset, int length) throws IOException {
+		int buffered = Math.min(length, readLimit - readPosition);
+		System.arraycopy(readBuffer, readPosition, buffer, offset, buffered);
+		readPosition += buffered;
+		offset += buffered;
+		length -= buffered;
+
+		// Large payloads bypass the read buffer
+		while(length > 0) {
+			int read = in.read(buffer, offset, length);
+			if(read == -1)
+				throw new EOFException("Connection closed in the middle of a frame");
+			offset += read;
+			length -= read;
+		}
+	}
+
+	/**
+	 * Returns the request that opened this connection.
+	 *
+	 * @return the upgrade request
+	 */
+	public Request getRequest() {
+		return request;
+	}
+
+	/**
+	 * Returns whether the connection is open, and messages can be sent.
+	 *
+	 * @return whether the connection is open
+	 */
+	public boolean isOpen() {
+		return open && !closeSent;
+	}
+
+	/**
+	 * Attaches an object to this connection, such as the user it belongs to.
+	 *
+	 * @param attachment the object, may be null
+	 */
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * Returns the object attached to this connection.
+	 *
+	 * @param <T> type of the attachment
+	 * @return the attachment, may be null
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAttachment() {
+		return (T) attachment;
+	}
+
+	private static class CloseException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int code;
+
+		private CloseException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+
+	}
+
+}
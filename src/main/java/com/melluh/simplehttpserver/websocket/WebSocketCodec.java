@@ -0,0 +1,79 @@
+package com.melluh.simplehttpserver.websocket;
+
+/**
+ * Encoding and masking of WebSocket frames.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc6455#section-5">RFC 6455</a>.
+ */
+class WebSocketCodec {
+
+	static final int OP_CONTINUATION = 0x0;
+	static final int OP_TEXT = 0x1;
+	static final int OP_BINARY = 0x2;
+	static final int OP_CLOSE = 0x8;
+	static final int OP_PING = 0x9;
+	static final int OP_PONG = 0xA;
+
+	static final int FLAG_FIN = 0x80;
+	static final int FLAG_RSV1 = 0x40;
+	static final int RSV_MASK = 0x70;
+	static final int OPCODE_MASK = 0x0F;
+	static final int FLAG_MASK = 0x80;
+
+	static final int MAX_CONTROL_PAYLOAD = 125;
+
+	private WebSocketCodec() {}
+
+	static boolean isControl(int opcode) {
+		return (opcode & 0x08) != 0;
+	}
+
+	/**
+	 * Encodes a single, final and unmasked frame, as sent by servers.
+	 */
+	static byte[] encodeFrame(int opcode, boolean compressed, byte[] payload, int offset, int length) {
+		int headerLength = length <= 125 ? 2 : length <= 0xFFFF ? 4 : 10;
+		byte[] frame = new byte[headerLength + length];
+
+		frame[0] = (byte) (FLAG_FIN | (compressed ? FLAG_RSV1 : 0) | opcode);
+		if(length <= 125) {
+			frame[1] = (byte) length;
+		} else if(length <= 0xFFFF) {
+			frame[1] = 126;
+			frame[2] = (byte) (length >>> 8);
+			frame[3] = (byte) length;
+		} else {
+			frame[1] = 127;
+			for(int i = 0; i < 8; i++) {
+				frame[2 + i] = (byte) ((long) length >>> (56 - i * 8));
+			}
+		}
+
+		System.arraycopy(payload, offset, frame, headerLength, length);
+		return frame;
+	}
+
+	/**
+	 * Unmasks a payload in place, eight bytes per iteration.
+	 * Masking is its own inverse, so this also masks.
+	 */
+	static void unmask(byte[] data, int offset, int length, byte[] mask) {
+		byte m0 = mask[0], m1 = mask[1], m2 = mask[2], m3 = mask[3];
+
+		int i = offset;
+		int end = offset + length;
+		for(; i + 8 <= end; i += 8) {
+			data[i] ^= m0;
+			data[i + 1] ^= m1;
+			data[i + 2] ^= m2;
+			data[i + 3] ^= m3;
+			data[i + 4] ^= m0;
+			data[i + 5] ^= m1;
+			data[i + 6] ^= m2;
+			data[i + 7] ^= m3;
+		}
+		for(; i < end; i++) {
+			data[i] ^= mask[(i - offset) & 3];
+		}
+	}
+
+}
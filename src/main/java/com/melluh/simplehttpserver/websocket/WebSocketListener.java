@@ -0,0 +1,53 @@
+package com.melluh.simplehttpserver.websocket;
+
+/**
+ * Receives the events of WebSocket connections. A single listener is shared
+ * by all connections of a route, the connection is passed to every method.
+ * Events of one connection are delivered in order, on that connection's thread.
+ *
+ * @see com.melluh.simplehttpserver.router.Router#websocket(String, WebSocketListener)
+ */
+public interface WebSocketListener {
+
+	/**
+	 * Called when the connection was upgraded and messages can be sent.
+	 *
+	 * @param socket the connection
+	 */
+	default void onOpen(WebSocket socket) {}
+
+	/**
+	 * Called when a complete text message was received.
+	 *
+	 * @param socket the connection
+	 * @param message the message
+	 */
+	default void onText(WebSocket socket, String message) {}
+
+	/**
+	 * Called when a complete binary message was received.
+	 *
+	 * @param socket the connection
+	 * @param message the message
+	 */
+	default void onBinary(WebSocket socket, byte[] message) {}
+
+	/**
+	 * Called once when the connection is closed, for any reason.
+	 *
+	 * @param socket the connection
+	 * @param code the close code, see the constants in {@link WebSocket}
+	 * @param reason the close reason, may be empty
+	 */
+	default void onClose(WebSocket socket, int code, String reason) {}
+
+	/**
+	 * Called when an error occurs on the connection.
+	 * The connection is closed afterwards.
+	 *
+	 * @param socket the connection
+	 * @param error the error
+	 */
+	default void onError(WebSocket socket, Throwable error) {}
+
+}
@@ -0,0 +1,105 @@
+package com.melluh.simplehttpserver.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+import com.melluh.simplehttpserver.BufferPool;
+
+/**
+ * A message that is encoded into a frame once, and can then be sent to any
+ * number of connections without encoding it again. This includes compression,
+ * the compressed frame is shared by all connections that negotiated
+ * <code>permessage-deflate</code>.
+ *
+ * @see WebSocket#broadcast(Iterable, WebSocketMessage)
+ */
+public final class WebSocketMessage {
+
+	// Small messages don't get smaller by compressing them
+	private static final int COMPRESSION_THRESHOLD = 256;
+
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+	private final int opcode;
+	private final byte[] payload;
+
+	private volatile byte[] frame;
+	private volatile byte[] compressedFrame;
+
+	private WebSocketMessage(int opcode, byte[] payload) {
+		this.opcode = opcode;
+		this.payload = payload;
+	}
+
+	/**
+	 * Creates a text message.
+	 *
+	 * @param text the text
+	 * @return the message
+	 */
+	public static WebSocketMessage text(String text) {
+		Objects.requireNonNull(text, "text is missing");
+		return new WebSocketMessage(WebSocketCodec.OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Creates a binary message. The data must not be modified afterwards.
+	 *
+	 * @param data the data
+	 * @return the message
+	 */
+	public static WebSocketMessage binary(byte[] data) {
+		Objects.requireNonNull(data, "data is missing");
+		return new WebSocketMessage(WebSocketCodec.OP_BINARY, data);
+	}
+
+	/**
+	 * Returns the encoded frame, creating it on first use. Concurrent callers
+	 * may both encode it, which is harmless since the result is identical.
+	 */
+	byte[] getFrame(boolean deflate) {
+		if(deflate && payload.length >= COMPRESSION_THRESHOLD) {
+			byte[] compressedFrame = this.compressedFrame;
+			if(compressedFrame == null)
+				this.compressedFrame = compressedFrame = this.compress();
+			return compressedFrame;
+		}
+
+		byte[] frame = this.frame;
+		if(frame == null)
+			this.frame = frame = WebSocketCodec.encodeFrame(opcode, false, payload, 0, payload.length);
+		return frame;
+	}
+
+	// The server never takes over the compression context, so every connection can use the same frame
+	private byte[] compress() {
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setInput(payload);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2);
+		byte[] buffer = BufferPool.getDefault().acquire(BufferPool.SMALL);
+		try {
+			int length;
+			do {
+				length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+				out.write(buffer, 0, length);
+			} while(length == buffer.length);
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+
+		// The empty block trailer is left out of the message, RFC 7692 section 7.2.1
+		byte[] compressed = out.toByteArray();
+		int length = compressed.length;
+		if(length >= 4 && compressed[length - 4] == 0 && compressed[length - 3] == 0 && compressed[length - 2] == (byte) 0xFF && compressed[length - 1] == (byte) 0xFF)
+			length -= 4;
+
+		if(length >= payload.length)
+			return this.getFrame(false); // incompressible
+		return WebSocketCodec.encodeFrame(opcode, true, compressed, 0, length);
+	}
+
+}
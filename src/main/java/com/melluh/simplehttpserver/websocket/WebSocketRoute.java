@@ -0,0 +1,131 @@
+package com.melluh.simplehttpserver.websocket;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Objects;
+
+import com.melluh.simplehttpserver.HttpUtils;
+import com.melluh.simplehttpserver.Request;
+import com.melluh.simplehttpserver.protocol.HttpHeader;
+import com.melluh.simplehttpserver.protocol.MimeType;
+import com.melluh.simplehttpserver.protocol.Status;
+import com.melluh.simplehttpserver.response.Response;
+import com.melluh.simplehttpserver.router.Route;
+
+/**
+ * A route that upgrades requests to WebSocket connections.
+ * Supports the <code>permessage-deflate</code> extension.<br>
+ * See <a href="https://datatracker.ietf.org/doc/html/rfc6455#section-4.2">RFC 6455</a>
+ * and <a href="https://datatracker.ietf.org/doc/html/rfc7692">RFC 7692</a>.
+ *
+ * @see com.melluh.simplehttpserver.router.Router#websocket(String, WebSocketListener)
+ */
+public class WebSocketRoute implements Route {
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final String VERSION = "13";
+	private static final String DEFLATE_EXTENSION = "permessage-deflate";
+
+	private static final String SEC_WEBSOCKET_KEY = "sec-websocket-key";
+	private static final String SEC_WEBSOCKET_VERSION = "sec-websocket-version";
+	private static final String SEC_WEBSOCKET_ACCEPT = "sec-websocket-accept";
+	private static final String SEC_WEBSOCKET_EXTENSIONS = "sec-websocket-extensions";
+
+	private final WebSocketListener listener;
+
+	public WebSocketRoute(WebSocketListener listener) {
+		Objects.requireNonNull(listener, "listener is missing");
+		this.listener = listener;
+	}
+
+	@Override
+	public Response serve(Request req) {
+		if(!HttpUtils.containsToken(req.getHeader(HttpHeader.UPGRADE), "websocket") || !HttpUtils.containsToken(req.getHeader(HttpHeader.CONNECTION), "upgrade"))
+			return new Response(Status.BAD_REQUEST).contentType(MimeType.PLAIN_TEXT).body("Expected a WebSocket upgrade");
+
+		if(!VERSION.equals(req.getHeader(SEC_WEBSOCKET_VERSION)))
+			return new Response(Status.UPGRADE_REQUIRED).header(SEC_WEBSOCKET_VERSION, VERSION);
+
+		String key = req.getHeader(SEC_WEBSOCKET_KEY);
+		if(key == null || !isValidKey(key))
+			return new Response(Status.BAD_REQUEST).contentType(MimeType.PLAIN_TEXT).body("Invalid Sec-WebSocket-Key");
+
+		Response response = new Response(Status.SWITCHING_PROTOCOLS)
+				.header(HttpHeader.UPGRADE, "websocket")
+				.header(HttpHeader.CONNECTION, "Upgrade")
+				.header(SEC_WEBSOCKET_ACCEPT, getAcceptKey(key));
+
+		String extension = negotiateDeflate(req.getHeader(SEC_WEBSOCKET_EXTENSIONS));
+		boolean deflate = extension != null;
+		if(deflate)
+			response.header(SEC_WEBSOCKET_EXTENSIONS, extension);
+
+		return response.upgrade((socket, in, out) -> new WebSocket(req, listener, deflate, socket, in, out).run());
+	}
+
+	private static boolean isValidKey(String key) {
+		try {
+			return Base64.getDecoder().decode(key.trim()).length == 16;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	private static String getAcceptKey(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException("SHA-1 not supported on system");
+		}
+	}
+
+	/**
+	 * Picks the first <code>permessage-deflate</code> offer the server can accept.
+	 * The server always resets its compression context between messages, so a
+	 * compressed message can be shared between connections.
+	 *
+	 * @return the extension response, or null if compression isn't used
+	 */
+	private static String negotiateDeflate(String header) {
+		if(header == null)
+			return null;
+
+		for(String offer : header.split(",")) {
+			String[] params = offer.split(";");
+			if(!params[0].trim().equalsIgnoreCase(DEFLATE_EXTENSION))
+				continue;
+
+			boolean acceptable = true;
+			boolean clientNoContextTakeover = false;
+			for(int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				int equalsIndex = param.indexOf('=');
+				String name = (equalsIndex >= 0 ? param.substring(0, equalsIndex) : param).trim().toLowerCase(Locale.ROOT);
+
+				switch(name) {
+					case "server_no_context_takeover":
+					case "client_max_window_bits":
+						break;
+					case "client_no_context_takeover":
+						clientNoContextTakeover = true;
+						break;
+					default:
+						// A smaller server window can't be configured on Deflater
+						acceptable = false;
+						break;
+				}
+			}
+
+			if(acceptable)
+				return DEFLATE_EXTENSION + "; server_no_context_takeover" + (clientNoContextTakeover ? "; client_no_context_takeover" : "");
+		}
+
+		return null;
+	}
+
+}